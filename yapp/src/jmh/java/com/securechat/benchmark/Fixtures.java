@@ -0,0 +1,75 @@
+package com.securechat.benchmark;
+
+import com.securechat.crypto.libsignal.PreKeyBundleBuilder;
+import com.securechat.store.SignalStore;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+/**
+ * Key material shared by the benchmarks, generated the same way
+ * {@link com.securechat.client.UserClient#initializeUser()} does.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+final class Fixtures {
+
+    static final int PRE_KEY_ID = 1;
+    static final int SIGNED_PRE_KEY_ID = 2;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Creates a heap-backed store with a fresh identity, one prekey and one signed prekey.
+     *
+     * @return the initialized store
+     * @throws InvalidKeyException if key generation fails
+     */
+    static SignalStore newStore() throws InvalidKeyException {
+        SignalStore store = new SignalStore();
+        initialize(store);
+        return store;
+    }
+
+    /**
+     * Gives a store a fresh identity, one prekey and one signed prekey.
+     *
+     * @param store the store to initialize
+     * @throws InvalidKeyException if key generation fails
+     */
+    static void initialize(SignalStore store) throws InvalidKeyException {
+        IdentityKeyPair identityKeyPair = KeyHelper.generateIdentityKeyPair();
+        store.initializeKeys(identityKeyPair, KeyHelper.generateRegistrationId(false));
+        store.storePreKey(PRE_KEY_ID, KeyHelper.generatePreKeys(PRE_KEY_ID, 1).get(0));
+        store.storeSignedPreKey(SIGNED_PRE_KEY_ID, KeyHelper.generateSignedPreKey(identityKeyPair, SIGNED_PRE_KEY_ID));
+    }
+
+    /**
+     * Builds the PreKeyBundle a store would publish for the given device.
+     *
+     * @param store    the initialized store
+     * @param deviceId the device ID to advertise
+     * @return the bundle
+     * @throws InvalidKeyException if the stored keys are invalid
+     */
+    static PreKeyBundle bundle(SignalStore store, int deviceId) throws InvalidKeyException {
+        return PreKeyBundleBuilder.build(store.getLocalRegistrationId(), deviceId, store, PRE_KEY_ID, SIGNED_PRE_KEY_ID);
+    }
+
+    /**
+     * Returns a printable ASCII string of the given length.
+     *
+     * @param length the number of characters
+     * @return the string
+     */
+    static String text(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package com.securechat.benchmark;
+
+import com.securechat.protocol.Packet;
+import com.securechat.protocol.PacketType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Java serialization of {@link Packet}s, the wire format used by
+ * {@link com.securechat.network.PeerConnection}.
+ * <p>
+ * Each operation writes the packet to a fresh stream and reads it back, so the cost
+ * includes the class descriptors a new connection pays for its first packet of a type.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketSerializationBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    private Packet message;
+    private byte[] serializedMessage;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        message = new Packet("alice", 1, "bob", 2, payload, PacketType.MESSAGE);
+        message.setSequence(42);
+
+        serializedMessage = serialize(message);
+    }
+
+    @Benchmark
+    public byte[] serializeMessage() throws IOException {
+        return serialize(message);
+    }
+
+    @Benchmark
+    public Object deserializeMessage() throws IOException, ClassNotFoundException {
+        return deserialize(serializedMessage);
+    }
+
+    @Benchmark
+    public Object roundTripMessage() throws IOException, ClassNotFoundException {
+        return deserialize(serialize(message));
+    }
+
+    static byte[] serialize(Object packet) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(packet);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return in.readObject();
+        }
+    }
+}
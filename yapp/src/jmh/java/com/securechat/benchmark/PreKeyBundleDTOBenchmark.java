@@ -0,0 +1,79 @@
+package com.securechat.benchmark;
+
+import com.securechat.crypto.libsignal.PreKeyBundleDTO;
+import com.securechat.protocol.Packet;
+import com.securechat.protocol.PacketType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the conversions a PreKeyBundle goes through between the store, the wire
+ * and the server's bundle cache.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PreKeyBundleDTOBenchmark {
+
+    private PreKeyBundle bundle;
+    private PreKeyBundleDTO dto;
+    private String json;
+    private Packet packet;
+
+    @Setup
+    public void setup() throws Exception {
+        bundle = Fixtures.bundle(Fixtures.newStore(), 1);
+        dto = PreKeyBundleDTO.fromPreKeyBundle(bundle);
+        json = dto.toJson();
+        packet = new Packet("alice", 1, dto);
+        packet.setType(PacketType.PREKEY_BUNDLE);
+    }
+
+    @Benchmark
+    public PreKeyBundleDTO fromPreKeyBundle() {
+        return PreKeyBundleDTO.fromPreKeyBundle(bundle);
+    }
+
+    @Benchmark
+    public PreKeyBundle toPreKeyBundle() {
+        return dto.toPreKeyBundle();
+    }
+
+    @Benchmark
+    public String toJson() {
+        return dto.toJson();
+    }
+
+    @Benchmark
+    public PreKeyBundleDTO fromJson() {
+        return PreKeyBundleDTO.fromJson(json);
+    }
+
+    @Benchmark
+    public byte[] digest() {
+        return dto.digest();
+    }
+
+    @Benchmark
+    public Object packetRoundTrip() throws IOException, ClassNotFoundException {
+        return PacketSerializationBenchmark.deserialize(PacketSerializationBenchmark.serialize(packet));
+    }
+}
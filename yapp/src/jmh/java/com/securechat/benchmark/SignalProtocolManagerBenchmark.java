@@ -0,0 +1,87 @@
+package com.securechat.benchmark;
+
+import com.securechat.crypto.libsignal.SignalProtocolManager;
+import com.securechat.store.SignalStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link SignalProtocolManager} encryption and decryption for both
+ * {@code MESSAGE} and {@code PREKEY_MESSAGE} packets.
+ * <p>
+ * Alice holds two sessions: one with Bob that Bob has never answered, so every message
+ * Alice sends him is still a PreKeySignalMessage, and one with Carol that has completed
+ * a round trip, so messages to Carol are plain SignalMessages. Sending only ever advances
+ * the sending chain, so the sessions stay valid for the whole run.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SignalProtocolManagerBenchmark {
+
+    private static final int ALICE_DEVICE = 1;
+    private static final int BOB_DEVICE = 2;
+    private static final int CAROL_DEVICE = 3;
+
+    @Param({"16", "1024"})
+    public int plaintextLength;
+
+    private SignalProtocolManager alice;
+    private SignalProtocolManager bob;
+    private SignalProtocolManager carol;
+    private String plaintext;
+
+    @Setup
+    public void setup() throws Exception {
+        SignalStore bobStore = Fixtures.newStore();
+        SignalStore carolStore = Fixtures.newStore();
+        alice = new SignalProtocolManager(Fixtures.newStore());
+        bob = new SignalProtocolManager(bobStore);
+        carol = new SignalProtocolManager(carolStore);
+        plaintext = Fixtures.text(plaintextLength);
+
+        alice.initializeSession("bob", Fixtures.bundle(bobStore, BOB_DEVICE));
+
+        alice.initializeSession("carol", Fixtures.bundle(carolStore, CAROL_DEVICE));
+        carol.decryptPreKeyMessage("alice", ALICE_DEVICE, alice.encryptPreKeyMessage("carol", CAROL_DEVICE, "hello"));
+        alice.decryptMessage("carol", CAROL_DEVICE, carol.encryptMessage("alice", ALICE_DEVICE, "hello"));
+    }
+
+    @Benchmark
+    public byte[] encryptMessage() throws Exception {
+        return alice.encryptMessage("carol", CAROL_DEVICE, plaintext);
+    }
+
+    @Benchmark
+    public String messageRoundTrip() throws Exception {
+        return carol.decryptMessage("alice", ALICE_DEVICE, alice.encryptMessage("carol", CAROL_DEVICE, plaintext));
+    }
+
+    @Benchmark
+    public byte[] encryptPreKeyMessage() throws Exception {
+        return alice.encryptPreKeyMessage("bob", BOB_DEVICE, plaintext);
+    }
+
+    @Benchmark
+    public String preKeyMessageRoundTrip() throws Exception {
+        return bob.decryptPreKeyMessage("alice", ALICE_DEVICE, alice.encryptPreKeyMessage("bob", BOB_DEVICE, plaintext));
+    }
+}
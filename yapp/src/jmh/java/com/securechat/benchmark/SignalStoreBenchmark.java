@@ -0,0 +1,134 @@
+package com.securechat.benchmark;
+
+import com.securechat.crypto.libsignal.SignalProtocolManager;
+import com.securechat.store.HeapSessionStorage;
+import com.securechat.store.OffHeapSessionStorage;
+import com.securechat.store.SessionStorage;
+import com.securechat.store.SignalStore;
+import com.securechat.store.TieredSessionStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link SignalStore} session loads and stores at different store sizes
+ * for each {@link SessionStorage} implementation.
+ * <p>
+ * The store is filled with copies of a real, established session record. Tiered
+ * storage keeps a tenth of the sessions on the heap, so random access mostly faults
+ * records in from its cold tier, which is the case it exists for.
+ * </p>
+ * <p>
+ * The point of the tiered and off-heap storages is a smaller, calmer heap rather than
+ * faster loads, so compare them with JMH's GC profiler, which adds allocation rate,
+ * GC count and GC time per iteration to the results:
+ * {@code mvn -Pbenchmarks verify -Djmh.include=SignalStoreBenchmark -Djmh.args="-prof gc"}.
+ * The forked JVM gets enough heap and direct memory for a million sessions.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-XX:MaxDirectMemorySize=4g"})
+@State(Scope.Thread)
+public class SignalStoreBenchmark {
+
+    @Param({"heap", "tiered", "offheap"})
+    public String storage;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int sessions;
+
+    private SignalStore store;
+    private SignalProtocolAddress[] addresses;
+    private SessionRecord record;
+    private Path spillFile;
+
+    @Setup
+    public void setup() throws Exception {
+        store = new SignalStore(newStorage());
+        Fixtures.initialize(store);
+        record = establishedSession();
+
+        addresses = new SignalProtocolAddress[sessions];
+        for (int i = 0; i < sessions; i++) {
+            addresses[i] = new SignalProtocolAddress("user-" + i, 1);
+            store.storeSession(addresses[i], new SessionRecord(record.serialize()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        if (spillFile != null) {
+            Files.deleteIfExists(spillFile);
+        }
+    }
+
+    @Benchmark
+    public SessionRecord loadSession() {
+        return store.loadSession(randomAddress());
+    }
+
+    @Benchmark
+    public void storeSession() {
+        store.storeSession(randomAddress(), record);
+    }
+
+    @Benchmark
+    public boolean containsSession() {
+        return store.containsSession(randomAddress());
+    }
+
+    private SignalProtocolAddress randomAddress() {
+        return addresses[ThreadLocalRandom.current().nextInt(sessions)];
+    }
+
+    private SessionStorage newStorage() throws IOException {
+        return switch (storage) {
+            case "heap" -> new HeapSessionStorage();
+            case "tiered" -> {
+                spillFile = Files.createTempFile("yapp-bench-sessions", ".spill");
+                yield new TieredSessionStorage(Math.max(1, sessions / 10), spillFile);
+            }
+            case "offheap" -> new OffHeapSessionStorage();
+            default -> throw new IllegalArgumentException("Unknown storage: " + storage);
+        };
+    }
+
+    /**
+     * Returns Alice's side of a session that has completed one round trip with Bob.
+     */
+    private static SessionRecord establishedSession() throws Exception {
+        SignalStore aliceStore = Fixtures.newStore();
+        SignalStore bobStore = Fixtures.newStore();
+        SignalProtocolManager alice = new SignalProtocolManager(aliceStore);
+        SignalProtocolManager bob = new SignalProtocolManager(bobStore);
+
+        alice.initializeSession("bob", Fixtures.bundle(bobStore, 2));
+        bob.decryptPreKeyMessage("alice", 1, alice.encryptPreKeyMessage("bob", 2, "hello"));
+        alice.decryptMessage("bob", 2, bob.encryptMessage("alice", 1, "hello"));
+        return aliceStore.loadSession(new SignalProtocolAddress("bob", 2));
+    }
+}
@@ -1,7 +1,9 @@
 package com.securechat;
 
 import com.securechat.client.UserClient;
+import com.securechat.config.ConfigLoader;
 import com.securechat.server.Server;
+import com.securechat.store.SessionStorage;
 import com.securechat.store.SignalStore;
 
 import org.slf4j.Logger;
@@ -32,6 +34,9 @@ public class Launcher {
     /** The port number on which the server listens for messages. */
     private static final int MESSAGE_PORT = 8888;
 
+    /** The configuration file holding the client session storage spec. */
+    private static final String CONFIG_FILE = "config.properties";
+
     /** Client instance representing Alice. */
     private static UserClient alice;
 
@@ -92,11 +97,16 @@ public class Launcher {
 
     /**
      * Initializes the user clients Alice and Bob along with their Signal stores
-     * and prepares them for connection.
+     * and prepares them for connection. Sessions are kept in the storage named by
+     * {@code session.storage} in the configuration file (see {@link SessionStorage#fromSpec}).
      */
     private static void setupClients() {
-        SignalStore aliceStore = new SignalStore();
-        SignalStore bobStore = new SignalStore();
+        String storageSpec = new ConfigLoader(CONFIG_FILE).get("session.storage");
+        if (storageSpec == null) {
+            storageSpec = "heap";
+        }
+        SignalStore aliceStore = new SignalStore(SessionStorage.fromSpec(storageSpec));
+        SignalStore bobStore = new SignalStore(SessionStorage.fromSpec(storageSpec));
 
         alice = new UserClient("alice", 1, aliceStore, 1001, 1002);
         bob = new UserClient("bob", 2, bobStore, 2001, 2002);
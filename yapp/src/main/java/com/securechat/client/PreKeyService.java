@@ -0,0 +1,233 @@
+package com.securechat.client;
+
+import com.securechat.crypto.libsignal.PreKeyBatchDTO;
+import com.securechat.store.SignalStore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.util.KeyHelper;
+import org.whispersystems.libsignal.util.Medium;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the server's supply of this client's one-time prekeys topped up and rotates
+ * the signed prekey, all on a background thread so key generation never runs on the
+ * caller's or the message-sending path.
+ *
+ * <p>The service tracks which uploaded prekeys are still unused by listening to
+ * {@link SignalStore#setPreKeyRemovalListener}: libsignal removes a prekey when the
+ * PreKey message consuming it is decrypted. When the published count drops below a
+ * low watermark, a batch generated ahead of time is stored locally and uploaded in
+ * one PREKEY_UPLOAD packet, and the next batch is pre-generated.
+ *
+ * <p>Signed prekeys rotate on a fixed schedule. Older signed prekeys are kept for a
+ * few rotations so PreKey messages built from a previously served bundle still decrypt.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class PreKeyService {
+    private static final Logger logger = LoggerFactory.getLogger(PreKeyService.class);
+
+    /** Number of one-time prekeys generated and uploaded per batch. */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** Published prekey count below which a new batch is uploaded. */
+    public static final int DEFAULT_LOW_WATERMARK = 25;
+
+    /** Interval between signed prekey rotations. */
+    public static final long DEFAULT_ROTATION_MILLIS = TimeUnit.DAYS.toMillis(2);
+
+    private static final int RETAINED_SIGNED_PREKEYS = 3;
+
+    /**
+     * Sends a prekey batch to the server.
+     */
+    @FunctionalInterface
+    public interface Uploader {
+        /**
+         * Uploads a batch.
+         *
+         * @param batch the batch to upload
+         * @throws Exception if the upload fails
+         */
+        void upload(PreKeyBatchDTO batch) throws Exception;
+    }
+
+    private final String userId;
+    private final SignalStore store;
+    private final Uploader uploader;
+    private final int batchSize;
+    private final int lowWatermark;
+    private final long rotationMillis;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Set<Integer> published = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean replenishScheduled = new AtomicBoolean();
+
+    private volatile int signedPreKeyId;
+    private int nextPreKeyId;                 // scheduler thread only
+    private List<PreKeyRecord> prepared;      // scheduler thread only
+
+    /**
+     * Creates a service with the default batch size, watermark and rotation interval.
+     *
+     * @param userId         the local user ID (for logging)
+     * @param store          the local key store
+     * @param signedPreKeyId the signed prekey ID to assume if the store holds none
+     * @param uploader       the callback sending batches to the server
+     */
+    public PreKeyService(String userId, SignalStore store, int signedPreKeyId, Uploader uploader) {
+        this(userId, store, signedPreKeyId, uploader, DEFAULT_BATCH_SIZE, DEFAULT_LOW_WATERMARK, DEFAULT_ROTATION_MILLIS);
+    }
+
+    /**
+     * Creates a service.
+     *
+     * @param userId         the local user ID (for logging)
+     * @param store          the local key store
+     * @param signedPreKeyId the signed prekey ID to assume if the store holds none
+     * @param uploader       the callback sending batches to the server
+     * @param batchSize      one-time prekeys per batch (positive)
+     * @param lowWatermark   published count below which a batch is uploaded (less than batchSize)
+     * @param rotationMillis interval between signed prekey rotations in milliseconds (positive)
+     */
+    public PreKeyService(String userId, SignalStore store, int signedPreKeyId, Uploader uploader,
+                         int batchSize, int lowWatermark, long rotationMillis) {
+        if (batchSize <= 0 || lowWatermark < 0 || lowWatermark >= batchSize || rotationMillis <= 0) {
+            throw new IllegalArgumentException("Invalid PreKeyService configuration");
+        }
+        this.userId = userId;
+        this.store = store;
+        this.uploader = uploader;
+        this.batchSize = batchSize;
+        this.lowWatermark = lowWatermark;
+        this.rotationMillis = rotationMillis;
+
+        this.signedPreKeyId = store.loadSignedPreKeys().stream()
+                .max(Comparator.comparingLong(SignedPreKeyRecord::getTimestamp))
+                .map(SignedPreKeyRecord::getId)
+                .orElse(signedPreKeyId);
+        this.nextPreKeyId = nextId(store.loadPreKeys().stream().mapToInt(PreKeyRecord::getId).max().orElse(0));
+    }
+
+    /**
+     * Starts the service: uploads an initial batch, pre-generates the next one and
+     * schedules signed prekey rotation. Returns immediately.
+     */
+    public void start() {
+        store.setPreKeyRemovalListener(this::onPreKeyRemoved);
+        replenishScheduled.set(true);
+        scheduler.execute(this::replenish);
+        scheduler.scheduleAtFixedRate(this::rotateSignedPreKey, rotationMillis, rotationMillis, TimeUnit.MILLISECONDS);
+        logger.info("[{}] PreKeyService started (batch={}, lowWatermark={}, rotation={}ms)",
+                userId, batchSize, lowWatermark, rotationMillis);
+    }
+
+    /**
+     * Returns the ID of the newest signed prekey, which bundles must advertise.
+     *
+     * @return the current signed prekey ID
+     */
+    public int currentSignedPreKeyId() {
+        return signedPreKeyId;
+    }
+
+    /**
+     * Returns the number of uploaded one-time prekeys not yet consumed.
+     *
+     * @return the published prekey count
+     */
+    public int publishedCount() {
+        return published.size();
+    }
+
+    /**
+     * Uploads a fresh batch whatever the watermark, for when the server no longer holds
+     * this device's one-time prekeys, e.g. because it asked for the full bundle again.
+     * Older prekeys stay in the store for PreKey messages already on their way.
+     */
+    public void republish() {
+        published.clear();
+        if (replenishScheduled.compareAndSet(false, true)) {
+            scheduler.execute(this::replenish);
+        }
+    }
+
+    /**
+     * Stops background generation and rotation.
+     */
+    public void stop() {
+        store.setPreKeyRemovalListener(null);
+        scheduler.shutdownNow();
+        logger.info("[{}] PreKeyService stopped", userId);
+    }
+
+    private void onPreKeyRemoved(int preKeyId) {
+        if (published.remove(preKeyId) && published.size() < lowWatermark
+                && replenishScheduled.compareAndSet(false, true)) {
+            logger.debug("[{}] Published PreKeys below watermark ({}), scheduling replenishment", userId, published.size());
+            scheduler.execute(this::replenish);
+        }
+    }
+
+    private void replenish() {
+        try {
+            List<PreKeyRecord> batch = prepared != null ? prepared : generateBatch();
+            prepared = null;
+            for (PreKeyRecord record : batch) {
+                store.storePreKeyRecord(record);
+            }
+            uploader.upload(PreKeyBatchDTO.of(batch, null));
+            for (PreKeyRecord record : batch) {
+                published.add(record.getId());
+            }
+            logger.info("[{}] Uploaded {} one-time PreKeys ({} published)", userId, batch.size(), published.size());
+
+            prepared = generateBatch();
+        } catch (Exception e) {
+            logger.error("[{}] PreKey replenishment failed", userId, e);
+        } finally {
+            replenishScheduled.set(false);
+        }
+    }
+
+    private void rotateSignedPreKey() {
+        try {
+            int newId = nextId(signedPreKeyId);
+            SignedPreKeyRecord record = KeyHelper.generateSignedPreKey(store.getIdentityKeyPair(), newId);
+            store.storeSignedPreKey(newId, record);
+            uploader.upload(PreKeyBatchDTO.of(List.of(), record));
+            signedPreKeyId = newId;
+            logger.info("[{}] Rotated SignedPreKey to {}", userId, newId);
+
+            List<SignedPreKeyRecord> all = store.loadSignedPreKeys();
+            all.sort(Comparator.comparingLong(SignedPreKeyRecord::getTimestamp).reversed());
+            for (int i = RETAINED_SIGNED_PREKEYS; i < all.size(); i++) {
+                store.removeSignedPreKey(all.get(i).getId());
+            }
+        } catch (Exception e) {
+            logger.error("[{}] SignedPreKey rotation failed", userId, e);
+        }
+    }
+
+    private List<PreKeyRecord> generateBatch() {
+        List<PreKeyRecord> batch = KeyHelper.generatePreKeys(nextPreKeyId, batchSize);
+        nextPreKeyId = nextId(batch.get(batch.size() - 1).getId());
+        return batch;
+    }
+
+    private static int nextId(int id) {
+        return id + 1 >= Medium.MAX_VALUE ? 1 : id + 1;
+    }
+}
@@ -1,10 +1,14 @@
 package com.securechat.client;
 
 import com.securechat.crypto.libsignal.*;
+import com.securechat.metrics.PacketTracer;
+import com.securechat.network.Connector;
+import com.securechat.network.Outbox;
 import com.securechat.network.PeerConnection;
 import com.securechat.network.PacketManager;
 import com.securechat.protocol.Packet;
 import com.securechat.protocol.PacketType;
+import com.securechat.protocol.PresenceBatch;
 import com.securechat.store.SignalStore;
 
 import org.slf4j.Logger;
@@ -15,7 +19,13 @@ import org.whispersystems.libsignal.state.PreKeyBundle;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
 /**
  * The {@code UserClient} class encapsulates the behavior of a SecureChat client instance.
@@ -41,9 +51,34 @@ public class UserClient {
     private final int preKeyId;
     private final int signedPreKeyId;
 
-    private PeerConnection connection;
-    private PacketManager packetManager;
-    private SessionManager sessionManager;
+    private Path snapshotFile;
+    private boolean restoredFromSnapshot;
+
+    private PreKeyService preKeyService;
+    private Outbox outbox;
+
+    /** Initial reconnect backoff; each failed attempt doubles it up to the maximum. */
+    public static final long RECONNECT_BASE_DELAY_MILLIS = 250;
+
+    /** Upper bound on the reconnect backoff. */
+    public static final long RECONNECT_MAX_DELAY_MILLIS = 30_000;
+
+    private String endpoint;
+    private Connector connector;
+    private volatile byte[] resumeToken;
+    private volatile boolean stopping;
+    private volatile double traceSampleRate = PacketTracer.DEFAULT_SAMPLE_RATE;
+    private volatile BiConsumer<Packet, String> messageHandler;
+    private volatile BiConsumer<String, Boolean> presenceHandler;
+    private volatile Set<String> followedUsers = Set.of();
+    private volatile long serverBackOffUntilNanos = System.nanoTime(); // an overloaded server asked us to stay away until then
+    private int outboxCapacity = Outbox.DEFAULT_CAPACITY;
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+    private final CompletableFuture<Void> registered = new CompletableFuture<>();
+
+    private volatile PeerConnection connection;
+    private volatile PacketManager packetManager;
+    private volatile SessionManager sessionManager;
 
     private final ConcurrentHashMap<String, CompletableFuture<Packet>> pendingRequests = new ConcurrentHashMap<>();
     private final ExecutorService executor = Executors.newCachedThreadPool();
@@ -86,33 +121,130 @@ public class UserClient {
         }
     }
 
+    /**
+     * Initializes the client's keys from a snapshot file if one exists, otherwise generates
+     * new key material as in {@link #initializeUser()} and writes it to the snapshot.
+     * <p>
+     * A restored client keeps its identity, so peers' sessions stay valid, and registers
+     * with the server using only a digest of its bundle. The snapshot is refreshed on
+     * {@link #stop()} so sessions established during this run are kept too.
+     *
+     * @param snapshotFile the key snapshot file to restore from and save to
+     */
+    public void initializeUser(Path snapshotFile) {
+        this.snapshotFile = snapshotFile;
+        if (Files.isRegularFile(snapshotFile)) {
+            try {
+                signalStore.restoreSnapshot(snapshotFile);
+                ensureBundleKeys();
+                restoredFromSnapshot = true;
+                logger.info("[{}] Keys restored from snapshot {}", userId, snapshotFile);
+                return;
+            } catch (Exception e) {
+                logger.warn("[{}] Failed to restore key snapshot {}, generating new keys", userId, snapshotFile, e);
+            }
+        }
+
+        initializeUser();
+        saveSnapshot();
+    }
+
+    /**
+     * Regenerates the prekey referenced by this client's bundle if the store no longer
+     * holds it (e.g. a peer's PreKey message consumed it), and the signed prekey if none is left.
+     *
+     * @throws Exception if key generation fails
+     */
+    private void ensureBundleKeys() throws Exception {
+        if (!signalStore.containsPreKey(preKeyId)) {
+            signalStore.storePreKey(preKeyId, KeyHelper.generatePreKeys(preKeyId, 1).get(0));
+            logger.info("[{}] Regenerated consumed PreKey {}", userId, preKeyId);
+        }
+        if (signalStore.loadSignedPreKeys().isEmpty()) {
+            IdentityKeyPair identityKeyPair = signalStore.getIdentityKeyPair();
+            signalStore.storeSignedPreKey(signedPreKeyId, KeyHelper.generateSignedPreKey(identityKeyPair, signedPreKeyId));
+            logger.info("[{}] Regenerated SignedPreKey {}", userId, signedPreKeyId);
+        }
+    }
+
+    /**
+     * Writes the current key material and sessions to the snapshot file, if one is configured.
+     */
+    private void saveSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+        try {
+            signalStore.saveSnapshot(snapshotFile);
+        } catch (Exception e) {
+            logger.error("[{}] Failed to save key snapshot {}", userId, snapshotFile, e);
+        }
+    }
+
     /**
      * Connects the client to the SecureChat server and registers its PreKeyBundle.
+     * <p>
+     * If the connection is later lost, the client reconnects automatically with jittered
+     * exponential backoff and rebinds using the resume token issued by the server.
      *
      * @param host Server hostname or IP.
      * @param port Server port.
      * @throws IOException if the connection or registration fails.
      */
     public void connectToServer(String host, int port) throws IOException {
-        logger.info("[{}] Connecting to server at {}:{}", userId, host, port);
+        connect(host + ":" + port, () -> new PeerConnection(new Socket(host, port)));
+    }
+
+    /**
+     * Connects to the server at a textual endpoint, either {@code host:port} or
+     * {@code unix:<path>} for a server on this host listening on a Unix domain socket.
+     *
+     * @param endpoint The server endpoint.
+     * @throws IOException if the connection or registration fails.
+     * @throws IllegalArgumentException if the endpoint is malformed.
+     * @see Connector#forEndpoint(String)
+     */
+    public void connectToServer(String endpoint) throws IOException {
+        connect(endpoint, Connector.forEndpoint(endpoint));
+    }
+
+    /**
+     * Connects to a server through the given connector, registers the PreKeyBundle,
+     * and starts listening. Reconnects after a dropped connection use the same connector,
+     * so a client connected in-process, e.g. with
+     * {@code connect("local", server::connectLocal)}, stays in-process.
+     * <p>
+     * Nothing here waits on the server: the registration is built before the connection
+     * opens and is written right behind the stream header, and messages sent once this
+     * returns queue behind it on the same stream. Use {@link #connectAsync} to learn when
+     * the server has accepted the registration.
+     *
+     * @param endpoint  A description of the server for log output.
+     * @param connector Opens a connection to the server.
+     * @throws IOException if the connection or registration fails.
+     */
+    public void connect(String endpoint, Connector connector) throws IOException {
+        logger.info("[{}] Connecting to server at {}", userId, endpoint);
+        this.endpoint = endpoint;
+        this.connector = connector;
         try {
-            this.connection = new PeerConnection(new Socket(host, port));
-            this.packetManager = new PacketManager(userId, userDeviceId, connection, SPManager, pendingRequests);
-            this.sessionManager = new SessionManager(userId, userDeviceId, SPManager, connection, pendingRequests);
-
-            PreKeyBundle bundle = PreKeyBundleBuilder.build(
-                signalStore.getLocalRegistrationId(),
-                userDeviceId,
-                signalStore,
-                preKeyId,
-                signedPreKeyId
-            );
-
-            Packet registrationPacket = new Packet(userId, userDeviceId, PreKeyBundleDTO.fromPreKeyBundle(bundle));
-            connection.sendMessageObject(registrationPacket);
-            logger.info("[{}] Registered PreKeyBundle with server", userId);
+            if (preKeyService == null) {
+                preKeyService = new PreKeyService(userId, signalStore, signedPreKeyId, this::uploadPreKeys);
+            }
+            if (outbox == null) {
+                outbox = openOutbox();
+            }
+            Packet registration = restoredFromSnapshot
+                    ? digestRegistrationPacket()
+                    : new Packet(userId, userDeviceId, buildBundle());
+
+            openConnection();
+            connection.sendMessageObject(registration);
+            logger.info("[{}] Sent {} registration to server", userId, registration.getType());
 
             packetManager.startListening();
+            outbox.attach(connection);
+            preKeyService.start();
         } catch (IOException e) {
             logger.error("[{}] IO error during connection", userId, e);
             throw e;
@@ -122,6 +254,353 @@ public class UserClient {
         }
     }
 
+    /**
+     * Connects as {@link #connect} does, without blocking the caller. The returned future
+     * completes once the server has confirmed the registration by issuing a resume token,
+     * one round trip after the connection opens, and completes exceptionally if the
+     * connection cannot be set up. A server that rejects the registration never confirms
+     * it, so callers should bound the wait, e.g. with {@link CompletableFuture#orTimeout}.
+     *
+     * @param endpoint  A description of the server for log output.
+     * @param connector Opens a connection to the server.
+     * @return a future completing when the client is registered
+     */
+    public CompletableFuture<Void> connectAsync(String endpoint, Connector connector) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                connect(endpoint, connector);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor).thenCompose(ignored -> registered);
+    }
+
+    /**
+     * Opens a new connection to the configured server and creates the packet and
+     * session managers bound to it.
+     *
+     * @throws IOException if the connection cannot be opened
+     */
+    private void openConnection() throws IOException {
+        PeerConnection conn = connector.connect();
+
+        PacketManager manager = new PacketManager(userId, userDeviceId, conn, SPManager, pendingRequests);
+        manager.setBundleRequestHandler(this::onBundleRequested);
+        manager.setSessionTokenHandler(token -> {
+            resumeToken = token;
+            registered.complete(null);
+            // Subscriptions do not outlive a connection, so renew them on every registration
+            if (!followedUsers.isEmpty()) {
+                sendPresenceSubscription(followedUsers);
+            }
+        });
+        manager.setDisconnectHandler(this::onDisconnected);
+        manager.setOutbox(outbox);
+        manager.setTraceSampleRate(traceSampleRate);
+        manager.setMessageHandler(messageHandler);
+        manager.setPresenceHandler(presenceHandler);
+        manager.setOverloadHandler(this::onServerOverloaded);
+
+        SessionManager sessions = new SessionManager(userId, userDeviceId, SPManager, conn, pendingRequests);
+        sessions.setOutbox(outbox);
+
+        this.connection = conn;
+        this.packetManager = manager;
+        this.sessionManager = sessions;
+    }
+
+    /**
+     * Registers with the server using only a digest of this client's PreKeyBundle.
+     *
+     * @throws Exception if the bundle cannot be built or sent
+     */
+    private void sendDigestRegistration() throws Exception {
+        connection.sendMessageObject(digestRegistrationPacket());
+        logger.info("[{}] Registered with server using PreKeyBundle digest", userId);
+    }
+
+    /**
+     * Builds a REGISTER packet carrying a digest of this client's PreKeyBundle.
+     *
+     * @return the registration packet
+     * @throws Exception if the bundle cannot be built
+     */
+    private Packet digestRegistrationPacket() throws Exception {
+        Packet registrationPacket = new Packet();
+        registrationPacket.setType(PacketType.REGISTER);
+        registrationPacket.setSenderId(userId);
+        registrationPacket.setSenderDeviceId(userDeviceId);
+        registrationPacket.setMessagePayload(buildBundle().digest());
+        return registrationPacket;
+    }
+
+    /**
+     * Presents the server-issued resume token to rebind this client after a reconnect.
+     *
+     * @param token the resume token
+     * @throws IOException if sending fails
+     */
+    private void sendResume(byte[] token) throws IOException {
+        Packet resumePacket = new Packet();
+        resumePacket.setType(PacketType.RESUME);
+        resumePacket.setSenderId(userId);
+        resumePacket.setSenderDeviceId(userDeviceId);
+        resumePacket.setMessagePayload(token);
+        connection.sendMessageObject(resumePacket);
+        logger.info("[{}] Sent resume token to server", userId);
+    }
+
+    /**
+     * Records how long an overloaded server asked this client to wait, so a reconnect
+     * does not come back sooner.
+     *
+     * @param retryAfterMillis the server's retry-after delay
+     */
+    private void onServerOverloaded(long retryAfterMillis) {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+        if (until - serverBackOffUntilNanos > 0) {
+            serverBackOffUntilNanos = until;
+        }
+        logger.info("[{}] Server overloaded, backing off for {} ms", userId, retryAfterMillis);
+    }
+
+    /**
+     * Schedules a reconnect when the listener reports a lost connection, unless the
+     * client is stopping or a reconnect is already in progress.
+     */
+    private void onDisconnected() {
+        if (stopping || !reconnecting.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(this::reconnect);
+    }
+
+    /**
+     * Reconnects with full-jitter exponential backoff until it succeeds or the client stops.
+     * An overloaded server's retry-after delay is waited out first, plus up to half again
+     * so refused clients do not all return at once. The new connection resumes with the
+     * server-issued token if one is held, falling back to digest registration, and the
+     * outbox then replays unacknowledged packets over it.
+     */
+    private void reconnect() {
+        try {
+            packetManager.shutdown();
+            closeQuietly(connection);
+
+            for (int attempt = 0; !stopping; attempt++) {
+                long ceiling = Math.min(RECONNECT_MAX_DELAY_MILLIS, RECONNECT_BASE_DELAY_MILLIS << Math.min(attempt, 16));
+                long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+                long backOff = TimeUnit.NANOSECONDS.toMillis(serverBackOffUntilNanos - System.nanoTime());
+                if (backOff > 0) {
+                    delay = Math.max(delay, backOff + ThreadLocalRandom.current().nextLong(backOff / 2 + 1));
+                }
+                logger.info("[{}] Reconnecting in {} ms (attempt {})", userId, delay, attempt + 1);
+                Thread.sleep(delay);
+
+                try {
+                    openConnection();
+                    byte[] token = resumeToken;
+                    if (token != null) {
+                        sendResume(token);
+                    } else {
+                        sendDigestRegistration();
+                    }
+                    packetManager.startListening();
+                    outbox.attach(connection);
+                    logger.info("[{}] Reconnected to server at {}", userId, endpoint);
+                    return;
+                } catch (Exception e) {
+                    logger.warn("[{}] Reconnect attempt {} failed: {}", userId, attempt + 1, e.toString());
+                    if (packetManager != null) {
+                        packetManager.shutdown();
+                    }
+                    closeQuietly(connection);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            reconnecting.set(false);
+            // Failures surface on the listener, which may lose the new connection before this
+            // reconnect has finished and so find a reconnect still in progress
+            PacketManager manager = packetManager;
+            if (manager != null && manager.isConnectionLost()) {
+                onDisconnected();
+            }
+        }
+    }
+
+    private static void closeQuietly(PeerConnection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.close();
+        } catch (IOException e) {
+            logger.debug("Ignoring error while closing connection: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the outbox next to the key snapshot, so unacknowledged messages survive a
+     * restart, or a temporary one if no snapshot file is configured.
+     *
+     * @return the outbox
+     * @throws IOException if the outbox file cannot be opened
+     */
+    private Outbox openOutbox() throws IOException {
+        if (snapshotFile == null) {
+            return Outbox.temporary(userId, outboxCapacity);
+        }
+        Path outboxFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".outbox");
+        return Outbox.open(userId, outboxFile, outboxCapacity);
+    }
+
+    /**
+     * Builds this client's PreKeyBundle from the local store, first regenerating the
+     * bundle's prekeys if they have been consumed since it was last built. Synchronized
+     * as registration, reconnects and the server's bundle requests build it on
+     * different threads.
+     *
+     * @return the bundle as a transport DTO
+     * @throws Exception if the bundle keys cannot be loaded
+     */
+    private synchronized PreKeyBundleDTO buildBundle() throws Exception {
+        ensureBundleKeys();
+        PreKeyBundle bundle = PreKeyBundleBuilder.build(
+            signalStore.getLocalRegistrationId(),
+            userDeviceId,
+            signalStore,
+            preKeyId,
+            preKeyService.currentSignedPreKeyId()
+        );
+        return PreKeyBundleDTO.fromPreKeyBundle(bundle);
+    }
+
+    /**
+     * Uploads a batch of fresh prekeys to the server on behalf of the {@link PreKeyService}.
+     *
+     * @param batch the batch to upload
+     * @throws IOException if sending fails
+     */
+    private void uploadPreKeys(PreKeyBatchDTO batch) throws IOException {
+        connection.sendMessageObject(new Packet(userId, userDeviceId, batch));
+    }
+
+    /**
+     * Uploads this client's full PreKeyBundle to the server.
+     *
+     * @throws Exception if the bundle cannot be built or sent
+     */
+    private void uploadBundle() throws Exception {
+        connection.sendMessageObject(new Packet(userId, userDeviceId, buildBundle()));
+        logger.info("[{}] Registered PreKeyBundle with server", userId);
+    }
+
+    /**
+     * Uploads the full PreKeyBundle on the server's request, logging any failure.
+     */
+    private void onBundleRequested() {
+        try {
+            uploadBundle();
+            // A server that does not know the bundle has lost the one-time prekeys as well,
+            // e.g. because the connection they were uploaded on was refused
+            if (preKeyService != null) {
+                preKeyService.republish();
+            }
+        } catch (Exception e) {
+            logger.error("[{}] Failed to upload requested PreKeyBundle", userId, e);
+        }
+    }
+
+    /**
+     * Sets the share of outgoing messages sampled for end-to-end latency tracing.
+     *
+     * @param sampleRate the sampling rate in [0, 1]; 0 disables tracing
+     * @throws IllegalArgumentException if the rate is out of range
+     */
+    public void setTraceSampleRate(double sampleRate) {
+        PacketManager manager = packetManager;
+        if (manager != null) {
+            manager.setTraceSampleRate(sampleRate);
+        }
+        this.traceSampleRate = sampleRate;
+    }
+
+    /**
+     * Sets the callback receiving every decrypted incoming message with its plaintext.
+     * The callback runs on the connection's listener thread.
+     *
+     * @param handler the message consumer (may be null)
+     */
+    public void setMessageHandler(BiConsumer<Packet, String> handler) {
+        PacketManager manager = packetManager;
+        if (manager != null) {
+            manager.setMessageHandler(handler);
+        }
+        this.messageHandler = handler;
+    }
+
+    /**
+     * Sets the callback receiving presence changes of the users followed with
+     * {@link #followPresence}. It is called with each user's current state right after
+     * subscribing and then whenever a user comes online or goes offline.
+     *
+     * @param handler the consumer of user IDs and whether they are online (may be null)
+     */
+    public void setPresenceHandler(BiConsumer<String, Boolean> handler) {
+        PacketManager manager = packetManager;
+        if (manager != null) {
+            manager.setPresenceHandler(handler);
+        }
+        this.presenceHandler = handler;
+    }
+
+    /**
+     * Follows the presence of the given users, replacing any earlier list. The
+     * subscription is sent once the client is registered and renewed after every
+     * reconnect; an empty collection stops following everyone.
+     *
+     * @param userIds the users to follow
+     */
+    public void followPresence(Collection<String> userIds) {
+        Set<String> users = Set.copyOf(userIds);
+        this.followedUsers = users;
+        if (registered.isDone() && !registered.isCompletedExceptionally()) {
+            sendPresenceSubscription(users);
+        }
+    }
+
+    /**
+     * Sends a SUBSCRIBE_PRESENCE packet for the given users, logging any failure; a
+     * subscription lost with the connection is renewed on the next registration.
+     *
+     * @param users the users to follow
+     */
+    private void sendPresenceSubscription(Set<String> users) {
+        try {
+            Packet subscription = new Packet();
+            subscription.setType(PacketType.SUBSCRIBE_PRESENCE);
+            subscription.setSenderId(userId);
+            subscription.setSenderDeviceId(userDeviceId);
+            subscription.setPresencePayload(PresenceBatch.subscription(users));
+            connection.sendMessageObject(subscription);
+            logger.debug("[{}] Subscribed to presence of {} users", userId, users.size());
+        } catch (IOException e) {
+            logger.warn("[{}] Failed to subscribe to presence: {}", userId, e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the size of the outbox file. Takes effect only if called before the first
+     * {@link #connectToServer(String, int)}; defaults to {@link Outbox#DEFAULT_CAPACITY}.
+     *
+     * @param capacity the outbox capacity in bytes
+     */
+    public void setOutboxCapacity(int capacity) {
+        this.outboxCapacity = capacity;
+    }
+
     /**
      * Initiates a secure session with a peer and sends the initial message.
      *
@@ -144,7 +623,9 @@ public class UserClient {
     public void sendMessage(String peerId, int peerDeviceId, String message) {
         try {
             packetManager.sendMessage(peerId, peerDeviceId, message, PacketType.MESSAGE);
-            logger.info("[{}] Sent message to {}:{}", userId, peerId, peerDeviceId);
+            if (logger.isDebugEnabled()) {
+                logger.debug("[{}] Sent message to {}:{}", userId, peerId, peerDeviceId);
+            }
         } catch (Exception e) {
             logger.error("[{}] Failed to send message to {}:{}", userId, peerId, peerDeviceId, e);
         }
@@ -159,7 +640,9 @@ public class UserClient {
     public void sendAck(String peerId, int peerDeviceId) {
         try {
             packetManager.sendAck(peerId, peerDeviceId);
-            logger.info("[{}] Sent ACK to {}:{}", userId, peerId, peerDeviceId);
+            if (logger.isDebugEnabled()) {
+                logger.debug("[{}] Sent ACK to {}:{}", userId, peerId, peerDeviceId);
+            }
         } catch (Exception e) {
             logger.error("[{}] Failed to send ACK to {}:{}", userId, peerId, peerDeviceId, e);
         }
@@ -171,6 +654,18 @@ public class UserClient {
      */
     public void stop() {
         logger.info("[{}] Shutting down client...", userId);
+        stopping = true;
+        registered.completeExceptionally(new IllegalStateException("Client stopped"));
+        saveSnapshot();
+
+        if (packetManager != null) {
+            try {
+                packetManager.shutdown();
+                logger.info("[{}] PacketManager stopped", userId);
+            } catch (Exception e) {
+                logger.error("[{}] Error shutting down PacketManager", userId, e);
+            }
+        }
 
         try {
             if (connection != null) {
@@ -181,13 +676,12 @@ public class UserClient {
             logger.error("[{}] Error closing connection", userId, e);
         }
 
-        if (packetManager != null) {
-            try {
-                packetManager.shutdown();
-                logger.info("[{}] PacketManager stopped", userId);
-            } catch (Exception e) {
-                logger.error("[{}] Error shutting down PacketManager", userId, e);
-            }
+        if (preKeyService != null) {
+            preKeyService.stop();
+        }
+
+        if (outbox != null) {
+            outbox.close();
         }
 
         executor.shutdownNow();
@@ -0,0 +1,252 @@
+package com.securechat.cluster;
+
+import com.securechat.crypto.libsignal.PreKeyBatchDTO;
+import com.securechat.crypto.libsignal.PreKeyBundleDTO;
+import com.securechat.metrics.Counter;
+import com.securechat.metrics.MetricsRegistry;
+import com.securechat.network.Connector;
+import com.securechat.protocol.Packet;
+import com.securechat.protocol.PacketType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * One node's view of a SecureChat cluster: which node owns each user, where users owned
+ * by this node are connected, and the links used to forward packets to other nodes.
+ * <p>
+ * Users are assigned to nodes by a {@link HashRing} over the static membership in a
+ * {@link ClusterConfig}. A client may connect to any node. The node it connects to
+ * reports it to the user's owner with a LOCATE packet, which also carries any PreKeyBundle
+ * or prekey batch the client uploads, so the owner can serve that user's bundles and
+ * knows where to deliver to it. A packet whose recipient is not connected locally goes to
+ * the recipient's owner, and from the owner to the node the recipient is connected to:
+ * at most {@link #MAX_HOPS} forwards, after which it is dropped.
+ * </p>
+ * <p>
+ * Node links are trusted: a connection presenting a member's NODE_HELLO may forward
+ * packets for any user. The hello must therefore be signed with the cluster secret from
+ * the {@link ClusterConfig} (see {@link NodeAuthenticator}). Links are not encrypted, so
+ * cluster ports still belong on a private network.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class Cluster {
+
+    private static final Logger logger = LoggerFactory.getLogger(Cluster.class);
+
+    /** Forwards a packet may take: sender's node to owner, owner to the recipient's node. */
+    public static final int MAX_HOPS = 2;
+
+    private final ClusterConfig config;
+    private final String nodeId;
+    private final String logPrefix;
+    private final HashRing ring;
+    private final Map<String, NodeLink> links = new HashMap<>();
+    private final NodeAuthenticator authenticator;
+    private final ScheduledExecutorService linkExecutor;
+
+    /** Maps "userId:deviceId" -> node the device is connected to, for users owned here. */
+    private final Map<String, String> locations = new ConcurrentHashMap<>();
+
+    private final Counter forwarded = MetricsRegistry.global().counter("cluster.forwarded");
+    private final Counter forwardFailed = MetricsRegistry.global().counter("cluster.forward.failed");
+    private final Counter hopsExceeded = MetricsRegistry.global().counter("cluster.hops.exceeded");
+
+    /**
+     * Creates the cluster view for the local node. Links to the other members start
+     * opening in the background at once.
+     *
+     * @param config the static membership
+     */
+    public Cluster(ClusterConfig config) {
+        this.config = config;
+        this.nodeId = config.getNodeId();
+        this.logPrefix = "[Cluster-" + nodeId + "]";
+        this.ring = new HashRing(config.getMembers().keySet(), config.getVirtualNodes());
+        this.authenticator = new NodeAuthenticator(config.getSecret());
+        // One thread per link, so a member that is slow to connect to does not hold up the others
+        this.linkExecutor = Executors.newScheduledThreadPool(Math.max(1, config.getMembers().size() - 1), r -> {
+            Thread t = new Thread(r, "Cluster-" + nodeId + "-links");
+            t.setDaemon(true);
+            return t;
+        });
+        config.getMembers().forEach((id, endpoint) -> {
+            if (!id.equals(nodeId)) {
+                links.put(id, new NodeLink(nodeId, id, Connector.forEndpoint(endpoint), authenticator, linkExecutor));
+            }
+        });
+        links.values().forEach(NodeLink::start);
+        logger.info("{} Joined cluster of {} nodes", logPrefix, config.getMembers().size());
+    }
+
+    /**
+     * Returns the local node's ID.
+     *
+     * @return the node ID
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Returns the static membership this view was built from.
+     *
+     * @return the configuration
+     */
+    public ClusterConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Returns whether a node ID names a cluster member.
+     *
+     * @param id the node ID
+     * @return true if it is a member
+     */
+    public boolean isMember(String id) {
+        return config.getMembers().containsKey(id);
+    }
+
+    /**
+     * Checks that a NODE_HELLO received here comes from a member holding the cluster
+     * secret, is addressed to this node and is not a replay.
+     *
+     * @param hello the hello, naming the sending node in its sender ID
+     * @return true if the hello is authentic
+     */
+    public boolean verifyHello(Packet hello) {
+        return isMember(hello.getSenderId()) && !nodeId.equals(hello.getSenderId())
+                && authenticator.verify(hello, nodeId);
+    }
+
+    /**
+     * Returns the node owning a user.
+     *
+     * @param userId the user ID
+     * @return the owning node's ID
+     */
+    public String ownerOf(String userId) {
+        return ring.ownerOf(userId);
+    }
+
+    /**
+     * Returns whether the local node owns a user.
+     *
+     * @param userId the user ID
+     * @return true if the user is owned here
+     */
+    public boolean owns(String userId) {
+        return nodeId.equals(ring.ownerOf(userId));
+    }
+
+    /**
+     * Records where a device of a user owned here is connected.
+     *
+     * @param userId   the user ID
+     * @param deviceId the device ID
+     * @param node     the node the device is connected to
+     */
+    public void locate(String userId, int deviceId, String node) {
+        locations.put(userId + ":" + deviceId, node);
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} Located '{}@{}' at {}", logPrefix, userId, deviceId, node);
+        }
+    }
+
+    /**
+     * Tells a user's owner that one of the user's devices is connected here, with a copy
+     * of the bundle or prekey batch it just uploaded, if any. Does nothing for users
+     * owned here.
+     *
+     * @param userId   the user ID
+     * @param deviceId the device ID
+     * @param bundle   the uploaded bundle (may be null)
+     * @param batch    the uploaded prekey batch (may be null)
+     */
+    public void publishLocation(String userId, int deviceId, PreKeyBundleDTO bundle, PreKeyBatchDTO batch) {
+        String owner = ring.ownerOf(userId);
+        if (owner.equals(nodeId)) {
+            return;
+        }
+        Packet locate = new Packet();
+        locate.setType(PacketType.LOCATE);
+        locate.setSenderId(userId);
+        locate.setSenderDeviceId(deviceId);
+        locate.setMessagePayload(nodeId.getBytes(StandardCharsets.UTF_8));
+        locate.setPreKeyBundlePayload(bundle);
+        locate.setPreKeyBatchPayload(batch);
+        if (!links.get(owner).send(locate)) {
+            forwardFailed.increment();
+            logger.warn("{} Could not report '{}@{}' to owner {}", logPrefix, userId, deviceId, owner);
+        }
+    }
+
+    /**
+     * Forwards a packet toward its recipient, which is not connected to this node: to
+     * the recipient's owner, or, on the owner, to the node the recipient is located at.
+     *
+     * @param packet the packet
+     * @return true if the packet was handed to a link; false if there is no route, the
+     *         hop limit was reached or the link is down
+     */
+    public boolean forward(Packet packet) {
+        String recipientId = packet.getRecipientId();
+        String target = ring.ownerOf(recipientId);
+        if (target.equals(nodeId)) {
+            target = locations.get(recipientId + ":" + packet.getRecipientDeviceId());
+            if (target == null || target.equals(nodeId)) {
+                return false;
+            }
+        }
+        return forwardTo(target, packet);
+    }
+
+    /**
+     * Forwards a request about a user, such as a GET_PREKEY_BUNDLE, to the user's owner.
+     *
+     * @param userId the user the request is about
+     * @param packet the request
+     * @return true if the packet was handed to a link
+     */
+    public boolean forwardToOwner(String userId, Packet packet) {
+        String owner = ring.ownerOf(userId);
+        return !owner.equals(nodeId) && forwardTo(owner, packet);
+    }
+
+    private boolean forwardTo(String target, Packet packet) {
+        if (packet.getHops() >= MAX_HOPS) {
+            hopsExceeded.increment();
+            logger.warn("{} Dropping {} for '{}@{}' after {} hops", logPrefix, packet.getType(),
+                    packet.getRecipientId(), packet.getRecipientDeviceId(), packet.getHops());
+            return false;
+        }
+        packet.setHops(packet.getHops() + 1);
+        if (!links.get(target).send(packet)) {
+            forwardFailed.increment();
+            return false;
+        }
+        forwarded.increment();
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} Forwarded {} for '{}@{}' to {}", logPrefix, packet.getType(),
+                    packet.getRecipientId(), packet.getRecipientDeviceId(), target);
+        }
+        return true;
+    }
+
+    /**
+     * Closes the links to the other nodes.
+     */
+    public void close() {
+        linkExecutor.shutdownNow();
+        links.values().forEach(NodeLink::close);
+    }
+}
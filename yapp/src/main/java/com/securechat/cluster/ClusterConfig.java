@@ -0,0 +1,159 @@
+package com.securechat.cluster;
+
+import com.securechat.config.ConfigLoader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Static membership of a SecureChat cluster: the local node's ID, the endpoint of
+ * every node, this one included, and the secret nodes prove membership with.
+ * <p>
+ * Membership is read from configuration rather than discovered, so every node must be
+ * given the same member list and secret. In properties form:
+ * </p>
+ * <pre>
+ * cluster.members=node1=localhost:8891,node2=localhost:8892,node3=localhost:8893
+ * cluster.virtualNodes=128
+ * cluster.secret=at least 16 characters shared by every node
+ * </pre>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public final class ClusterConfig {
+
+    /** Ring positions per node when not configured. */
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    /** Shortest accepted cluster secret, in bytes. */
+    public static final int MIN_SECRET_LENGTH = 16;
+
+    private final String nodeId;
+    private final Map<String, String> members;
+    private final int virtualNodes;
+    private final byte[] secret;
+
+    /**
+     * Creates a cluster configuration.
+     *
+     * @param nodeId       the ID of the local node
+     * @param members      node ID to {@code host:port} endpoint for every node, including this one
+     * @param virtualNodes ring positions per node
+     * @param secret       the secret shared by every node, signing the NODE_HELLO that opens a link
+     * @throws IllegalArgumentException if the local node is not a member or an argument is invalid
+     */
+    public ClusterConfig(String nodeId, Map<String, String> members, int virtualNodes, byte[] secret) {
+        if (nodeId == null || members == null || !members.containsKey(nodeId)) {
+            throw new IllegalArgumentException("Local node '" + nodeId + "' must be listed in the cluster members");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be at least 1");
+        }
+        if (secret == null || secret.length < MIN_SECRET_LENGTH) {
+            throw new IllegalArgumentException("The cluster secret must be at least " + MIN_SECRET_LENGTH + " bytes");
+        }
+        this.nodeId = nodeId;
+        this.members = Collections.unmodifiableMap(new LinkedHashMap<>(members));
+        this.virtualNodes = virtualNodes;
+        this.secret = secret.clone();
+    }
+
+    /**
+     * Parses a member list of the form {@code id=host:port,id=host:port}.
+     *
+     * @param nodeId       the ID of the local node
+     * @param members      the member list
+     * @param virtualNodes ring positions per node
+     * @param secret       the cluster secret
+     * @return the configuration
+     * @throws IllegalArgumentException if the list is malformed or the secret too short
+     */
+    public static ClusterConfig parse(String nodeId, String members, int virtualNodes, String secret) {
+        if (members == null || members.isBlank()) {
+            throw new IllegalArgumentException("Cluster member list is empty");
+        }
+        Map<String, String> parsed = new LinkedHashMap<>();
+        for (String entry : members.split(",")) {
+            int eq = entry.indexOf('=');
+            if (eq <= 0 || eq == entry.length() - 1) {
+                throw new IllegalArgumentException("Expected id=host:port but got: " + entry.trim());
+            }
+            String id = entry.substring(0, eq).trim();
+            if (parsed.put(id, entry.substring(eq + 1).trim()) != null) {
+                throw new IllegalArgumentException("Duplicate cluster member: " + id);
+            }
+        }
+        if (secret == null) {
+            throw new IllegalArgumentException("Cluster secret is missing");
+        }
+        return new ClusterConfig(nodeId, parsed, virtualNodes, secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads {@code cluster.members}, {@code cluster.virtualNodes} and {@code cluster.secret}
+     * from a configuration.
+     *
+     * @param config the loaded configuration
+     * @param nodeId the ID of the local node
+     * @return the configuration
+     * @throws IllegalArgumentException if the member list or secret is missing or malformed
+     */
+    public static ClusterConfig load(ConfigLoader config, String nodeId) {
+        return parse(nodeId, config.get("cluster.members"), config.getInt("cluster.virtualNodes", DEFAULT_VIRTUAL_NODES),
+                config.get("cluster.secret"));
+    }
+
+    /**
+     * Returns the ID of the local node.
+     *
+     * @return the local node ID
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Returns every member's endpoint keyed by node ID, in configuration order.
+     *
+     * @return an unmodifiable map of node ID to {@code host:port}
+     */
+    public Map<String, String> getMembers() {
+        return members;
+    }
+
+    /**
+     * Returns the number of ring positions per node.
+     *
+     * @return the virtual node count
+     */
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * Returns the secret shared by every node.
+     *
+     * @return a copy of the secret
+     */
+    public byte[] getSecret() {
+        return secret.clone();
+    }
+
+    /**
+     * Returns the TCP port of the local node's endpoint.
+     *
+     * @return the port the local server should listen on
+     * @throws IllegalArgumentException if the endpoint has no valid port
+     */
+    public int getLocalPort() {
+        String endpoint = members.get(nodeId);
+        try {
+            return Integer.parseInt(endpoint.substring(endpoint.lastIndexOf(':') + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port in endpoint of node '" + nodeId + "': " + endpoint, e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.securechat.cluster;
+
+import com.securechat.config.ConfigLoader;
+import com.securechat.server.Server;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Runs one cluster node as its own process. The membership is read from
+ * {@code cluster.properties} on the classpath and the node listens on the port of its
+ * own endpoint there, so a local cluster is several processes started with different IDs:
+ * <pre>
+ * java com.securechat.cluster.ClusterNode node1
+ * java com.securechat.cluster.ClusterNode node2
+ * java com.securechat.cluster.ClusterNode node3
+ * </pre>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public final class ClusterNode {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClusterNode.class);
+
+    /** Classpath resource holding the cluster membership. */
+    public static final String CONFIG_FILE = "cluster.properties";
+
+    /** Suffix of the per-node prekey directory file created in the working directory. */
+    public static final String PREKEY_DIRECTORY_SUFFIX = ".prekeys";
+
+    private ClusterNode() {
+    }
+
+    /**
+     * Starts the node named by the first argument and serves until the process exits.
+     *
+     * @param args the node ID
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: ClusterNode <node-id>");
+            System.exit(2);
+        }
+        ClusterConfig config = ClusterConfig.load(new ConfigLoader(CONFIG_FILE), args[0]);
+        Server server = new Server(config.getLocalPort());
+        server.setCluster(new Cluster(config));
+        try {
+            server.setPreKeyDirectory(Path.of(config.getNodeId() + PREKEY_DIRECTORY_SUFFIX));
+        } catch (IOException e) {
+            logger.error("[ClusterNode] Cannot open the prekey directory", e);
+            System.exit(1);
+        }
+        logger.info("[ClusterNode] Starting node {} of {}", config.getNodeId(), config.getMembers().keySet());
+        server.start();
+    }
+}
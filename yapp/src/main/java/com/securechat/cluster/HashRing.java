@@ -0,0 +1,92 @@
+package com.securechat.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * A consistent-hash ring assigning each user to one node.
+ * <p>
+ * Every node is placed at several pseudo-random positions (virtual nodes) and a key
+ * belongs to the first node at or after the key's own position, wrapping around. Adding
+ * or removing a node therefore moves only the keys in that node's share of the ring, and
+ * the virtual nodes keep the shares even. The ring is immutable; lookups are a binary
+ * search over a sorted array.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public final class HashRing {
+
+    private final long[] points;
+    private final String[] owners;
+
+    /**
+     * Builds a ring over the given nodes.
+     *
+     * @param nodeIds      the node IDs (non-empty)
+     * @param virtualNodes positions per node, at least 1
+     * @throws IllegalArgumentException if there are no nodes or {@code virtualNodes} is less than 1
+     */
+    public HashRing(Collection<String> nodeIds, int virtualNodes) {
+        if (nodeIds.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("A ring needs at least one node and one virtual node per node");
+        }
+        record Point(long position, String owner) {}
+        Point[] all = new Point[nodeIds.size() * virtualNodes];
+        int i = 0;
+        for (String node : nodeIds) {
+            for (int v = 0; v < virtualNodes; v++) {
+                all[i++] = new Point(hash(node + "#" + v), node);
+            }
+        }
+        // Ties are broken by node ID so every member builds the same ring
+        Arrays.sort(all, Comparator.comparingLong(Point::position).thenComparing(Point::owner));
+        points = new long[all.length];
+        owners = new String[all.length];
+        for (i = 0; i < all.length; i++) {
+            points[i] = all[i].position();
+            owners[i] = all[i].owner();
+        }
+    }
+
+    /**
+     * Returns the node owning a key.
+     *
+     * @param key the key, typically a user ID
+     * @return the owning node's ID
+     */
+    public String ownerOf(String key) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+            if (index == points.length) {
+                index = 0;
+            }
+        }
+        return owners[index];
+    }
+
+    /**
+     * Hashes a string to a ring position: 64-bit FNV-1a over its UTF-8 bytes, finished
+     * with the MurmurHash3 mixer so that similar keys land far apart.
+     *
+     * @param key the string
+     * @return the position
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
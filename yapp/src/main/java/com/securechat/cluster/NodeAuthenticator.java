@@ -0,0 +1,153 @@
+package com.securechat.cluster;
+
+import com.securechat.protocol.Packet;
+import com.securechat.protocol.PacketType;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signs and checks the NODE_HELLO that opens an inter-node link, with an HMAC-SHA256
+ * under the cluster's shared secret.
+ * <p>
+ * The hello names the sending node in its sender ID. Its payload holds the receiving
+ * node's ID, the sending time, a random nonce and the MAC over all of these plus the
+ * sender ID: {@code [UTF to][long millis][16-byte nonce][32-byte MAC]}. A hello is
+ * accepted only by the node it names, within {@link #MAX_CLOCK_SKEW_MILLIS} of its
+ * sending time, and only once, so a captured hello cannot be replayed to open a link.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+final class NodeAuthenticator {
+
+    /** How far a hello's sending time may be from the receiver's clock. */
+    static final long MAX_CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int NONCE_SIZE = 16;
+    private static final int MAC_SIZE = 32;
+
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+
+    /** Nonces of accepted hellos, with the time after which they can no longer be replayed. */
+    private final Map<String, Long> seenNonces = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an authenticator for the given shared secret.
+     *
+     * @param secret the cluster secret (non-empty)
+     */
+    NodeAuthenticator(byte[] secret) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    /**
+     * Builds a signed NODE_HELLO.
+     *
+     * @param fromNode the local node's ID
+     * @param toNode   the ID of the node the link is opened to
+     * @return the hello packet
+     */
+    Packet hello(String fromNode, String toNode) {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        byte[] signed = signedPart(toNode, System.currentTimeMillis(), nonce);
+
+        Packet hello = new Packet();
+        hello.setType(PacketType.NODE_HELLO);
+        hello.setSenderId(fromNode);
+        hello.setSenderDeviceId(-1);
+        byte[] payload = Arrays.copyOf(signed, signed.length + MAC_SIZE);
+        System.arraycopy(mac(fromNode, signed), 0, payload, signed.length, MAC_SIZE);
+        hello.setMessagePayload(payload);
+        return hello;
+    }
+
+    /**
+     * Checks a NODE_HELLO received by the local node.
+     *
+     * @param hello     the hello, naming the sending node in its sender ID
+     * @param localNode the local node's ID
+     * @return true if the hello is signed with the cluster secret, addressed to this node,
+     *         recent and not seen before
+     */
+    boolean verify(Packet hello, String localNode) {
+        byte[] payload = hello.getMessagePayload();
+        if (hello.getSenderId() == null || payload == null || payload.length <= MAC_SIZE) {
+            return false;
+        }
+        byte[] signed = Arrays.copyOf(payload, payload.length - MAC_SIZE);
+        byte[] mac = Arrays.copyOfRange(payload, signed.length, payload.length);
+        if (!MessageDigest.isEqual(mac, mac(hello.getSenderId(), signed))) {
+            return false;
+        }
+
+        String toNode;
+        long sentMillis;
+        byte[] nonce = new byte[NONCE_SIZE];
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(signed));
+            toNode = in.readUTF();
+            sentMillis = in.readLong();
+            in.readFully(nonce);
+        } catch (IOException e) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (!localNode.equals(toNode) || Math.abs(now - sentMillis) > MAX_CLOCK_SKEW_MILLIS) {
+            return false;
+        }
+
+        seenNonces.values().removeIf(expiry -> expiry < now);
+        return seenNonces.putIfAbsent(HexFormat.of().formatHex(nonce), sentMillis + MAX_CLOCK_SKEW_MILLIS) == null;
+    }
+
+    private static byte[] signedPart(String toNode, long sentMillis, byte[] nonce) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(toNode);
+            out.writeLong(sentMillis);
+            out.write(nonce);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Computes the MAC over the length-prefixed sender ID followed by the signed part.
+     */
+    private byte[] mac(String fromNode, byte[] signed) {
+        byte[] from = fromNode.getBytes(StandardCharsets.UTF_8);
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            mac.update(ByteBuffer.allocate(Integer.BYTES).putInt(from.length).array());
+            mac.update(from);
+            return mac.doFinal(signed);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 unavailable", e);
+        }
+    }
+}
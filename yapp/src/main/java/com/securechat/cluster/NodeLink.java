@@ -0,0 +1,210 @@
+package com.securechat.cluster;
+
+import com.securechat.network.Connector;
+import com.securechat.network.PeerConnection;
+import com.securechat.protocol.Packet;
+import com.securechat.protocol.PacketType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent outbound link from this node to one other cluster member.
+ * <p>
+ * All traffic for every user owned by or located at the remote node shares the link. It
+ * opens with a NODE_HELLO naming this node and signed with the cluster secret, so the
+ * remote server treats the connection as a node link rather than a client. Only this side
+ * writes packets; a reader thread answers the remote server's heartbeat PINGs and notices
+ * when the link drops.
+ * </p>
+ * <p>
+ * Connecting blocks, so it never happens on the sending thread, which is usually one of
+ * the server's dispatch workers. The link is opened on the cluster's link executor once
+ * {@link #start()} is called, and reopened there every {@link #RETRY_DELAY_MILLIS} after a
+ * failure until it is up again. Packets sent while the link is down are reported as not
+ * forwarded.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+final class NodeLink {
+
+    private static final Logger logger = LoggerFactory.getLogger(NodeLink.class);
+
+    /** Minimum time between attempts to open a failed link. */
+    static final long RETRY_DELAY_MILLIS = 1_000;
+
+    private final String localNodeId;
+    private final String remoteNodeId;
+    private final Connector connector;
+    private final NodeAuthenticator authenticator;
+    private final ScheduledExecutorService executor;
+    private final String logPrefix;
+
+    private volatile PeerConnection connection;  // written under this
+    private boolean opening;                     // guarded by this
+    private boolean closed;                      // guarded by this
+
+    NodeLink(String localNodeId, String remoteNodeId, Connector connector,
+             NodeAuthenticator authenticator, ScheduledExecutorService executor) {
+        this.localNodeId = localNodeId;
+        this.remoteNodeId = remoteNodeId;
+        this.connector = connector;
+        this.authenticator = authenticator;
+        this.executor = executor;
+        this.logPrefix = "[" + localNodeId + "->" + remoteNodeId + "]";
+    }
+
+    /**
+     * Starts opening the link in the background.
+     */
+    synchronized void start() {
+        scheduleOpen(0);
+    }
+
+    /**
+     * Sends a packet to the remote node. Never connects: while the link is down the
+     * packet is not sent, and the link is being reopened in the background.
+     *
+     * @param packet the packet
+     * @return true if the packet was handed to the link
+     */
+    boolean send(Packet packet) {
+        PeerConnection conn = connection;
+        if (conn == null) {
+            synchronized (this) {
+                scheduleOpen(0);
+            }
+            return false;
+        }
+        try {
+            conn.sendMessageObject(packet);
+            return true;
+        } catch (IOException e) {
+            synchronized (this) {
+                if (connection == conn) {
+                    logger.warn("{} Link failed while sending: {}", logPrefix, e.getMessage());
+                    drop(conn);
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Schedules an attempt to open the link, unless it is open, being opened or closed.
+     * Caller holds the lock.
+     *
+     * @param delayMillis how long to wait before connecting
+     */
+    private void scheduleOpen(long delayMillis) {
+        if (closed || opening || connection != null) {
+            return;
+        }
+        opening = true;
+        try {
+            executor.schedule(this::open, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            opening = false; // the cluster is shutting down
+        }
+    }
+
+    /**
+     * Opens the link and starts its reader, or schedules another attempt after
+     * {@link #RETRY_DELAY_MILLIS}. Runs on the link executor.
+     */
+    private void open() {
+        PeerConnection conn = null;
+        try {
+            conn = connector.connect();
+            conn.sendMessageObject(authenticator.hello(localNodeId, remoteNodeId));
+        } catch (IOException e) {
+            logger.warn("{} Cannot open link: {}", logPrefix, e.getMessage());
+            if (conn != null) {
+                closeQuietly(conn);
+            }
+            synchronized (this) {
+                opening = false;
+                scheduleOpen(RETRY_DELAY_MILLIS);
+            }
+            return;
+        }
+        synchronized (this) {
+            opening = false;
+            if (closed) {
+                closeQuietly(conn);
+                return;
+            }
+            connection = conn;
+        }
+        PeerConnection opened = conn;
+        Thread reader = new Thread(() -> read(opened), "NodeLink-" + localNodeId + "-" + remoteNodeId);
+        reader.setDaemon(true);
+        reader.start();
+        logger.info("{} Link opened", logPrefix);
+    }
+
+    /**
+     * Reader loop: answers heartbeats until the link fails or is closed.
+     *
+     * @param conn the link connection
+     */
+    private void read(PeerConnection conn) {
+        try {
+            while (true) {
+                Object obj = conn.receiveMessageObject();
+                if (obj instanceof Packet packet && packet.getType() == PacketType.PING) {
+                    Packet pong = new Packet();
+                    pong.setType(PacketType.PONG);
+                    pong.setSenderId(localNodeId);
+                    pong.setSenderDeviceId(-1);
+                    conn.sendMessageObject(pong);
+                }
+            }
+        } catch (Exception e) {
+            synchronized (this) {
+                if (connection == conn && !closed) {
+                    logger.warn("{} Link lost: {}", logPrefix, e.toString());
+                    drop(conn);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a failed connection and schedules the link to be reopened. Caller holds the lock.
+     *
+     * @param conn the failed connection
+     */
+    private void drop(PeerConnection conn) {
+        if (connection == conn) {
+            connection = null;
+        }
+        closeQuietly(conn);
+        scheduleOpen(RETRY_DELAY_MILLIS);
+    }
+
+    /**
+     * Closes the link for good.
+     */
+    synchronized void close() {
+        closed = true;
+        if (connection != null) {
+            closeQuietly(connection);
+            connection = null;
+        }
+    }
+
+    private void closeQuietly(PeerConnection conn) {
+        try {
+            conn.close();
+        } catch (IOException e) {
+            logger.debug("{} Ignoring error while closing link: {}", logPrefix, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.securechat.crypto.libsignal;
+
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+import java.io.Serializable;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Data Transfer Object (DTO) carrying a batch of public one-time prekeys, and
+ * optionally a rotated signed prekey, uploaded by a client to replenish the
+ * server's supply for session initiation.
+ *
+ * <p>One-time prekeys are held in parallel arrays of IDs and Base64-encoded public
+ * keys to keep large batches compact on the wire.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class PreKeyBatchDTO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int[] preKeyIds = new int[0];
+    private String[] preKeyPublics = new String[0];   // Base64-encoded public keys
+
+    private int signedPreKeyId = -1;                  // -1 when no signed prekey is included
+    private String signedPreKeyPublic;                // Base64-encoded signed public key
+    private String signedPreKeySignature;             // Base64-encoded signature
+
+    /**
+     * Builds a batch from locally generated key records. Only public keys are copied.
+     *
+     * @param preKeys      the one-time prekeys to upload (non-null, may be empty)
+     * @param signedPreKey a newly rotated signed prekey, or null if unchanged
+     * @return the batch DTO
+     */
+    public static PreKeyBatchDTO of(List<PreKeyRecord> preKeys, SignedPreKeyRecord signedPreKey) {
+        PreKeyBatchDTO dto = new PreKeyBatchDTO();
+        dto.preKeyIds = new int[preKeys.size()];
+        dto.preKeyPublics = new String[preKeys.size()];
+        for (int i = 0; i < preKeys.size(); i++) {
+            PreKeyRecord record = preKeys.get(i);
+            dto.preKeyIds[i] = record.getId();
+            dto.preKeyPublics[i] = Base64.getEncoder().encodeToString(record.getKeyPair().getPublicKey().serialize());
+        }
+        if (signedPreKey != null) {
+            dto.signedPreKeyId = signedPreKey.getId();
+            dto.signedPreKeyPublic = Base64.getEncoder().encodeToString(signedPreKey.getKeyPair().getPublicKey().serialize());
+            dto.signedPreKeySignature = Base64.getEncoder().encodeToString(signedPreKey.getSignature());
+        }
+        return dto;
+    }
+
+    /**
+     * Returns whether this batch carries a rotated signed prekey.
+     *
+     * @return true if a signed prekey is included
+     */
+    public boolean hasSignedPreKey() {
+        return signedPreKeyId >= 0 && signedPreKeyPublic != null && signedPreKeySignature != null;
+    }
+
+    /**
+     * Returns the number of one-time prekeys in this batch.
+     *
+     * @return the one-time prekey count
+     */
+    public int size() {
+        return preKeyIds.length;
+    }
+
+    @Override
+    public String toString() {
+        return "PreKeyBatchDTO{" +
+                "preKeys=" + preKeyIds.length +
+                ", signedPreKeyId=" + signedPreKeyId +
+                '}';
+    }
+
+    // Getters
+
+    public int[] getPreKeyIds() {
+        return preKeyIds;
+    }
+
+    public String[] getPreKeyPublics() {
+        return preKeyPublics;
+    }
+
+    public int getSignedPreKeyId() {
+        return signedPreKeyId;
+    }
+
+    public String getSignedPreKeyPublic() {
+        return signedPreKeyPublic;
+    }
+
+    public String getSignedPreKeySignature() {
+        return signedPreKeySignature;
+    }
+}
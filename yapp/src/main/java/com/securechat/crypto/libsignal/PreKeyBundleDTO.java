@@ -8,6 +8,9 @@ import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.state.PreKeyBundle;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 
 /**
@@ -121,6 +124,67 @@ public class PreKeyBundleDTO implements Serializable {
         }
     }
 
+    /**
+     * Returns a copy of this bundle carrying a different one-time prekey.
+     *
+     * @param preKeyId     the one-time prekey ID
+     * @param preKeyPublic the Base64-encoded one-time public prekey
+     * @return a new DTO; this instance is unchanged
+     */
+    public PreKeyBundleDTO withPreKey(int preKeyId, String preKeyPublic) {
+        PreKeyBundleDTO copy = copy();
+        copy.setPreKeyId(preKeyId);
+        copy.setPreKeyPublic(preKeyPublic);
+        return copy;
+    }
+
+    /**
+     * Returns a copy of this bundle carrying a rotated signed prekey.
+     *
+     * @param signedPreKeyId        the signed prekey ID
+     * @param signedPreKeyPublic    the Base64-encoded signed public prekey
+     * @param signedPreKeySignature the Base64-encoded signature
+     * @return a new DTO; this instance is unchanged
+     */
+    public PreKeyBundleDTO withSignedPreKey(int signedPreKeyId, String signedPreKeyPublic, String signedPreKeySignature) {
+        PreKeyBundleDTO copy = copy();
+        copy.setSignedPreKeyId(signedPreKeyId);
+        copy.setSignedPreKeyPublic(signedPreKeyPublic);
+        copy.setSignedPreKeySignature(signedPreKeySignature);
+        return copy;
+    }
+
+    private PreKeyBundleDTO copy() {
+        PreKeyBundleDTO copy = new PreKeyBundleDTO();
+        copy.setRegistrationId(registrationId);
+        copy.setDeviceId(deviceId);
+        copy.setPreKeyId(preKeyId);
+        copy.setPreKeyPublic(preKeyPublic);
+        copy.setSignedPreKeyId(signedPreKeyId);
+        copy.setSignedPreKeyPublic(signedPreKeyPublic);
+        copy.setSignedPreKeySignature(signedPreKeySignature);
+        copy.setIdentityKey(identityKey);
+        return copy;
+    }
+
+    /**
+     * Computes a SHA-256 digest over all bundle fields. Two DTOs describing the same
+     * bundle produce the same digest, which lets a client confirm the server already
+     * holds its bundle without uploading it again.
+     *
+     * @return the 32-byte digest
+     */
+    public byte[] digest() {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            String canonical = registrationId + "|" + deviceId + "|" + preKeyId + "|" + preKeyPublic + "|"
+                    + signedPreKeyId + "|" + signedPreKeyPublic + "|" + signedPreKeySignature + "|" + identityKey;
+            return sha.digest(canonical.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
     /**
      * Validates that all required fields for a {@link PreKeyBundle} are present.
      *
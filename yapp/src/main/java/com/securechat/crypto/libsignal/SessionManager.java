@@ -1,5 +1,7 @@
 package com.securechat.crypto.libsignal;
 
+import com.securechat.jfr.SessionEstablishedEvent;
+import com.securechat.network.Outbox;
 import com.securechat.network.PeerConnection;
 import com.securechat.protocol.Packet;
 import com.securechat.protocol.PacketType;
@@ -32,6 +34,7 @@ public class SessionManager {
     private final SignalProtocolManager SPManager;
     private final PeerConnection connection;
     private final Map<String, CompletableFuture<Packet>> pendingRequests;
+    private volatile Outbox outbox;
 
     /**
      * Constructs a new SessionManager instance.
@@ -53,6 +56,16 @@ public class SessionManager {
         this.pendingRequests = pendingRequests;
     }
 
+    /**
+     * Sets the outbox through which initial PreKey messages are sent, so they are
+     * replayed after a reconnect like any other message.
+     *
+     * @param outbox the client outbox (may be null to send directly)
+     */
+    public void setOutbox(Outbox outbox) {
+        this.outbox = outbox;
+    }
+
     /**
      * Establishes a secure session with a remote peer by fetching their PreKey bundle,
      * initializing the session, and sending the first encrypted PreKey message.
@@ -71,11 +84,18 @@ public class SessionManager {
         }
 
         SignalProtocolAddress peerAddress = new SignalProtocolAddress(peerId, peerDeviceId);
+        SessionEstablishedEvent event = new SessionEstablishedEvent();
+        event.begin();
 
         fetchPreKeyBundle(peerId, peerDeviceId)
             .thenAccept(bundle -> {
                 try {
                     new SessionBuilder(SPManager.getStore(), peerAddress).process(bundle);
+                    if (event.shouldCommit()) {
+                        event.peer = peerId;
+                        event.deviceId = peerDeviceId;
+                        event.commit();
+                    }
                     logger.info("[{}] Session successfully established with {}", userId, peerKey);
                     sendPreKeyMessage(peerId, peerDeviceId, initialMessage);
                 } catch (Exception e) {
@@ -104,7 +124,7 @@ public class SessionManager {
         try {
             Packet request = new Packet(userId, userDeviceId, peerId, peerDeviceId);
             connection.sendMessageObject(request);
-            logger.info("[{}] Sent PREKEY_BUNDLE request to {}:{}", userId, peerId, peerDeviceId);
+            logger.debug("[{}] Sent PREKEY_BUNDLE request to {}:{}", userId, peerId, peerDeviceId);
         } catch (Exception e) {
             pendingRequests.remove(key);
             responseFuture.completeExceptionally(e);
@@ -130,8 +150,13 @@ public class SessionManager {
         try {
             byte[] encrypted = SPManager.encryptPreKeyMessage(peerId, peerDeviceId, message);
             Packet packet = new Packet(userId, userDeviceId, peerId, peerDeviceId, encrypted, PacketType.PREKEY_MESSAGE);
-            connection.sendMessageObject(packet);
-            logger.info("[{}] Sent PREKEY_MESSAGE to {}:{}", userId, peerId, peerDeviceId);
+            Outbox box = outbox;
+            if (box == null) {
+                connection.sendMessageObject(packet);
+            } else if (!box.enqueue(packet)) {
+                throw new IllegalStateException("Outbox rejected PREKEY_MESSAGE");
+            }
+            logger.debug("[{}] Sent PREKEY_MESSAGE to {}:{}", userId, peerId, peerDeviceId);
         } catch (Exception e) {
             logger.error("[{}] Failed to send PREKEY_MESSAGE to {}:{} - {}", userId, peerId, peerDeviceId, e.getMessage(), e);
         }
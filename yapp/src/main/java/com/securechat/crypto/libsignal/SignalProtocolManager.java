@@ -1,5 +1,10 @@
 package com.securechat.crypto.libsignal;
 
+import com.securechat.jfr.MessageDecryptedEvent;
+import com.securechat.jfr.MessageEncryptedEvent;
+import com.securechat.metrics.Counter;
+import com.securechat.metrics.Histogram;
+import com.securechat.metrics.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.libsignal.*;
@@ -40,6 +45,12 @@ public class SignalProtocolManager {
 
     private final SignalProtocolStore store;
 
+    private final Histogram encryptLatency = MetricsRegistry.global().histogram("crypto.encrypt.MESSAGE");
+    private final Histogram encryptPreKeyLatency = MetricsRegistry.global().histogram("crypto.encrypt.PREKEY_MESSAGE");
+    private final Histogram decryptLatency = MetricsRegistry.global().histogram("crypto.decrypt.MESSAGE");
+    private final Histogram decryptPreKeyLatency = MetricsRegistry.global().histogram("crypto.decrypt.PREKEY_MESSAGE");
+    private final Counter decryptFailures = MetricsRegistry.global().counter("crypto.decrypt.failed");
+
     /**
      * Constructs a new {@code SignalProtocolManager} using the provided {@link SignalProtocolStore}.
      *
@@ -94,9 +105,18 @@ public class SignalProtocolManager {
     public boolean hasSession(String peerId, int deviceId) {
         SignalProtocolAddress address = new SignalProtocolAddress(peerId, deviceId);
         try {
+            // Avoid loadSession on a miss: it would allocate a fresh SessionRecord just to discard it
+            if (!store.containsSession(address)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("{} Session check for peer {} device {}: false", LOG_PREFIX, peerId, deviceId);
+                }
+                return false;
+            }
             SessionRecord record = store.loadSession(address);
             boolean exists = record != null && record.getSessionState().getSessionVersion() > 0;
-            logger.debug("{} Session check for peer {} device {}: {}", LOG_PREFIX, peerId, deviceId, exists);
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} Session check for peer {} device {}: {}", LOG_PREFIX, peerId, deviceId, exists);
+            }
             return exists;
         } catch (Exception e) {
             logger.warn("{} Error checking session for peer {} device {}: {}", LOG_PREFIX, peerId, deviceId, e.getMessage(), e);
@@ -120,15 +140,23 @@ public class SignalProtocolManager {
             throw new IllegalStateException(errMsg);
         }
 
+        long start = System.nanoTime();
+        MessageEncryptedEvent event = new MessageEncryptedEvent();
+        event.begin();
         SignalProtocolAddress address = new SignalProtocolAddress(peerId, deviceId);
         SessionCipher cipher = new SessionCipher(store, address);
         CiphertextMessage message = cipher.encrypt(plaintext.getBytes(StandardCharsets.UTF_8));
 
         SessionRecord updatedSession = store.loadSession(address);
         store.storeSession(address, updatedSession);
+        encryptLatency.recordSince(start);
+        byte[] serialized = message.serialize();
+        commitEncrypted(event, peerId, deviceId, "MESSAGE", serialized.length);
 
-        logger.info("{} Encrypted message for peer {} device {}", LOG_PREFIX, peerId, deviceId);
-        return message.serialize();
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} Encrypted message for peer {} device {}", LOG_PREFIX, peerId, deviceId);
+        }
+        return serialized;
     }
 
     /**
@@ -142,44 +170,65 @@ public class SignalProtocolManager {
      * @throws Exception if encryption fails
      */
     public byte[] encryptPreKeyMessage(String peerId, int deviceId, String plaintext) throws Exception {
+        long start = System.nanoTime();
+        MessageEncryptedEvent event = new MessageEncryptedEvent();
+        event.begin();
         SignalProtocolAddress address = new SignalProtocolAddress(peerId, deviceId);
         SessionCipher cipher = new SessionCipher(store, address);
         CiphertextMessage message = cipher.encrypt(plaintext.getBytes(StandardCharsets.UTF_8));
 
         SessionRecord updatedSession = store.loadSession(address);
         store.storeSession(address, updatedSession);
+        encryptPreKeyLatency.recordSince(start);
+        byte[] serialized = message.serialize();
+        commitEncrypted(event, peerId, deviceId, "PREKEY_MESSAGE", serialized.length);
 
-        logger.info("{} Encrypted PreKey message for peer {} device {}", LOG_PREFIX, peerId, deviceId);
-        return message.serialize();
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} Encrypted PreKey message for peer {} device {}", LOG_PREFIX, peerId, deviceId);
+        }
+        return serialized;
     }
 
     /**
      * Decrypts a PreKeySignalMessage received from a remote peer.
-     * <p>This should be used for messages received at the beginning of a session.</p>
+     * <p>This should be used for messages received at the beginning of a session.
+     * No existing session is required: processing the PreKey message builds it.</p>
      *
      * @param senderId        the sender's user ID
      * @param senderDeviceId  the sender's device ID
      * @param ciphertext      the encrypted message bytes
      * @return the plaintext message content
-     * @throws Exception if no session is found or decryption fails
+     * @throws Exception if decryption fails
      */
     public String decryptPreKeyMessage(String senderId, int senderDeviceId, byte[] ciphertext) throws Exception {
-        if (!hasSession(senderId, senderDeviceId)) {
-            String errMsg = LOG_PREFIX + " No session found with " + senderId + ":" + senderDeviceId + " for PreKey decryption.";
-            logger.error(errMsg);
-            throw new IllegalStateException(errMsg);
-        }
-
+        long start = System.nanoTime();
+        MessageDecryptedEvent event = new MessageDecryptedEvent();
+        event.begin();
         SignalProtocolAddress address = new SignalProtocolAddress(senderId, senderDeviceId);
         SessionCipher cipher = new SessionCipher(store, address);
-        PreKeySignalMessage preKeyMessage = new PreKeySignalMessage(ciphertext);
-        byte[] plaintextBytes = cipher.decrypt(preKeyMessage);
+        byte[] plaintextBytes;
+        try {
+            plaintextBytes = cipher.decrypt(new PreKeySignalMessage(ciphertext));
+        } catch (Exception e) {
+            decryptFailures.increment();
+            throw e;
+        }
 
         SessionRecord updatedSession = store.loadSession(address);
         store.storeSession(address, updatedSession);
+        decryptPreKeyLatency.recordSince(start);
+        if (event.shouldCommit()) {
+            event.peer = senderId;
+            event.deviceId = senderDeviceId;
+            event.packetType = "PREKEY_MESSAGE";
+            event.bytes = ciphertext.length;
+            event.commit();
+        }
 
         String plaintext = new String(plaintextBytes, StandardCharsets.UTF_8);
-        logger.info("{} Decrypted PreKey message from {} device {}", LOG_PREFIX, senderId, senderDeviceId);
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} Decrypted PreKey message from {} device {}", LOG_PREFIX, senderId, senderDeviceId);
+        }
         return plaintext;
     }
 
@@ -199,16 +248,53 @@ public class SignalProtocolManager {
             throw new IllegalStateException(errMsg);
         }
 
+        long start = System.nanoTime();
+        MessageDecryptedEvent event = new MessageDecryptedEvent();
+        event.begin();
         SignalProtocolAddress address = new SignalProtocolAddress(senderId, senderDeviceId);
         SessionCipher cipher = new SessionCipher(store, address);
-        SignalMessage message = new SignalMessage(ciphertext);
-        byte[] plaintextBytes = cipher.decrypt(message);
+        byte[] plaintextBytes;
+        try {
+            plaintextBytes = cipher.decrypt(new SignalMessage(ciphertext));
+        } catch (Exception e) {
+            decryptFailures.increment();
+            throw e;
+        }
 
         SessionRecord updatedSession = store.loadSession(address);
         store.storeSession(address, updatedSession);
+        decryptLatency.recordSince(start);
+        if (event.shouldCommit()) {
+            event.peer = senderId;
+            event.deviceId = senderDeviceId;
+            event.packetType = "MESSAGE";
+            event.bytes = ciphertext.length;
+            event.commit();
+        }
 
         String plaintext = new String(plaintextBytes, StandardCharsets.UTF_8);
-        logger.info("{} Decrypted message from {} device {}", LOG_PREFIX, senderId, senderDeviceId);
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} Decrypted message from {} device {}", LOG_PREFIX, senderId, senderDeviceId);
+        }
         return plaintext;
     }
+
+    /**
+     * Fills in and commits an encryption event if JFR records it.
+     *
+     * @param event      the event begun before encryption
+     * @param peerId     the recipient's user ID
+     * @param deviceId   the recipient's device ID
+     * @param packetType the packet type the ciphertext is sent as
+     * @param bytes      the ciphertext size
+     */
+    private static void commitEncrypted(MessageEncryptedEvent event, String peerId, int deviceId, String packetType, int bytes) {
+        if (event.shouldCommit()) {
+            event.peer = peerId;
+            event.deviceId = deviceId;
+            event.packetType = packetType;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
 }
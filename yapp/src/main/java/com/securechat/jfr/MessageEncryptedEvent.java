@@ -0,0 +1,35 @@
+package com.securechat.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event emitted when the Signal protocol manager has encrypted a message.
+ * Its duration covers the cipher operation and the session store update.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+@Name("com.securechat.MessageEncrypted")
+@Label("Message Encrypted")
+@Category({"SecureChat", "Crypto"})
+@Description("A message encrypted for a peer")
+public class MessageEncryptedEvent extends Event {
+
+    @Label("Recipient")
+    public String peer;
+
+    @Label("Recipient Device")
+    public int deviceId;
+
+    @Label("Packet Type")
+    public String packetType;
+
+    @Label("Ciphertext Size")
+    @DataAmount
+    public int bytes;
+}
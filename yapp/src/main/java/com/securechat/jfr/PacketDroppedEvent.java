@@ -0,0 +1,37 @@
+package com.securechat.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event emitted by the message router when a packet cannot be delivered.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+@Name("com.securechat.PacketDropped")
+@Label("Packet Dropped")
+@Category({"SecureChat", "Server"})
+@Description("A packet the server could not deliver")
+public class PacketDroppedEvent extends Event {
+
+    @Label("Recipient")
+    public String peer;
+
+    @Label("Recipient Device")
+    public int deviceId;
+
+    @Label("Packet Type")
+    public String packetType;
+
+    @Label("Payload Size")
+    @DataAmount
+    public int bytes;
+
+    @Label("Reason")
+    public String reason;
+}
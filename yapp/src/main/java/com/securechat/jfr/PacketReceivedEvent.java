@@ -0,0 +1,35 @@
+package com.securechat.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event emitted by the server for each packet read from a client connection.
+ * Its duration covers handling the packet (routing, registration, lookup).
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+@Name("com.securechat.PacketReceived")
+@Label("Packet Received")
+@Category({"SecureChat", "Server"})
+@Description("A packet received and handled by the server")
+public class PacketReceivedEvent extends Event {
+
+    @Label("Sender")
+    public String peer;
+
+    @Label("Sender Device")
+    public int deviceId;
+
+    @Label("Packet Type")
+    public String packetType;
+
+    @Label("Payload Size")
+    @DataAmount
+    public int bytes;
+}
@@ -0,0 +1,39 @@
+package com.securechat.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event emitted by the message router for each packet handed to its
+ * recipient's connection. The packet may still be queued there, so the duration
+ * covers the write only when the router's thread performed it.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+@Name("com.securechat.PacketRouted")
+@Label("Packet Routed")
+@Category({"SecureChat", "Server"})
+@Description("A packet queued on or written to its recipient's connection")
+public class PacketRoutedEvent extends Event {
+
+    @Label("Sender")
+    public String sender;
+
+    @Label("Recipient")
+    public String peer;
+
+    @Label("Recipient Device")
+    public int deviceId;
+
+    @Label("Packet Type")
+    public String packetType;
+
+    @Label("Payload Size")
+    @DataAmount
+    public int bytes;
+}
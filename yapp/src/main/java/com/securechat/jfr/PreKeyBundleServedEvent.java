@@ -0,0 +1,33 @@
+package com.securechat.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event emitted by the server when it answers a PreKeyBundle request.
+ * Its duration covers the lookup and the response write.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+@Name("com.securechat.PreKeyBundleServed")
+@Label("PreKeyBundle Served")
+@Category({"SecureChat", "Server"})
+@Description("A PreKeyBundle looked up and sent to a requesting client")
+public class PreKeyBundleServedEvent extends Event {
+
+    @Label("Requester")
+    public String requester;
+
+    @Label("Bundle Owner")
+    public String peer;
+
+    @Label("Bundle Owner Device")
+    public int deviceId;
+
+    @Label("Found")
+    public boolean found;
+}
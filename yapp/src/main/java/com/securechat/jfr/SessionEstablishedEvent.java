@@ -0,0 +1,27 @@
+package com.securechat.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event emitted by a client when a session with a peer has been built from the
+ * peer's PreKeyBundle. Its duration spans from the bundle request to the built session.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+@Name("com.securechat.SessionEstablished")
+@Label("Session Established")
+@Category({"SecureChat", "Client"})
+@Description("A Signal session built from a fetched PreKeyBundle")
+public class SessionEstablishedEvent extends Event {
+
+    @Label("Peer")
+    public String peer;
+
+    @Label("Peer Device")
+    public int deviceId;
+}
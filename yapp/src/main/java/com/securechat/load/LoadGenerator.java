@@ -0,0 +1,466 @@
+package com.securechat.load;
+
+import com.securechat.client.UserClient;
+import com.securechat.metrics.Counter;
+import com.securechat.metrics.Histogram;
+import com.securechat.metrics.MetricsRegistry;
+import com.securechat.network.Connector;
+import com.securechat.protocol.Packet;
+import com.securechat.protocol.PacketType;
+import com.securechat.server.Server;
+import com.securechat.store.SessionStorage;
+import com.securechat.store.SignalStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Drives a local {@link Server} with many simulated {@link UserClient}s to measure capacity.
+ * <p>
+ * A run starts an in-process server, connects {@code --clients} real clients to it, wires
+ * them into a random social graph where each client picks {@code --degree} peers, and
+ * establishes a Signal session along every edge. It then sends messages along random edges
+ * on an open-loop schedule at {@code --rate} messages per second: each send has an intended
+ * time fixed in advance, and delivery latency is measured from that time, so a server that
+ * falls behind shows up as latency instead of as a lower send rate.
+ * </p>
+ * <p>
+ * The report on standard output gives throughput, delivery latency percentiles, connection
+ * counts and the JVM's heap and GC figures. Clients and server share one JVM, so heap and GC
+ * figures cover both. Unless {@code logback.configurationFile} is set, the run uses the
+ * production logging profile so per-message logging does not skew the numbers.
+ * </p>
+ * <p>
+ * Clients run on platform threads, one listener per connection as in any {@link UserClient};
+ * a fixed pool of {@code --senders} threads drives the schedule, so the send rate does not
+ * depend on the number of clients. With {@code --transport=loopback} clients connect through
+ * {@link Server#connectLocal()}, which takes TCP and serialization out of the measurement;
+ * {@code --transport=unix} connects over a Unix domain socket instead of TCP.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class LoadGenerator {
+
+    static {
+        if (System.getProperty("logback.configurationFile") == null) {
+            System.setProperty("logback.configurationFile", "logback-production.xml");
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+    private static final String LOG_PREFIX = "[LoadGenerator]";
+
+    private static final String HOST = "localhost";
+    private static final long REGISTER_TIMEOUT_SECONDS = 30;
+    private static final int DEVICE_ID = 1;
+    private static final int PRE_KEY_ID = 1;
+    private static final int SIGNED_PRE_KEY_ID = 2;
+    private static final long SETUP_TIMEOUT_MILLIS = 120_000;
+
+    // Scheduled messages carry their intended send time: "#<nanoTime>#<padding>"
+    private static final char MARKER = '#';
+    private static final String READY = "ready";
+
+    private final LoadOptions options;
+    private final UserClient[] clients;
+    private final List<int[]> edges = new ArrayList<>();
+    private Server server;
+
+    private final Histogram connectLatency = MetricsRegistry.global().histogram("load.connect");
+    private final Histogram deliveryLatency = MetricsRegistry.global().histogram("load.delivery");
+    private final LongAdder sessionsEstablished = new LongAdder();
+    private final LongAdder sessionsConfirmed = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder measuredSent = new LongAdder();
+    private final LongAdder measuredDelivered = new LongAdder();
+    private final LongAccumulator maxSendLag = new LongAccumulator(Math::max, 0);
+
+    private volatile long measureFromNanos = Long.MAX_VALUE;
+
+    /**
+     * Creates a generator for the given options. Nothing is started until {@link #run()}.
+     *
+     * @param options the run settings
+     */
+    public LoadGenerator(LoadOptions options) {
+        this.options = options;
+        this.clients = new UserClient[options.clients];
+    }
+
+    /**
+     * Runs the load generator with {@code --name=value} options; see {@link LoadOptions#usage()}.
+     *
+     * @param args the command-line options
+     */
+    public static void main(String[] args) {
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LoadOptions.usage());
+            System.exit(2);
+            return;
+        }
+
+        LoadGenerator generator = new LoadGenerator(options);
+        int status = 0;
+        try {
+            System.out.println(generator.run());
+        } catch (Exception e) {
+            logger.error("{} Load run failed", LOG_PREFIX, e);
+            status = 1;
+        } finally {
+            generator.shutdown();
+        }
+        System.exit(status);
+    }
+
+    /**
+     * Performs one complete run: server start, client setup, the send schedule and draining.
+     *
+     * @return the report text
+     * @throws Exception if the server or the clients cannot be set up
+     */
+    public String run() throws Exception {
+        startServer();
+        connectClients();
+        buildGraph();
+        establishSessions();
+
+        Map<String, long[]> gcBefore = gcSnapshot();
+        resetHeapPeaks();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        measureFromNanos = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+
+        logger.info("{} Sending {} msg/s for {} s over {} edges", LOG_PREFIX, options.rate, options.durationSeconds, edges.size());
+        CountDownLatch done = new CountDownLatch(options.senders);
+        ExecutorService senders = Executors.newFixedThreadPool(options.senders);
+        for (int w = 0; w < options.senders; w++) {
+            int worker = w;
+            senders.execute(() -> {
+                try {
+                    drive(worker, start, end);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        senders.shutdown();
+
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.drainSeconds);
+        while (delivered.sum() < sent.sum() && System.nanoTime() < drainDeadline) {
+            Thread.sleep(20);
+        }
+        long finished = System.nanoTime();
+        return report(finished - measureFromNanos, end - measureFromNanos, gcBefore);
+    }
+
+    /**
+     * Stops all clients and the server. Safe to call after a partial setup.
+     */
+    public void shutdown() {
+        ExecutorService stopper = Executors.newFixedThreadPool(options.connectThreads);
+        for (UserClient client : clients) {
+            if (client != null) {
+                stopper.execute(client::stop);
+            }
+        }
+        stopper.shutdown();
+        try {
+            stopper.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private void startServer() throws InterruptedException {
+        server = new Server(options.port);
+        server.setAcceptorThreads(options.acceptors);
+        if (options.transport == LoadOptions.Transport.UNIX) {
+            server.setUnixSocketPath(unixSocketPath());
+        }
+        Thread serverThread = new Thread(server::start, "LoadServer");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        if (!server.awaitStarted(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Server did not start on port " + options.port);
+        }
+    }
+
+    private Path unixSocketPath() {
+        return Path.of(System.getProperty("java.io.tmpdir"), "securechat-load-" + options.port + ".sock");
+    }
+
+    private void connectClients() throws Exception {
+        logger.info("{} Connecting {} clients", LOG_PREFIX, options.clients);
+        ExecutorService pool = Executors.newFixedThreadPool(options.connectThreads);
+        try {
+            List<Future<?>> pending = new ArrayList<>(options.clients);
+            for (int i = 0; i < options.clients; i++) {
+                int index = i;
+                pending.add(pool.submit(() -> {
+                    UserClient client = new UserClient(userId(index), DEVICE_ID,
+                            new SignalStore(SessionStorage.fromSpec(options.sessionStorage)), PRE_KEY_ID, SIGNED_PRE_KEY_ID);
+                    client.setOutboxCapacity(options.outboxKib * 1024);
+                    client.setTraceSampleRate(0);
+                    client.setMessageHandler(this::onMessage);
+                    client.initializeUser();
+                    clients[index] = client;
+                    long started = System.nanoTime();
+                    String endpoint = switch (options.transport) {
+                        case LOOPBACK -> "local";
+                        case UNIX -> Connector.UNIX_PREFIX + unixSocketPath();
+                        case TCP -> HOST + ":" + options.port;
+                    };
+                    Connector connector = options.transport == LoadOptions.Transport.LOOPBACK
+                            ? server::connectLocal
+                            : Connector.forEndpoint(endpoint);
+                    // Time until the server confirms the registration, not just until the socket opens
+                    client.connectAsync(endpoint, connector).get(REGISTER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    connectLatency.recordSince(started);
+                    return null;
+                }));
+            }
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // Until a client's first one-time prekey batch arrives, every bundle for it carries the
+        // same registered prekey, and only the first session built on it would decrypt
+        Counter uploads = MetricsRegistry.global().counter("server.packets." + PacketType.PREKEY_UPLOAD);
+        await(uploads::get, options.clients, "one-time prekey batches uploaded");
+    }
+
+    /**
+     * Builds an undirected graph in which every client links to {@code degree} distinct
+     * random peers; edges picked from both ends are kept once.
+     */
+    private void buildGraph() {
+        SplittableRandom random = new SplittableRandom(options.seed);
+        Set<Long> seen = new HashSet<>();
+        for (int a = 0; a < options.clients; a++) {
+            Set<Integer> picked = new HashSet<>();
+            while (picked.size() < options.degree) {
+                int b = random.nextInt(options.clients);
+                if (b != a && picked.add(b)) {
+                    int low = Math.min(a, b);
+                    int high = Math.max(a, b);
+                    if (seen.add(((long) low << 32) | high)) {
+                        edges.add(new int[] {low, high});
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Establishes a session along every edge: the lower-numbered client sends a PreKey
+     * message, and once it has arrived the peer answers with a normal message, after which
+     * both directions carry plain Signal messages.
+     */
+    private void establishSessions() throws InterruptedException {
+        logger.info("{} Establishing {} sessions", LOG_PREFIX, edges.size());
+        for (int[] edge : edges) {
+            clients[edge[0]].establishSession(userId(edge[1]), DEVICE_ID, "hello");
+        }
+        await(sessionsEstablished::sum, edges.size(), "PreKey messages delivered");
+
+        for (int[] edge : edges) {
+            clients[edge[1]].sendMessage(userId(edge[0]), DEVICE_ID, READY);
+        }
+        await(sessionsConfirmed::sum, edges.size(), "session confirmations delivered");
+    }
+
+    private static void await(LongSupplier counter, long target, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETUP_TIMEOUT_MILLIS);
+        while (counter.getAsLong() < target) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Only " + counter.getAsLong() + " of " + target + " " + what);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Sends this worker's share of the schedule. Each worker runs an independent schedule
+     * at {@code rate / senders}; for Poisson arrivals the merged schedule is again Poisson.
+     */
+    private void drive(int worker, long startNanos, long endNanos) {
+        SplittableRandom random = new SplittableRandom(options.seed * 31 + worker);
+        double intervalNanos = 1e9 * options.senders / options.rate;
+        boolean uniform = options.arrival == LoadOptions.Arrival.UNIFORM;
+        // Stagger uniform workers so their sends interleave instead of bunching
+        double offset = uniform ? intervalNanos * worker / options.senders : 0;
+
+        while (true) {
+            offset += uniform ? intervalNanos : -Math.log(1 - random.nextDouble()) * intervalNanos;
+            long intended = startNanos + (long) offset;
+            if (intended >= endNanos) {
+                return;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            int[] edge = edges.get(random.nextInt(edges.size()));
+            boolean forward = random.nextBoolean();
+            int from = forward ? edge[0] : edge[1];
+            int to = forward ? edge[1] : edge[0];
+
+            maxSendLag.accumulate(System.nanoTime() - intended);
+            sent.increment();
+            if (intended >= measureFromNanos) {
+                measuredSent.increment();
+            }
+            clients[from].sendMessage(userId(to), DEVICE_ID, payload(intended));
+        }
+    }
+
+    private String payload(long intendedNanos) {
+        StringBuilder sb = new StringBuilder(Math.max(options.messageBytes, 24));
+        sb.append(MARKER).append(intendedNanos).append(MARKER);
+        while (sb.length() < options.messageBytes) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Message handler shared by all clients; runs on their listener threads.
+     */
+    private void onMessage(Packet packet, String plaintext) {
+        if (packet.getType() == PacketType.PREKEY_MESSAGE) {
+            sessionsEstablished.increment();
+            return;
+        }
+        if (plaintext.isEmpty() || plaintext.charAt(0) != MARKER) {
+            if (READY.equals(plaintext)) {
+                sessionsConfirmed.increment();
+            }
+            return;
+        }
+        long now = System.nanoTime();
+        long intended = Long.parseLong(plaintext, 1, plaintext.indexOf(MARKER, 1), 10);
+        delivered.increment();
+        if (intended >= measureFromNanos) {
+            measuredDelivered.increment();
+            deliveryLatency.record(now - intended);
+        }
+    }
+
+    private String report(long windowNanos, long scheduleNanos, Map<String, long[]> gcBefore) {
+        double windowSeconds = windowNanos / 1e9;
+        double scheduleSeconds = scheduleNanos / 1e9;
+        StringBuilder sb = new StringBuilder();
+        String nl = System.lineSeparator();
+
+        sb.append("=== SecureChat load report ===").append(nl);
+        sb.append(String.format("clients             %d (degree %d, %d sessions) over %s%n",
+                options.clients, options.degree, edges.size(), options.transport.name().toLowerCase()));
+        sb.append(String.format("server connections  %d open, %d accepted, %d closed%n",
+                server.getConnectionCount(),
+                MetricsRegistry.global().counter("server.connections.accepted").get(),
+                MetricsRegistry.global().counter("server.connections.closed").get()));
+        sb.append(String.format("connect time        p50=%.2f ms p99=%.2f ms max=%.2f ms%n",
+                millis(connectLatency.getPercentile(50)), millis(connectLatency.getPercentile(99)), millis(connectLatency.getMax())));
+        sb.append(String.format("schedule            %s arrivals, target %.1f msg/s, %d senders%n",
+                options.arrival.name().toLowerCase(), options.rate, options.senders));
+        sb.append(String.format("messages            %d sent, %d delivered, %d outstanding, max send lag %.2f ms%n",
+                sent.sum(), delivered.sum(), sent.sum() - delivered.sum(), millis(maxSendLag.get())));
+        sb.append(String.format("measured window     %d sent in %.1f s (%.1f msg/s offered), %d delivered (%.1f msg/s)%n",
+                measuredSent.sum(), scheduleSeconds, measuredSent.sum() / scheduleSeconds,
+                measuredDelivered.sum(), measuredDelivered.sum() / windowSeconds));
+        sb.append(String.format("delivery latency    p50=%.2f ms p99=%.2f ms p999=%.2f ms max=%.2f ms mean=%.2f ms%n",
+                millis(deliveryLatency.getPercentile(50)), millis(deliveryLatency.getPercentile(99)),
+                millis(deliveryLatency.getPercentile(99.9)), millis(deliveryLatency.getMax()),
+                deliveryLatency.getMean() / 1e6));
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        sb.append(String.format("heap                used=%d MiB committed=%d MiB max=%d MiB peak=%d MiB%n",
+                mib(heap.getUsed()), mib(heap.getCommitted()), mib(heap.getMax()), mib(heapPeak())));
+        Map<String, long[]> gcAfter = gcSnapshot();
+        for (Map.Entry<String, long[]> entry : gcAfter.entrySet()) {
+            long[] before = gcBefore.getOrDefault(entry.getKey(), new long[2]);
+            sb.append(String.format("gc %-16s %d collections, %d ms%n", entry.getKey(),
+                    entry.getValue()[0] - before[0], entry.getValue()[1] - before[1]));
+        }
+
+        if (options.dumpMetrics) {
+            sb.append(nl).append(server.dumpMetrics());
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, long[]> gcSnapshot() {
+        Map<String, long[]> snapshot = new HashMap<>();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            snapshot.put(gc.getName(), new long[] {gc.getCollectionCount(), gc.getCollectionTime()});
+        }
+        return snapshot;
+    }
+
+    private static void resetHeapPeaks() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static String userId(int index) {
+        return "load-" + index;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static long mib(long bytes) {
+        return bytes / (1024 * 1024);
+    }
+}
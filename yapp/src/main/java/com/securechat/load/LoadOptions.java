@@ -0,0 +1,156 @@
+package com.securechat.load;
+
+import com.securechat.server.Server;
+import com.securechat.store.SessionStorage;
+
+/**
+ * Settings for a {@link LoadGenerator} run, parsed from {@code --name=value} arguments.
+ * <p>
+ * Every option has a default, so a run with no arguments is a small smoke test.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class LoadOptions {
+
+    /** How send times are spaced. */
+    public enum Arrival {
+        /** Messages are sent at evenly spaced instants. */
+        UNIFORM,
+        /** Inter-send gaps are exponentially distributed, i.e. sends form a Poisson process. */
+        POISSON
+    }
+
+    /** How clients reach the server. */
+    public enum Transport {
+        /** TCP sockets on localhost. */
+        TCP,
+        /** A Unix domain socket, skipping the TCP/IP stack. */
+        UNIX,
+        /** In-process queues that bypass sockets and serialization. */
+        LOOPBACK
+    }
+
+    int port = 9900;
+    Transport transport = Transport.TCP;
+    int clients = 100;
+    int degree = 4;
+    double rate = 500;
+    int durationSeconds = 30;
+    int warmupSeconds = 5;
+    int drainSeconds = 10;
+    Arrival arrival = Arrival.UNIFORM;
+    int senders = Math.max(2, Runtime.getRuntime().availableProcessors());
+    int connectThreads = 16;
+    int acceptors = Server.DEFAULT_ACCEPTOR_THREADS;
+    int messageBytes = 64;
+    int outboxKib = 1024;
+    String sessionStorage = "heap";
+    long seed = 1;
+    boolean dumpMetrics;
+
+    /**
+     * Parses command-line arguments of the form {@code --name=value}.
+     *
+     * @param args the arguments
+     * @return the options
+     * @throws IllegalArgumentException if an argument is unknown or malformed
+     */
+    public static LoadOptions parse(String[] args) {
+        LoadOptions options = new LoadOptions();
+        for (String arg : args) {
+            if (arg.equals("--metrics")) {
+                options.dumpMetrics = true;
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            try {
+                switch (name) {
+                    case "port" -> options.port = Integer.parseInt(value);
+                    case "transport" -> options.transport = parseTransport(value);
+                    case "clients" -> options.clients = Integer.parseInt(value);
+                    case "degree" -> options.degree = Integer.parseInt(value);
+                    case "rate" -> options.rate = Double.parseDouble(value);
+                    case "duration" -> options.durationSeconds = Integer.parseInt(value);
+                    case "warmup" -> options.warmupSeconds = Integer.parseInt(value);
+                    case "drain" -> options.drainSeconds = Integer.parseInt(value);
+                    case "arrival" -> options.arrival = Arrival.valueOf(value.toUpperCase());
+                    case "senders" -> options.senders = Integer.parseInt(value);
+                    case "connect-threads" -> options.connectThreads = Integer.parseInt(value);
+                    case "acceptors" -> options.acceptors = Integer.parseInt(value);
+                    case "message-bytes" -> options.messageBytes = Integer.parseInt(value);
+                    case "outbox-kib" -> options.outboxKib = Integer.parseInt(value);
+                    case "session-storage" -> options.sessionStorage = value;
+                    case "seed" -> options.seed = Long.parseLong(value);
+                    default -> throw new IllegalArgumentException("Unknown option: --" + name);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for --" + name + ": " + value, e);
+            }
+        }
+        options.validate();
+        return options;
+    }
+
+    private static Transport parseTransport(String value) {
+        return switch (value) {
+            case "tcp" -> Transport.TCP;
+            case "unix" -> Transport.UNIX;
+            case "loopback" -> Transport.LOOPBACK;
+            default -> throw new IllegalArgumentException("--transport must be tcp, unix or loopback");
+        };
+    }
+
+    private void validate() {
+        if (clients < 2) {
+            throw new IllegalArgumentException("--clients must be at least 2");
+        }
+        if (degree < 1 || degree >= clients) {
+            throw new IllegalArgumentException("--degree must be between 1 and clients - 1");
+        }
+        if (rate <= 0 || durationSeconds <= 0 || warmupSeconds < 0 || warmupSeconds >= durationSeconds) {
+            throw new IllegalArgumentException("--rate and --duration must be positive and --warmup shorter than --duration");
+        }
+        if (senders < 1 || connectThreads < 1 || acceptors < 1 || drainSeconds < 0) {
+            throw new IllegalArgumentException("--senders, --connect-threads and --acceptors must be positive");
+        }
+        if (outboxKib < 4) {
+            throw new IllegalArgumentException("--outbox-kib must be at least 4");
+        }
+        SessionStorage.fromSpec(sessionStorage).close(); // rejects a malformed spec before any client starts
+    }
+
+    /**
+     * Returns the usage text listing every option and its default.
+     *
+     * @return the usage text
+     */
+    public static String usage() {
+        LoadOptions d = new LoadOptions();
+        return String.join(System.lineSeparator(),
+            "Usage: LoadGenerator [--name=value ...] [--metrics]",
+            "  --port=N             server port (" + d.port + ")",
+            "  --transport=tcp|unix|loopback  TCP, a Unix domain socket, or in-process queues that bypass sockets and serialization (tcp)",
+            "  --clients=N          simulated clients (" + d.clients + ")",
+            "  --degree=N           peers each client picks in the social graph (" + d.degree + ")",
+            "  --rate=R             target messages per second across all clients (" + d.rate + ")",
+            "  --duration=S         length of the send schedule in seconds (" + d.durationSeconds + ")",
+            "  --warmup=S           leading seconds excluded from the figures (" + d.warmupSeconds + ")",
+            "  --drain=S            seconds to wait for in-flight messages afterwards (" + d.drainSeconds + ")",
+            "  --arrival=uniform|poisson  spacing of send times (" + d.arrival.name().toLowerCase() + ")",
+            "  --senders=N          sender threads driving the schedule (" + d.senders + ")",
+            "  --connect-threads=N  threads connecting clients at startup (" + d.connectThreads + ")",
+            "  --acceptors=N        server threads accepting TCP connections (" + d.acceptors + ")",
+            "  --message-bytes=N    plaintext size per message (" + d.messageBytes + ")",
+            "  --outbox-kib=N       outbox size per client in KiB (" + d.outboxKib + ")",
+            "  --session-storage=heap|tiered:N|offheap[:KiB]  where each client keeps its sessions (" + d.sessionStorage + ")",
+            "  --seed=N             random seed for the graph and schedule (" + d.seed + ")",
+            "  --metrics            also print the full metrics registry");
+    }
+}
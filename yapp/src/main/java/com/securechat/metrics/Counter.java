@@ -0,0 +1,58 @@
+package com.securechat.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing, lock-free event counter.
+ * <p>
+ * Backed by a {@link LongAdder}, whose cells are striped across contending threads,
+ * so concurrent increments from many connection handlers do not fight over one
+ * cache line. Incrementing allocates nothing once the stripes exist.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public final class Counter {
+
+    private final String name;
+    private final LongAdder count = new LongAdder();
+
+    Counter(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Adds one to the counter.
+     */
+    public void increment() {
+        count.increment();
+    }
+
+    /**
+     * Adds the given amount to the counter.
+     *
+     * @param delta the amount to add (non-negative)
+     */
+    public void add(long delta) {
+        count.add(delta);
+    }
+
+    /**
+     * Returns the current total. Concurrent updates may or may not be included.
+     *
+     * @return the counter value
+     */
+    public long get() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the metric name.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+}
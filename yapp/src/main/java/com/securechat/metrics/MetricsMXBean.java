@@ -0,0 +1,35 @@
+package com.securechat.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link MetricsRegistry}.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public interface MetricsMXBean {
+
+    /**
+     * Returns every counter by name.
+     *
+     * @return counter values
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * Returns latency summaries in microseconds, keyed {@code <histogram>.<statistic>}
+     * where the statistic is one of {@code count}, {@code mean}, {@code p50}, {@code p90},
+     * {@code p99}, {@code p999} or {@code max}.
+     *
+     * @return latency statistics
+     */
+    Map<String, Long> getLatencies();
+
+    /**
+     * Renders all metrics as plain text, one metric per line.
+     *
+     * @return the text dump
+     */
+    String dump();
+}
@@ -0,0 +1,122 @@
+package com.securechat.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A named collection of {@link Counter}s and {@link Histogram}s.
+ * <p>
+ * Metrics are created on first lookup. Lookups go through a concurrent map, so hot
+ * paths should resolve their metrics once (e.g. into fields) and only call
+ * {@link Counter#increment()} or {@link Histogram#record(long)} per event, which is
+ * lock-free and allocation-free.
+ * </p>
+ * <p>
+ * The {@link #global()} registry is shared by the server and client components in a
+ * JVM and is registered with the platform MBean server as
+ * {@code com.securechat:type=Metrics}. {@link #dump()} renders the same data as text.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public final class MetricsRegistry implements MetricsMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+    private static final String LOG_PREFIX = "[MetricsRegistry]";
+
+    private static final MetricsRegistry GLOBAL = createGlobal();
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the JVM-wide registry.
+     *
+     * @return the global registry
+     */
+    public static MetricsRegistry global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if needed.
+     *
+     * @param name the metric name
+     * @return the counter
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, Counter::new);
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed.
+     *
+     * @param name the metric name
+     * @return the histogram
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, Histogram::new);
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.get()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getLatencies() {
+        Map<String, Long> values = new TreeMap<>();
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".mean", micros((long) histogram.getMean()));
+            values.put(name + ".p50", micros(histogram.getPercentile(50)));
+            values.put(name + ".p90", micros(histogram.getPercentile(90)));
+            values.put(name + ".p99", micros(histogram.getPercentile(99)));
+            values.put(name + ".p999", micros(histogram.getPercentile(99.9)));
+            values.put(name + ".max", micros(histogram.getMax()));
+        });
+        return values;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        new TreeMap<>(counters).forEach((name, counter) ->
+                out.append("counter ").append(name).append(' ').append(counter.get()).append('\n'));
+        new TreeMap<>(histograms).forEach((name, histogram) -> out.append("latency_us ").append(name)
+                .append(" count=").append(histogram.getCount())
+                .append(" mean=").append(micros((long) histogram.getMean()))
+                .append(" p50=").append(micros(histogram.getPercentile(50)))
+                .append(" p90=").append(micros(histogram.getPercentile(90)))
+                .append(" p99=").append(micros(histogram.getPercentile(99)))
+                .append(" p999=").append(micros(histogram.getPercentile(99.9)))
+                .append(" max=").append(micros(histogram.getMax()))
+                .append('\n'));
+        return out.toString();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static MetricsRegistry createGlobal() {
+        MetricsRegistry registry = new MetricsRegistry();
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(registry, new ObjectName("com.securechat:type=Metrics"));
+        } catch (Exception e) {
+            logger.warn("{} Failed to register metrics MBean: {}", LOG_PREFIX, e.getMessage());
+        }
+        return registry;
+    }
+}
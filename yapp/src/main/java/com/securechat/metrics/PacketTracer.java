@@ -0,0 +1,99 @@
+package com.securechat.metrics;
+
+import com.securechat.protocol.Packet;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples outgoing packets for end-to-end latency tracing and aggregates the
+ * timestamps of delivered traced packets into per-hop latency histograms.
+ * <p>
+ * A traced packet carries three {@link TraceClock} timestamps: when the sending client
+ * handed it to the network, when the server received it and when the server forwarded
+ * it. The recipient adds the time decryption completed and records:
+ * </p>
+ * <ul>
+ *   <li>{@code trace.client_to_server}: sender outbox queueing and uplink</li>
+ *   <li>{@code trace.server}: server handling and queueing</li>
+ *   <li>{@code trace.server_to_decrypted}: downlink and recipient decryption</li>
+ *   <li>{@code trace.end_to_end}: send to decrypted</li>
+ * </ul>
+ * <p>
+ * Hops spanning two hosts include their clock offset; negative spans are recorded as zero.
+ * Untraced packets cost one random draw on send and one field check on receipt.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public final class PacketTracer {
+
+    /** Default share of outgoing messages that are traced. */
+    public static final double DEFAULT_SAMPLE_RATE = 0.01;
+
+    private final Histogram clientToServer;
+    private final Histogram server;
+    private final Histogram serverToDecrypted;
+    private final Histogram endToEnd;
+
+    private volatile double sampleRate;
+
+    /**
+     * Creates a tracer recording into the global {@link MetricsRegistry}.
+     *
+     * @param sampleRate the share of outgoing packets to trace, in [0, 1]
+     */
+    public PacketTracer(double sampleRate) {
+        setSampleRate(sampleRate);
+        MetricsRegistry metrics = MetricsRegistry.global();
+        this.clientToServer = metrics.histogram("trace.client_to_server");
+        this.server = metrics.histogram("trace.server");
+        this.serverToDecrypted = metrics.histogram("trace.server_to_decrypted");
+        this.endToEnd = metrics.histogram("trace.end_to_end");
+    }
+
+    /**
+     * Changes the sampling rate.
+     *
+     * @param sampleRate the share of outgoing packets to trace, in [0, 1]
+     * @throws IllegalArgumentException if the rate is out of range
+     */
+    public void setSampleRate(double sampleRate) {
+        if (!(sampleRate >= 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException("sampleRate must be in [0, 1]");
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Decides whether to trace an outgoing packet and, if so, stamps its client send time.
+     *
+     * @param packet the packet about to be sent
+     */
+    public void sample(Packet packet) {
+        double rate = sampleRate;
+        if (rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate)) {
+            packet.setTraceClientSendMicros(TraceClock.nowMicros());
+        }
+    }
+
+    /**
+     * Records the hop latencies of a traced packet whose decryption just completed.
+     * Untraced packets, and packets missing server timestamps, are ignored.
+     *
+     * @param packet the delivered packet
+     */
+    public void recordDelivery(Packet packet) {
+        long sent = packet.getTraceClientSendMicros();
+        long received = packet.getTraceServerReceiveMicros();
+        long forwarded = packet.getTraceServerForwardMicros();
+        if (sent == 0 || received == 0 || forwarded == 0) {
+            return;
+        }
+        long decrypted = TraceClock.nowMicros();
+        clientToServer.record((received - sent) * 1000);
+        server.record((forwarded - received) * 1000);
+        serverToDecrypted.record((decrypted - forwarded) * 1000);
+        endToEnd.record((decrypted - sent) * 1000);
+    }
+}
@@ -0,0 +1,32 @@
+package com.securechat.metrics;
+
+/**
+ * A microsecond wall clock for latency tracing.
+ * <p>
+ * {@link System#currentTimeMillis()} is too coarse for per-hop latencies and
+ * {@link System#nanoTime()} is not comparable between processes. This clock reads the
+ * wall clock once, when the class is initialized, and advances it with
+ * {@code nanoTime}, giving monotonic, allocation-free microsecond timestamps that
+ * other hosts can compare up to their NTP clock offset.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public final class TraceClock {
+
+    private static final long BASE_EPOCH_MICROS = System.currentTimeMillis() * 1000;
+    private static final long BASE_NANOS = System.nanoTime();
+
+    private TraceClock() {
+    }
+
+    /**
+     * Returns the current time in microseconds since the epoch.
+     *
+     * @return the current trace timestamp
+     */
+    public static long nowMicros() {
+        return BASE_EPOCH_MICROS + (System.nanoTime() - BASE_NANOS) / 1000;
+    }
+}
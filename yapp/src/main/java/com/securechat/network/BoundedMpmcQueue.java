@@ -0,0 +1,119 @@
+package com.securechat.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer array queue.
+ * <p>
+ * Each slot carries a sequence number that tells producers and consumers whose turn it
+ * is, so an offer or poll is one CAS on the tail or head counter plus two ordered writes,
+ * and never blocks. {@link #offer} returns false when the queue is full and {@link #poll}
+ * returns null when it is empty; waiting is left to the caller.
+ * </p>
+ *
+ * @param <E> the element type
+ * @author bhickensalsa
+ * @version 0.1
+ */
+final class BoundedMpmcQueue<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Creates a queue holding at least {@code capacity} elements, rounded up to a power of two.
+     *
+     * @param capacity the minimum capacity (positive)
+     * @throws IllegalArgumentException if the capacity is not positive or too large
+     */
+    BoundedMpmcQueue(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.items = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element if there is room.
+     *
+     * @param element the element (non-null)
+     * @return true if added, false if the queue is full
+     */
+    boolean offer(E element) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(index, element);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element, if any.
+     *
+     * @return the element, or null if the queue is empty
+     */
+    E poll() {
+        long pos = head.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E element = items.get(index);
+                    items.lazySet(index, null);
+                    sequences.set(index, pos + mask + 1);
+                    return element;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the queue was empty at some point during the call.
+     *
+     * @return true if empty
+     */
+    boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /**
+     * Returns the capacity after rounding.
+     *
+     * @return the capacity
+     */
+    int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,176 @@
+package com.securechat.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A {@link Transport} serializing objects over a blocking {@link SocketChannel}.
+ * <p>
+ * This is the transport for Unix domain sockets, which have no {@link java.net.Socket}
+ * API: a co-located client skips the TCP/IP stack entirely. The wire format is the same
+ * object stream {@link SocketTransport} uses. Reads and writes go straight to the channel
+ * through small stream adapters, so a listener blocked in a read never holds up senders.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class ChannelTransport implements Transport {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private final Object readLock = new Object();
+    private ObjectInputStream input;  // guarded by readLock, opened on first read
+    private final ObjectOutputStream output;
+
+    /**
+     * Creates a transport over the given connected channel and writes this end's object
+     * stream header. The peer's header is read on the first receive.
+     *
+     * @param channel the connected, blocking channel (non-null)
+     * @throws IOException if an I/O error occurs during stream initialization
+     */
+    public ChannelTransport(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        this.output = new ObjectOutputStream(new BufferedOutputStream(new ChannelOutput(channel), BUFFER_SIZE));
+        this.output.flush();  // send the header now so the peer's first read does not wait on us
+    }
+
+    /**
+     * Connects to a Unix domain socket.
+     *
+     * @param address the socket address
+     * @return the connected transport
+     * @throws IOException if connecting or the stream handshake fails
+     */
+    public static ChannelTransport connect(UnixDomainSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(address);
+            return new ChannelTransport(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void send(Object obj) throws IOException {
+        synchronized (output) {
+            output.writeObject(obj);
+            output.flush();
+        }
+    }
+
+    @Override
+    public Object receive() throws IOException, ClassNotFoundException {
+        synchronized (readLock) {
+            return input().readObject();
+        }
+    }
+
+    @Override
+    public void awaitHandshake() throws IOException {
+        synchronized (readLock) {
+            input();
+        }
+    }
+
+    /**
+     * Returns the input stream, reading the peer's stream header first if this is the first
+     * read. Deferring the header keeps construction from waiting a round trip for the peer.
+     */
+    private ObjectInputStream input() throws IOException {
+        if (input == null) {
+            input = new ObjectInputStream(new BufferedInputStream(new ChannelInput(channel), BUFFER_SIZE));
+        }
+        return input;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        synchronized (output) {
+            output.reset();
+            output.flush();
+        }
+    }
+
+    /**
+     * Closes the channel, which also fails any blocked read or write.
+     *
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        try {
+            SocketAddress remote = channel.getRemoteAddress();
+            // A Unix domain client is usually unbound, so its address has an empty path
+            return remote instanceof UnixDomainSocketAddress unix && unix.getPath().toString().isEmpty()
+                    ? "unix:" + channel.getLocalAddress()
+                    : String.valueOf(remote);
+        } catch (IOException e) {
+            return "closed";
+        }
+    }
+
+    /** Reads directly from the channel. */
+    private static final class ChannelInput extends InputStream {
+        private final SocketChannel channel;
+
+        ChannelInput(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    /** Writes directly to the channel. */
+    private static final class ChannelOutput extends OutputStream {
+        private final SocketChannel channel;
+
+        ChannelOutput(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
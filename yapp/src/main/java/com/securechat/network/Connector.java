@@ -0,0 +1,58 @@
+package com.securechat.network;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+
+/**
+ * Opens a new {@link PeerConnection} to a server. A client keeps its connector so it
+ * can open a fresh connection of the same kind when it reconnects.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+@FunctionalInterface
+public interface Connector {
+
+    /** Endpoint prefix selecting a Unix domain socket, as in {@code unix:/run/securechat.sock}. */
+    String UNIX_PREFIX = "unix:";
+
+    /**
+     * Opens a connection.
+     *
+     * @return the connected PeerConnection
+     * @throws IOException if the connection cannot be opened
+     */
+    PeerConnection connect() throws IOException;
+
+    /**
+     * Returns a connector for a textual endpoint: {@code unix:<path>} for a Unix domain
+     * socket on this host, or {@code host:port} for TCP.
+     *
+     * @param endpoint the endpoint
+     * @return a connector opening connections to it
+     * @throws IllegalArgumentException if the endpoint is malformed
+     */
+    static Connector forEndpoint(String endpoint) {
+        if (endpoint.startsWith(UNIX_PREFIX)) {
+            String path = endpoint.substring(UNIX_PREFIX.length());
+            if (path.isEmpty()) {
+                throw new IllegalArgumentException("Missing socket path in endpoint: " + endpoint);
+            }
+            UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+            return () -> new PeerConnection(ChannelTransport.connect(address));
+        }
+        int colon = endpoint.lastIndexOf(':');
+        if (colon <= 0 || colon == endpoint.length() - 1) {
+            throw new IllegalArgumentException("Expected host:port or unix:<path> but got: " + endpoint);
+        }
+        String host = endpoint.substring(0, colon);
+        int port;
+        try {
+            port = Integer.parseInt(endpoint.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port in endpoint: " + endpoint, e);
+        }
+        return () -> new PeerConnection(new Socket(host, port));
+    }
+}
@@ -0,0 +1,182 @@
+package com.securechat.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process {@link Transport} that hands objects to its peer through a pair of
+ * bounded lock-free queues, one per direction.
+ * <p>
+ * Objects are passed by reference: nothing is serialized and no socket is involved, so
+ * a client and a {@link com.securechat.server.Server} in the same JVM talk at memory
+ * speed. As with any transport, a sender must not modify an object after sending it.
+ * </p>
+ * <p>
+ * A sender finding the queue full spins briefly and then parks with a growing backoff
+ * until the receiver makes room, which gives the same backpressure as a full socket
+ * buffer. A receiver finding the queue empty spins briefly and then parks until a sender
+ * or {@link #close()} wakes it, so idle connections cost no CPU.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public final class LoopbackTransport implements Transport {
+
+    /** Default number of objects buffered in each direction. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final int SPINS = 128;
+    private static final long MIN_PARK_NANOS = 1_000;
+    private static final long MAX_PARK_NANOS = 1_000_000;
+
+    /**
+     * The two ends of a loopback connection.
+     *
+     * @param client the end handed to the client
+     * @param server the end handed to the server
+     */
+    public record Pair(LoopbackTransport client, LoopbackTransport server) {
+    }
+
+    /** One direction of the connection. */
+    private static final class Channel {
+        final BoundedMpmcQueue<Object> queue;
+        volatile boolean closed;
+        volatile Thread receiver;
+
+        Channel(int capacity) {
+            this.queue = new BoundedMpmcQueue<>(capacity);
+        }
+
+        void wakeReceiver() {
+            Thread waiting = receiver;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            }
+        }
+    }
+
+    private final String name;
+    private final String peerName;
+    private final Channel inbound;
+    private final Channel outbound;
+    private volatile boolean closed;
+
+    private LoopbackTransport(String name, String peerName, Channel inbound, Channel outbound) {
+        this.name = name;
+        this.peerName = peerName;
+        this.inbound = inbound;
+        this.outbound = outbound;
+    }
+
+    /**
+     * Creates a connected pair of transports.
+     *
+     * @param name     a name for the connection, used in log output
+     * @param capacity the number of objects buffered in each direction
+     * @return the client and server ends
+     */
+    public static Pair pair(String name, int capacity) {
+        Channel toServer = new Channel(capacity);
+        Channel toClient = new Channel(capacity);
+        return new Pair(
+            new LoopbackTransport(name + "/client", name + "/server", toClient, toServer),
+            new LoopbackTransport(name + "/server", name + "/client", toServer, toClient));
+    }
+
+    @Override
+    public void send(Object obj) throws IOException {
+        Objects.requireNonNull(obj, "obj");
+        if (closed || outbound.closed) {
+            throw new IOException("Connection closed");
+        }
+        int spins = 0;
+        long park = MIN_PARK_NANOS;
+        while (!outbound.queue.offer(obj)) {
+            if (closed || outbound.closed) {
+                throw new IOException("Connection closed");
+            }
+            if (spins < SPINS) {
+                spins++;
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(park);
+                park = Math.min(park << 1, MAX_PARK_NANOS);
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Interrupted while sending");
+                }
+            }
+        }
+        outbound.wakeReceiver();
+    }
+
+    @Override
+    public Object receive() throws IOException {
+        Object obj = inbound.queue.poll();
+        if (obj != null) {
+            return obj;
+        }
+        for (int spins = 0; spins < SPINS; spins++) {
+            Thread.onSpinWait();
+            obj = inbound.queue.poll();
+            if (obj != null) {
+                return obj;
+            }
+        }
+
+        inbound.receiver = Thread.currentThread();
+        try {
+            while (true) {
+                obj = inbound.queue.poll();
+                if (obj != null) {
+                    return obj;
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                if (inbound.closed) {
+                    throw new EOFException("Peer closed the connection");
+                }
+                // Senders unpark the registered receiver after every offer, and the receiver
+                // polls again after registering, so a wakeup cannot be lost
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Interrupted while receiving");
+                }
+            }
+        } finally {
+            inbound.receiver = null;
+        }
+    }
+
+    /**
+     * Does nothing: objects are passed by reference, so there is no per-stream state.
+     */
+    @Override
+    public void reset() {
+        // Nothing retained per stream
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        inbound.closed = true;
+        outbound.closed = true;
+        inbound.wakeReceiver();
+        outbound.wakeReceiver();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "loopback:" + peerName;
+    }
+
+    @Override
+    public String toString() {
+        return "LoopbackTransport[" + name + "]";
+    }
+}
@@ -1,5 +1,11 @@
 package com.securechat.network;
 
+import com.securechat.jfr.PacketDroppedEvent;
+import com.securechat.jfr.PacketRoutedEvent;
+import com.securechat.metrics.Counter;
+import com.securechat.metrics.Histogram;
+import com.securechat.metrics.MetricsRegistry;
+import com.securechat.metrics.TraceClock;
 import com.securechat.protocol.Packet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +19,9 @@ import java.util.concurrent.ConcurrentHashMap;
  * <p>This class maintains a thread-safe mapping of active peer connections,
  * organized by user ID and device ID. It supports registering, unregistering,
  * and routing message packets to the appropriate device connection.
+ *
+ * <p>A {@link PresenceListener} can be set to hear about devices coming online and
+ * going offline as they are registered and unregistered.
  * 
  * @author bhickensalsa
  * @version 0.1
@@ -21,14 +30,52 @@ public class MessageRouter {
 
     private static final Logger logger = LoggerFactory.getLogger(MessageRouter.class);
 
+    /**
+     * Receives presence changes of individual devices. Called on the thread that
+     * registered or unregistered the device, so implementations should return quickly.
+     */
+    public interface PresenceListener {
+
+        /**
+         * Called after a device's connection is registered or removed. Replacing a
+         * device's connection is not a change.
+         *
+         * @param userId   the user ID
+         * @param deviceId the device ID
+         * @param online   true if the device was registered, false if it was removed
+         */
+        void onPresenceChanged(String userId, int deviceId, boolean online);
+    }
+
     /**
      * Maps userId -> (deviceId -> PeerConnection)
      */
     private final Map<String, Map<Integer, PeerConnection>> activePeers = new ConcurrentHashMap<>();
 
+    // Packets handed to the recipient's connection. They may still be queued there: another
+    // sender can write them after sendMessageObject returns, or they are lost if the write fails
+    private final Counter routed = MetricsRegistry.global().counter("router.routed");
+    private final Counter dropped = MetricsRegistry.global().counter("router.dropped");
+    private final Counter noRoute = MetricsRegistry.global().counter("router.noroute");
+    // Time to hand a packet to the recipient's connection, which includes the write only
+    // when this thread ends up writing it
+    private final Histogram sendLatency = MetricsRegistry.global().histogram("router.send");
+
+    private volatile PresenceListener presenceListener;
+
+    /**
+     * Sets the listener told about devices coming online and going offline.
+     *
+     * @param listener the listener (may be null)
+     */
+    public void setPresenceListener(PresenceListener listener) {
+        this.presenceListener = listener;
+    }
+
     /**
      * Registers or replaces a peer connection for a specific user and device.
-     * If an existing connection is replaced, it will be closed.
+     * If an existing, different connection is replaced, it will be closed;
+     * re-registering the same connection is a no-op.
      *
      * @param userId     the user's unique identifier (non-null)
      * @param deviceId   the device ID (non-negative)
@@ -41,12 +88,14 @@ public class MessageRouter {
             throw new IllegalArgumentException("Invalid parameters for registerPeer");
         }
 
+        boolean[] added = new boolean[1];
         activePeers.compute(userId, (uid, devices) -> {
             if (devices == null) {
                 devices = new ConcurrentHashMap<>();
             }
             PeerConnection old = devices.put(deviceId, connection);
-            if (old != null) {
+            added[0] = old == null;
+            if (old != null && old != connection) {
                 try {
                     old.close();
                     logger.info("Replaced existing connection for user '{}' device '{}'", userId, deviceId);
@@ -58,6 +107,9 @@ public class MessageRouter {
         });
 
         logger.info("Registered peer for user '{}' on device {}", userId, deviceId);
+        if (added[0]) {
+            notifyPresence(userId, deviceId, true);
+        }
     }
 
     /**
@@ -70,6 +122,8 @@ public class MessageRouter {
     public void routeMessage(Packet packet, String senderId) {
         if (packet == null || packet.getRecipientId() == null) {
             logger.warn("Invalid packet or recipientId; message dropped.");
+            dropped.increment();
+            emitDropped(packet, null, -1, "invalid packet");
             return;
         }
         sendToPeer(packet, packet.getRecipientId(), packet.getRecipientDeviceId(), senderId);
@@ -109,6 +163,7 @@ public class MessageRouter {
                 } catch (Exception e) {
                     logger.warn("Error closing connection for '{}@{}'", userId, deviceId, e);
                 }
+                notifyPresence(userId, deviceId, false);
             });
             return true;
         } else {
@@ -127,9 +182,11 @@ public class MessageRouter {
      * @return true if the device connection was found and unregistered; false otherwise
      */
     public boolean unregisterPeerDevice(String userId, int deviceId) {
-        return activePeers.computeIfPresent(userId, (uid, devices) -> {
+        boolean[] removed = new boolean[1];
+        boolean remaining = activePeers.computeIfPresent(userId, (uid, devices) -> {
             PeerConnection conn = devices.remove(deviceId);
             if (conn != null) {
+                removed[0] = true;
                 try {
                     conn.close();
                     logger.info("Unregistered device {} for user '{}'", deviceId, userId);
@@ -143,6 +200,54 @@ public class MessageRouter {
             }
             return devices;
         }) != null;
+        if (removed[0]) {
+            notifyPresence(userId, deviceId, false);
+        }
+        return remaining;
+    }
+
+    /**
+     * Unregisters a device only if it is still registered with the given connection,
+     * e.g. when that connection closes. A connection already replaced by a reconnect
+     * leaves the newer registration in place.
+     *
+     * @param userId     the user ID (non-null)
+     * @param deviceId   the device ID
+     * @param connection the connection that closed
+     * @return true if the device was registered with this connection and was removed
+     */
+    public boolean unregisterPeerDevice(String userId, int deviceId, PeerConnection connection) {
+        boolean[] removed = new boolean[1];
+        activePeers.computeIfPresent(userId, (uid, devices) -> {
+            removed[0] = devices.remove(deviceId, connection);
+            return devices.isEmpty() ? null : devices;
+        });
+        if (removed[0]) {
+            logger.info("Unregistered closed connection of device {} for user '{}'", deviceId, userId);
+            notifyPresence(userId, deviceId, false);
+        }
+        return removed[0];
+    }
+
+    /**
+     * Returns whether any device of the user has a registered connection.
+     *
+     * @param userId the user ID (non-null)
+     * @return true if the user is online here
+     */
+    public boolean isOnline(String userId) {
+        return activePeers.containsKey(userId);
+    }
+
+    /**
+     * Returns whether a connection is registered for the specified user and device.
+     *
+     * @param userId   the user ID (non-null)
+     * @param deviceId the device ID
+     * @return true if {@link #routeMessage} would find a local connection
+     */
+    public boolean hasPeer(String userId, int deviceId) {
+        return getConnection(userId, deviceId) != null;
     }
 
     /**
@@ -169,18 +274,74 @@ public class MessageRouter {
     private void sendToPeer(Packet packet, String recipientId, int recipientDeviceId, String senderId) {
         PeerConnection recipientConn = getConnection(recipientId, recipientDeviceId);
         if (recipientConn != null) {
+            long start = System.nanoTime();
+            if (packet.isTraced()) {
+                packet.setTraceServerForwardMicros(TraceClock.nowMicros());
+            }
+            PacketRoutedEvent routedEvent = new PacketRoutedEvent();
+            routedEvent.begin();
             try {
                 recipientConn.sendMessageObject(packet);
-                if (senderId != null) {
-                    logger.debug("Routed message from '{}' to '{}@{}'", senderId, recipientId, recipientDeviceId);
-                } else {
-                    logger.debug("Routed packet to '{}@{}'", recipientId, recipientDeviceId);
+                sendLatency.recordSince(start);
+                routed.increment();
+                if (routedEvent.shouldCommit()) {
+                    routedEvent.sender = senderId;
+                    routedEvent.peer = recipientId;
+                    routedEvent.deviceId = recipientDeviceId;
+                    routedEvent.packetType = String.valueOf(packet.getType());
+                    routedEvent.bytes = payloadSize(packet);
+                    routedEvent.commit();
+                }
+                if (logger.isDebugEnabled()) {
+                    if (senderId != null) {
+                        logger.debug("Routed message from '{}' to '{}@{}'", senderId, recipientId, recipientDeviceId);
+                    } else {
+                        logger.debug("Routed packet to '{}@{}'", recipientId, recipientDeviceId);
+                    }
                 }
             } catch (Exception e) {
+                dropped.increment();
+                emitDropped(packet, recipientId, recipientDeviceId, "send failed");
                 logger.error("Failed to send message to '{}@{}'", recipientId, recipientDeviceId, e);
             }
         } else {
+            noRoute.increment();
+            emitDropped(packet, recipientId, recipientDeviceId, "no route");
             logger.warn("No connection for recipient '{}@{}'; packet dropped.", recipientId, recipientDeviceId);
         }
     }
+
+    /**
+     * Tells the presence listener, if any, about a device change.
+     */
+    private void notifyPresence(String userId, int deviceId, boolean online) {
+        PresenceListener listener = presenceListener;
+        if (listener != null) {
+            listener.onPresenceChanged(userId, deviceId, online);
+        }
+    }
+
+    /**
+     * Emits a {@link PacketDroppedEvent} if the event is enabled.
+     *
+     * @param packet            the dropped packet (may be null)
+     * @param recipientId       the intended recipient (may be null)
+     * @param recipientDeviceId the intended recipient device
+     * @param reason            why the packet was dropped
+     */
+    private static void emitDropped(Packet packet, String recipientId, int recipientDeviceId, String reason) {
+        PacketDroppedEvent event = new PacketDroppedEvent();
+        if (event.shouldCommit()) {
+            event.peer = recipientId;
+            event.deviceId = recipientDeviceId;
+            event.packetType = packet != null ? String.valueOf(packet.getType()) : null;
+            event.bytes = payloadSize(packet);
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    private static int payloadSize(Packet packet) {
+        return packet != null && packet.getMessagePayload() != null ? packet.getMessagePayload().length : 0;
+    }
 }
@@ -0,0 +1,423 @@
+package com.securechat.network;
+
+import com.securechat.protocol.Packet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client-side outbox for encrypted packets that must survive a dropped connection.
+ * <p>
+ * {@link #enqueue} assigns the packet a sequence number, appends its serialized form
+ * to an append-only, memory-mapped log and returns immediately. A background sender
+ * writes entries to the attached {@link PeerConnection} in sequence order. Entries
+ * stay in the log, in flight, until the server acknowledges their sequence number
+ * ({@link #acknowledge}); acknowledgements are cumulative and trim the log.
+ * </p>
+ * <p>
+ * When a send fails the sender waits for {@link #attach} to supply a new connection,
+ * then replays every unacknowledged entry in order. Because the log is a file, a
+ * persistent outbox ({@link #open}) also replays entries left over from a previous run.
+ * When the server refuses an entry to slow the client down, {@link #rewind} pauses the
+ * sender and then resends from that entry; {@link #pause} only pauses it.
+ * </p>
+ * <p>
+ * The sender also stays within the credit the server grants with CREDIT packets
+ * ({@link #grant}). Entries past the credit wait in the log, so a client cannot push
+ * more into the server than the server has room to process, and the log's fixed size
+ * bounds what waits locally.
+ * </p>
+ * <p>
+ * Log layout (big-endian): a 16-byte header (magic, reserved, highest acknowledged
+ * sequence) followed by entries of {@code [int length][long sequence][payload]}; a zero
+ * length marks the end of the log. Space before the oldest in-flight entry is reclaimed
+ * by resetting the log when it drains and by compacting it when it fills.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class Outbox {
+
+    private static final Logger logger = LoggerFactory.getLogger(Outbox.class);
+
+    /** Default log capacity: 16 MiB. */
+    public static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+    /**
+     * Entries past the last acknowledged one that may be sent on a new connection before
+     * the server grants more. Client and server both assume it, so no round trip is needed.
+     */
+    public static final int INITIAL_CREDITS = 64;
+
+    private static final int MAGIC = 0x59534F42; // "YSOB"
+    private static final int HEADER_SIZE = 16;
+    private static final int ACKED_OFFSET = 8;
+    private static final int ENTRY_HEADER_SIZE = 12;
+
+    private final String userId;
+    private final Path file;
+    private final boolean temporary;
+    private final FileChannel channel;
+    private final MappedByteBuffer log;
+    private final ExecutorService sender = Executors.newSingleThreadExecutor();
+
+    // Guarded by this
+    private final TreeMap<Long, Integer> inFlight = new TreeMap<>(); // sequence -> entry offset
+    private int writeOffset = HEADER_SIZE;
+    private long nextSequence;
+    private long ackedSequence;
+    private long sentSequence;
+    private long resumeAtNanos = System.nanoTime(); // sending is paused until this time
+    private long creditLimit;                       // highest sequence the server lets us send
+    private PeerConnection connection;
+    private boolean closed;
+
+    /**
+     * Opens a persistent outbox at {@code file}, creating it if needed. Unacknowledged
+     * entries from a previous run are kept and replayed once a connection is attached.
+     *
+     * @param userId   the local user ID (for logging)
+     * @param file     the log file
+     * @param capacity the log size in bytes (at least 4 KiB)
+     * @return the outbox
+     * @throws IOException if the file cannot be opened or is not an outbox log
+     */
+    public static Outbox open(String userId, Path file, int capacity) throws IOException {
+        return new Outbox(userId, file, capacity, false);
+    }
+
+    /**
+     * Creates an outbox backed by a temporary file that is deleted on {@link #close()}.
+     *
+     * @param userId   the local user ID (for logging)
+     * @param capacity the log size in bytes (at least 4 KiB)
+     * @return the outbox
+     * @throws IOException if the temporary file cannot be created
+     */
+    public static Outbox temporary(String userId, int capacity) throws IOException {
+        return new Outbox(userId, Files.createTempFile("yapp-outbox-", ".log"), capacity, true);
+    }
+
+    private Outbox(String userId, Path file, int capacity, boolean temporary) throws IOException {
+        if (capacity < 4096) {
+            throw new IllegalArgumentException("capacity must be at least 4096 bytes");
+        }
+        this.userId = userId;
+        this.file = file;
+        this.temporary = temporary;
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.log = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, channel.size()));
+
+        if (log.getInt(0) == MAGIC) {
+            recover();
+        } else {
+            log.putInt(0, MAGIC);
+            log.putLong(ACKED_OFFSET, 0);
+            log.putInt(HEADER_SIZE, 0);
+        }
+        this.nextSequence = Math.max(ackedSequence, inFlight.isEmpty() ? 0 : inFlight.lastKey()) + 1;
+        this.sentSequence = ackedSequence;
+
+        sender.submit(this::drain);
+        logger.info("[{}] Outbox opened at {} ({} entries in flight)", userId, file, inFlight.size());
+    }
+
+    /**
+     * Appends a packet to the log and schedules it for sending. Never blocks on the network.
+     * The packet's sequence number is set as a side effect.
+     *
+     * @param packet the packet to send (non-null)
+     * @return true if the packet was queued; false if the log is full or the outbox is closed
+     */
+    public boolean enqueue(Packet packet) {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            packet.setSequence(nextSequence);
+            byte[] payload = serialize(packet);
+            int required = ENTRY_HEADER_SIZE + payload.length + 4; // room for the end marker
+            if (writeOffset + required > log.capacity()) {
+                compact();
+                if (writeOffset + required > log.capacity()) {
+                    logger.warn("[{}] Outbox full ({} entries in flight), rejecting {}", userId, inFlight.size(), packet.getType());
+                    return false;
+                }
+            }
+
+            int offset = writeOffset;
+            log.putLong(offset + 4, nextSequence);
+            log.put(offset + ENTRY_HEADER_SIZE, payload);
+            log.putInt(offset + ENTRY_HEADER_SIZE + payload.length, 0);
+            log.putInt(offset, payload.length); // publish the entry last
+            writeOffset = offset + ENTRY_HEADER_SIZE + payload.length;
+
+            inFlight.put(nextSequence++, offset);
+            notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Trims every entry up to and including {@code sequence} from the log.
+     *
+     * @param sequence the highest sequence number the server has received
+     */
+    public synchronized void acknowledge(long sequence) {
+        if (sequence <= ackedSequence) {
+            return;
+        }
+        ackedSequence = Math.min(sequence, nextSequence - 1);
+        sentSequence = Math.max(sentSequence, ackedSequence);
+        inFlight.headMap(ackedSequence, true).clear();
+        log.putLong(ACKED_OFFSET, ackedSequence);
+
+        if (inFlight.isEmpty()) {
+            writeOffset = HEADER_SIZE;
+            log.putInt(HEADER_SIZE, 0);
+        }
+    }
+
+    /**
+     * Attaches a (new) connection and replays every unacknowledged entry over it, in order.
+     *
+     * @param connection the connection to send on (non-null)
+     */
+    public synchronized void attach(PeerConnection connection) {
+        this.connection = connection;
+        this.sentSequence = ackedSequence;
+        this.creditLimit = ackedSequence + INITIAL_CREDITS;
+        if (!inFlight.isEmpty()) {
+            logger.info("[{}] Replaying {} unacknowledged packets", userId, inFlight.size());
+        }
+        notifyAll();
+    }
+
+    /**
+     * Pauses sending, then resends every entry from {@code sequence} on. Used when the
+     * server refuses an entry to slow the client down: it drops later entries too, so
+     * they must all be resent.
+     *
+     * @param sequence    the refused entry's sequence number
+     * @param pauseMillis how long to wait before resending
+     */
+    public synchronized void rewind(long sequence, long pauseMillis) {
+        if (sequence <= ackedSequence) {
+            return;
+        }
+        sentSequence = Math.min(sentSequence, sequence - 1);
+        pause(pauseMillis);
+    }
+
+    /**
+     * Extends the send credit on the current connection to {@code sequence}. Grants never
+     * shrink the credit, so a late or repeated grant is harmless.
+     *
+     * @param sequence the highest sequence the server allows to be sent
+     */
+    public synchronized void grant(long sequence) {
+        if (sequence > creditLimit) {
+            creditLimit = sequence;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Pauses sending without resending anything, e.g. while the server reports it is
+     * overloaded. A pause never shortens one already in effect.
+     *
+     * @param pauseMillis how long to wait before sending again
+     */
+    public synchronized void pause(long pauseMillis) {
+        long resumeAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pauseMillis);
+        if (resumeAt - resumeAtNanos > 0) {
+            resumeAtNanos = resumeAt;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of entries not yet acknowledged by the server.
+     *
+     * @return the in-flight entry count
+     */
+    public synchronized int inFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Stops the sender and closes the log. Unacknowledged entries in a persistent outbox
+     * remain on disk; a temporary outbox deletes its file.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        sender.shutdownNow();
+        try {
+            log.force();
+            channel.close();
+            if (temporary) {
+                Files.deleteIfExists(file);
+            }
+            logger.info("[{}] Outbox closed", userId);
+        } catch (IOException e) {
+            logger.warn("[{}] Failed to close outbox {}: {}", userId, file, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sender loop: waits for an attached connection, an unsent entry and the end of any
+     * pause, then sends the entry outside the lock. A failed send detaches the connection
+     * until the next {@link #attach}.
+     */
+    private void drain() {
+        try {
+            while (true) {
+                PeerConnection target;
+                long sequence;
+                byte[] payload;
+                synchronized (this) {
+                    Map.Entry<Long, Integer> next;
+                    while (true) {
+                        if (closed) {
+                            return;
+                        }
+                        // Out of credit, the next entry waits here for a CREDIT from the server
+                        if (connection == null || (next = inFlight.higherEntry(sentSequence)) == null
+                                || next.getKey() > creditLimit) {
+                            wait();
+                            continue;
+                        }
+                        long pause = resumeAtNanos - System.nanoTime();
+                        if (pause <= 0) {
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, pause);
+                    }
+                    target = connection;
+                    sequence = next.getKey();
+                    payload = readPayload(next.getValue());
+                    sentSequence = sequence;
+                }
+
+                Packet packet;
+                try {
+                    packet = deserialize(payload);
+                } catch (IOException e) {
+                    logger.error("[{}] Dropping unreadable outbox entry {}", userId, sequence, e);
+                    synchronized (this) {
+                        inFlight.remove(sequence);
+                    }
+                    continue;
+                }
+
+                try {
+                    target.sendMessageObject(packet);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        if (connection == target) {
+                            connection = null;
+                            sentSequence = ackedSequence;
+                        }
+                    }
+                    logger.warn("[{}] Outbox send of packet {} failed, waiting for reconnect: {}", userId, sequence, e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Rebuilds the in-flight index from an existing log, skipping acknowledged entries.
+     */
+    private void recover() {
+        ackedSequence = log.getLong(ACKED_OFFSET);
+        int offset = HEADER_SIZE;
+        while (offset + ENTRY_HEADER_SIZE <= log.capacity()) {
+            int length = log.getInt(offset);
+            if (length <= 0 || offset + ENTRY_HEADER_SIZE + length > log.capacity()) {
+                break;
+            }
+            long sequence = log.getLong(offset + 4);
+            if (sequence > ackedSequence) {
+                inFlight.put(sequence, offset);
+            }
+            offset += ENTRY_HEADER_SIZE + length;
+        }
+        writeOffset = offset;
+    }
+
+    /**
+     * Moves the in-flight entries to the start of the log, reclaiming the space of
+     * acknowledged entries before them. Caller holds the lock.
+     */
+    private void compact() {
+        if (inFlight.isEmpty()) {
+            writeOffset = HEADER_SIZE;
+            log.putInt(HEADER_SIZE, 0);
+            return;
+        }
+        int first = inFlight.firstEntry().getValue();
+        int shift = first - HEADER_SIZE;
+        if (shift == 0) {
+            return;
+        }
+        int live = writeOffset - first;
+        byte[] region = new byte[live];
+        log.get(first, region);
+        log.put(HEADER_SIZE, region);
+        log.putInt(HEADER_SIZE + live, 0);
+        inFlight.replaceAll((sequence, offset) -> offset - shift);
+        writeOffset -= shift;
+        logger.debug("[{}] Compacted outbox, reclaimed {} bytes", userId, shift);
+    }
+
+    private byte[] readPayload(int offset) {
+        byte[] payload = new byte[log.getInt(offset)];
+        log.get(offset + ENTRY_HEADER_SIZE, payload);
+        return payload;
+    }
+
+    private static byte[] serialize(Packet packet) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(packet);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to serialize packet", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Packet deserialize(byte[] payload) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return (Packet) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Corrupt outbox entry", e);
+        }
+    }
+}
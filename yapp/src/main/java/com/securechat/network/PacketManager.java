@@ -1,16 +1,23 @@
 package com.securechat.network;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.securechat.crypto.libsignal.SignalProtocolManager;
+import com.securechat.metrics.PacketTracer;
 import com.securechat.protocol.Packet;
 import com.securechat.protocol.PacketType;
+import com.securechat.protocol.PresenceBatch;
 
 /**
  * Manages sending, receiving, and processing of encrypted packets for a user's device.
@@ -35,6 +42,16 @@ public class PacketManager {
     private final SignalProtocolManager SPManager;
     private final ExecutorService pool;
     private final Map<String, CompletableFuture<Packet>> pendingRequests;
+    private volatile Runnable bundleRequestHandler;
+    private volatile Outbox outbox;
+    private volatile Consumer<byte[]> sessionTokenHandler;
+    private volatile Runnable disconnectHandler;
+    private volatile BiConsumer<Packet, String> messageHandler;
+    private volatile BiConsumer<String, Boolean> presenceHandler;
+    private volatile LongConsumer overloadHandler;
+    private volatile boolean shuttingDown;
+    private volatile boolean connectionLost;
+    private final PacketTracer tracer = new PacketTracer(PacketTracer.DEFAULT_SAMPLE_RATE);
 
     /**
      * Constructs a PacketManager for the specified user device, managing
@@ -78,11 +95,111 @@ public class PacketManager {
                     }
                 }
             } catch (Exception e) {
-                logger.error("[{}] Listening error", userId, e);
+                if (shuttingDown) {
+                    logger.debug("[{}] Listener stopped: {}", userId, e.getMessage());
+                    return;
+                }
+                logger.error("[{}] Listening error, connection lost", userId, e);
+                connectionLost = true;
+                Runnable handler = disconnectHandler;
+                if (handler != null) {
+                    handler.run();
+                }
             }
         });
     }
 
+    /**
+     * Sets the share of outgoing messages that carry latency trace timestamps.
+     * Defaults to {@link PacketTracer#DEFAULT_SAMPLE_RATE}.
+     *
+     * @param sampleRate the sampling rate in [0, 1]; 0 disables tracing
+     */
+    public void setTraceSampleRate(double sampleRate) {
+        tracer.setSampleRate(sampleRate);
+    }
+
+    /**
+     * Sets the callback receiving resume tokens issued by the server.
+     *
+     * @param handler the token consumer (may be null to ignore tokens)
+     */
+    public void setSessionTokenHandler(Consumer<byte[]> handler) {
+        this.sessionTokenHandler = handler;
+    }
+
+    /**
+     * Returns whether the listener has stopped because the connection was lost. Set
+     * before the disconnect handler runs.
+     *
+     * @return true if the connection was lost
+     */
+    public boolean isConnectionLost() {
+        return connectionLost;
+    }
+
+    /**
+     * Sets the callback run on the listener thread when the connection is lost,
+     * i.e. when receiving fails for any reason other than {@link #shutdown()}.
+     *
+     * @param handler the callback, typically scheduling a reconnect (may be null)
+     */
+    public void setDisconnectHandler(Runnable handler) {
+        this.disconnectHandler = handler;
+    }
+
+    /**
+     * Sets the callback receiving every decrypted MESSAGE and PREKEY_MESSAGE together
+     * with its plaintext. It runs on the listener thread, so it should return quickly.
+     *
+     * @param handler the message consumer (may be null)
+     */
+    public void setMessageHandler(BiConsumer<Packet, String> handler) {
+        this.messageHandler = handler;
+    }
+
+    /**
+     * Sets the callback receiving presence changes of followed users, one call per user
+     * with whether that user is now online. It runs on the listener thread.
+     *
+     * @param handler the presence consumer (may be null)
+     */
+    public void setPresenceHandler(BiConsumer<String, Boolean> handler) {
+        this.presenceHandler = handler;
+    }
+
+    /**
+     * Sets the callback run when the server reports it is overloaded, with the
+     * milliseconds the client should hold off before reconnecting. It runs on the
+     * listener thread.
+     *
+     * @param handler the retry-after consumer (may be null)
+     */
+    public void setOverloadHandler(LongConsumer handler) {
+        this.overloadHandler = handler;
+    }
+
+    /**
+     * Sets the callback run when the server asks this client to upload its full
+     * PreKeyBundle, e.g. after a digest-only registration the server could not match.
+     *
+     * @param handler the callback uploading the bundle (may be null to ignore such requests)
+     */
+    public void setBundleRequestHandler(Runnable handler) {
+        this.bundleRequestHandler = handler;
+    }
+
+    /**
+     * Sets the outbox through which messages and ACKs are sent. With an outbox, sends
+     * return as soon as the packet is queued and survive a dropped connection; without
+     * one they are written directly to the connection.
+     *
+     * @param outbox the client outbox (may be null to send directly)
+     */
+    public void setOutbox(Outbox outbox) {
+        this.outbox = outbox;
+    }
+
     /**
      * Sends an encrypted message packet of the specified type to the given peer device.
      *
@@ -100,9 +217,12 @@ public class PacketManager {
             };
 
             Packet packet = new Packet(userId, userDeviceId, peerId, peerDeviceId, encrypted, type);
-            connection.sendMessageObject(packet);
+            tracer.sample(packet);
+            send(packet);
 
-            logger.info("[{}] Sent {} to {}", userId, type, peerId);
+            if (logger.isDebugEnabled()) {
+                logger.debug("[{}] Sent {} to {}", userId, type, peerId);
+            }
         } catch (Exception e) {
             logger.error("[{}] Failed to send {} to {}: {}", userId, type, peerId, e.getMessage(), e);
         }
@@ -117,18 +237,49 @@ public class PacketManager {
     public void sendAck(String peerId, int peerDeviceId) {
         try {
             Packet ack = new Packet(userId, userDeviceId, peerId, peerDeviceId, null, PacketType.ACK);
-            connection.sendMessageObject(ack);
-            logger.info("[{}] Sent ACK to {}:{}", userId, peerId, peerDeviceId);
+            send(ack);
+            if (logger.isDebugEnabled()) {
+                logger.debug("[{}] Sent ACK to {}:{}", userId, peerId, peerDeviceId);
+            }
         } catch (Exception e) {
             logger.error("[{}] Failed to send ACK to {}:{}", userId, peerId, peerDeviceId, e);
         }
     }
 
+    /**
+     * Passes a decrypted message to the message handler, if one is set.
+     *
+     * @param packet    the received packet
+     * @param plaintext the decrypted content
+     */
+    private void deliver(Packet packet, String plaintext) {
+        BiConsumer<Packet, String> handler = messageHandler;
+        if (handler != null) {
+            handler.accept(packet, plaintext);
+        }
+    }
+
+    /**
+     * Queues a packet on the outbox if one is set, otherwise writes it to the connection.
+     *
+     * @param packet the packet to send (non-null)
+     * @throws IOException if the outbox is full or writing to the connection fails
+     */
+    private void send(Packet packet) throws IOException {
+        Outbox box = outbox;
+        if (box == null) {
+            connection.sendMessageObject(packet);
+        } else if (!box.enqueue(packet)) {
+            throw new IOException("Outbox rejected " + packet.getType());
+        }
+    }
+
     /**
      * Stops listening for incoming packets and shuts down the internal thread pool.
      * Once shut down, this PacketManager will no longer process incoming packets.
      */
     public void shutdown() {
+        shuttingDown = true;
         pool.shutdownNow();
         logger.info("[{}] PacketManager listener shutdown", userId);
     }
@@ -158,7 +309,11 @@ public class PacketManager {
 
                 case PREKEY_MESSAGE -> {
                     String plaintext = SPManager.decryptPreKeyMessage(senderId, senderDeviceId, packet.getMessagePayload());
-                    logger.info("[{}] Received PREKEY_MESSAGE from {}: {}", userId, senderKey, plaintext);
+                    tracer.recordDelivery(packet);
+                    deliver(packet, plaintext);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("[{}] Received PREKEY_MESSAGE from {}: {}", userId, senderKey, plaintext);
+                    }
                     sendAck(senderId, senderDeviceId);
                 }
 
@@ -168,11 +323,21 @@ public class PacketManager {
                         return;
                     }
                     String plaintext = SPManager.decryptMessage(senderId, senderDeviceId, packet.getMessagePayload());
-                    logger.info("[{}] Received MESSAGE from {}: {}", userId, senderKey, plaintext);
+                    tracer.recordDelivery(packet);
+                    deliver(packet, plaintext);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("[{}] Received MESSAGE from {}: {}", userId, senderKey, plaintext);
+                    }
                 }
 
                 case ACK -> {
-                    logger.info("[{}] Received ACK from {}", userId, senderKey);
+                    Outbox box = outbox;
+                    if (senderId == null && box != null) {
+                        box.acknowledge(packet.getSequence());
+                        logger.debug("[{}] Server acknowledged packets up to {}", userId, packet.getSequence());
+                    } else {
+                        logger.debug("[{}] Received ACK from {}", userId, senderKey);
+                    }
                 }
 
                 case ERROR -> {
@@ -188,8 +353,89 @@ public class PacketManager {
                 }
 
                 case GET_PREKEY_BUNDLE -> {
-                    logger.warn("[{}] Received unexpected GET_PREKEY_BUNDLE from {}", userId, senderKey);
-                    // Typically sent to server, not expected from peer
+                    Runnable handler = bundleRequestHandler;
+                    if (senderId == null && handler != null) {
+                        logger.info("[{}] Server requested our PreKeyBundle", userId);
+                        handler.run();
+                    } else {
+                        // Typically sent to server, not expected from peer
+                        logger.warn("[{}] Received unexpected GET_PREKEY_BUNDLE from {}", userId, senderKey);
+                    }
+                }
+
+                case PING -> {
+                    Packet pong = new Packet();
+                    pong.setType(PacketType.PONG);
+                    pong.setSenderId(userId);
+                    pong.setSenderDeviceId(userDeviceId);
+                    connection.sendMessageObject(pong);
+                    logger.debug("[{}] Answered PING from server", userId);
+                }
+
+                case PONG -> logger.debug("[{}] Received PONG from {}", userId, senderKey);
+
+                case SESSION_TOKEN -> {
+                    Consumer<byte[]> handler = sessionTokenHandler;
+                    if (senderId == null && handler != null) {
+                        handler.accept(packet.getMessagePayload());
+                        logger.debug("[{}] Received resume token from server", userId);
+                    } else {
+                        logger.warn("[{}] Received unexpected SESSION_TOKEN from {}", userId, senderKey);
+                    }
+                }
+
+                case SLOW_DOWN, OVERLOAD -> {
+                    if (senderId != null) {
+                        logger.warn("[{}] Received unexpected {} from {}", userId, packet.getType(), senderKey);
+                        return;
+                    }
+                    long retryAfter = packet.getRetryAfterMillis();
+                    String reason = packet.getType() == PacketType.SLOW_DOWN ? "rate limited" : "server overloaded";
+                    Outbox box = outbox;
+                    if (packet.getSequence() > 0) {
+                        if (box != null) {
+                            box.rewind(packet.getSequence(), retryAfter);
+                        }
+                        logger.debug("[{}] {}, resending from packet {} in {} ms", userId, reason, packet.getSequence(), retryAfter);
+                    } else if (packet.getMessagePayload() != null) {
+                        String peerId = new String(packet.getMessagePayload(), StandardCharsets.UTF_8);
+                        CompletableFuture<Packet> future = pendingRequests.remove(peerId + ":" + PacketType.PREKEY_BUNDLE.name());
+                        if (future != null) {
+                            future.completeExceptionally(new IllegalStateException(
+                                    "PreKeyBundle request for " + peerId + " refused (" + reason + "), retry in " + retryAfter + " ms"));
+                        }
+                        logger.warn("[{}] Refused the PreKeyBundle of {}: {}", userId, peerId, reason);
+                    } else if (box != null) {
+                        box.pause(retryAfter);
+                        logger.debug("[{}] {}, pausing sends for {} ms", userId, reason, retryAfter);
+                    }
+                    LongConsumer handler = overloadHandler;
+                    if (packet.getType() == PacketType.OVERLOAD && handler != null) {
+                        handler.accept(retryAfter);
+                    }
+                }
+
+                case CREDIT -> {
+                    Outbox box = outbox;
+                    if (senderId != null) {
+                        logger.warn("[{}] Received unexpected CREDIT from {}", userId, senderKey);
+                    } else if (box != null) {
+                        box.grant(packet.getSequence());
+                        logger.debug("[{}] Send credit extended to packet {}", userId, packet.getSequence());
+                    }
+                }
+
+                case PRESENCE -> {
+                    PresenceBatch batch = packet.getPresencePayload();
+                    BiConsumer<String, Boolean> handler = presenceHandler;
+                    if (senderId != null || batch == null) {
+                        logger.warn("[{}] Received unexpected PRESENCE from {}", userId, senderKey);
+                    } else if (handler != null) {
+                        for (int i = 0; i < batch.size(); i++) {
+                            handler.accept(batch.getUserId(i), batch.isOnline(i));
+                        }
+                    }
+                    logger.debug("[{}] Received presence of {} users", userId, batch != null ? batch.size() : 0);
                 }
 
                 default -> {
@@ -1,16 +1,38 @@
 package com.securechat.network;
 
-import java.io.*;
+import com.securechat.protocol.Packet;
+
+import java.io.IOException;
 import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Represents a network connection to a peer using a socket with
- * object input/output streams for sending and receiving serializable objects.
+ * Represents a connection to a peer over which serializable objects are sent and received.
+ *
+ * <p>The objects travel over a {@link Transport}: a {@link SocketTransport} for network
+ * peers, or a {@link LoopbackTransport} for a peer in the same JVM. This class adds
+ * idle tracking and hibernation on top of it, and provides thread-safe methods to
+ * send and receive objects.
  *
- * <p>This class wraps a {@link Socket} and provides thread-safe methods
- * to send and receive objects over the network connection.
+ * <p>Outgoing objects are split into two priority classes. Bulk packets (see
+ * {@link com.securechat.protocol.PacketType#isBulk()}) wait behind control packets, such
+ * as ACKs, PreKey messages and prekey bundles, so a burst of messages does not hold up a
+ * handshake. The server acknowledges client outbox packets cumulatively, so a control
+ * packet carrying an outbox sequence must not overtake an earlier outbox packet that is
+ * still queued as bulk, or it would acknowledge that packet before it was written. Such a
+ * packet joins the bulk class while sequenced bulk packets are waiting, and is control
+ * otherwise. Sequenced packets from the server (sender ID null) only refer to the
+ * receiving client's own outbox, so they may overtake anything. One
+ * sender at a time writes to the transport and, while it holds the write lock, also
+ * writes whatever other senders queue meanwhile: up to {@link #CONTROL_WEIGHT} control
+ * packets per bulk packet, so neither class starves the other. A sender finding the lock
+ * taken returns at once, unless its class already has a full backlog, in which case it
+ * waits for the lock like a blocked socket write would.
  *
- * <p>It manages the underlying streams and socket lifecycle, including
+ * <p>It manages the lifecycle of the underlying transport, including
  * proper closing of resources.
  * 
  * @author bhickensalsa
@@ -18,87 +40,264 @@ import java.net.Socket;
  */
 public class PeerConnection {
 
-    private final Socket socket;
-    private final ObjectInputStream input;
-    private final ObjectOutputStream output;
+    /** Control packets written for each bulk packet while both classes are waiting. */
+    static final int CONTROL_WEIGHT = 4;
+
+    /** Queued bulk packets beyond which a sender waits for the writer. */
+    static final int BULK_BACKLOG = 64;
+
+    /** Queued control packets beyond which a sender waits for the writer. */
+    static final int CONTROL_BACKLOG = 1024;
+
+    private final Transport transport;
+
+    private final Queue<Object> control = new ConcurrentLinkedQueue<>();
+    private final Queue<Object> bulk = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger controlQueued = new AtomicInteger();
+    private final AtomicInteger bulkQueued = new AtomicInteger();
+    private final AtomicInteger sequencedBulkQueued = new AtomicInteger();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile IOException writeFailure;
+
+    private volatile long lastReceivedNanos = System.nanoTime();
+    private volatile boolean hibernated;
 
     /**
-     * Creates a PeerConnection wrapping the given socket.
-     * Initializes the object input and output streams.
+     * Creates a PeerConnection over a socket, using a {@link SocketTransport}.
      *
      * @param socket the connected socket to the peer (non-null)
      * @throws IOException if an I/O error occurs during stream initialization
      */
     public PeerConnection(Socket socket) throws IOException {
-        this.socket = socket;
-        this.output = new ObjectOutputStream(socket.getOutputStream());
-        this.output.flush();  // flush header to avoid stream deadlock
-        this.input = new ObjectInputStream(socket.getInputStream());
+        this(new SocketTransport(socket));
     }
 
     /**
-     * Sends a serializable object to the peer over the output stream.
-     * This method is synchronized to prevent concurrent writes on the stream.
+     * Creates a PeerConnection over the given transport.
+     *
+     * @param transport the connected transport to the peer (non-null)
+     */
+    public PeerConnection(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Sends a serializable object to the peer. Safe to call from several threads. The
+     * object may be written by another sender after this returns; objects of one priority
+     * class are written in the order they were sent.
      *
      * @param obj the object to send (non-null, must be Serializable)
-     * @throws IOException if an I/O error occurs during sending
+     * @throws IOException if an earlier write on this connection failed, or writing fails
      */
     public void sendMessageObject(Object obj) throws IOException {
-        synchronized (output) {
-            output.writeObject(obj);
-            output.flush();
+        checkWritable();
+        boolean sequenced = isSequenced(obj);
+        boolean isBulk = isBulk(obj, sequenced);
+        int backlog;
+        if (isBulk) {
+            backlog = bulkQueued.incrementAndGet();
+            if (sequenced) {
+                sequencedBulkQueued.incrementAndGet();
+            }
+            bulk.add(obj);
+        } else {
+            backlog = controlQueued.incrementAndGet();
+            control.add(obj);
+        }
+        if (backlog > (isBulk ? BULK_BACKLOG : CONTROL_BACKLOG)) {
+            writeLock.lock();
+        } else if (!writeLock.tryLock()) {
+            return;
         }
+        writeAndUnlock();
     }
 
     /**
-     * Receives a serializable object from the peer over the input stream.
-     * This method is synchronized to prevent concurrent reads on the stream.
+     * Writes queued objects and releases the write lock, taking it back for whatever was
+     * queued by senders that found it held meanwhile. Called with the write lock held.
+     *
+     * @throws IOException if writing fails
+     */
+    private void writeAndUnlock() throws IOException {
+        while (true) {
+            try {
+                writeQueued();
+            } finally {
+                writeLock.unlock();
+            }
+            // Something queued after the last poll found the lock held, so its sender left it to us
+            if ((control.isEmpty() && bulk.isEmpty()) || !writeLock.tryLock()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes queued objects until both classes are empty, taking up to
+     * {@link #CONTROL_WEIGHT} control objects per bulk object. Called with the write lock held.
+     *
+     * @throws IOException if writing fails; the queues are then discarded
+     */
+    private void writeQueued() throws IOException {
+        checkWritable();
+        int credit = CONTROL_WEIGHT;
+        while (true) {
+            Object next;
+            if (credit > 0 && (next = control.poll()) != null) {
+                controlQueued.decrementAndGet();
+                credit--;
+            } else if ((next = bulk.poll()) != null) {
+                bulkQueued.decrementAndGet();
+                if (isSequenced(next)) {
+                    // Written before anything queued from here on, so later control packets may go ahead
+                    sequencedBulkQueued.decrementAndGet();
+                }
+                credit = CONTROL_WEIGHT;
+            } else if ((next = control.poll()) != null) {
+                controlQueued.decrementAndGet();
+            } else {
+                return;
+            }
+            try {
+                transport.send(next);
+            } catch (IOException e) {
+                failWrites(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Records a failed write and discards the queues. Called with the write lock held.
+     */
+    private void failWrites(IOException e) {
+        writeFailure = e;
+        control.clear();
+        bulk.clear();
+        controlQueued.set(0);
+        bulkQueued.set(0);
+        sequencedBulkQueued.set(0);
+    }
+
+    private boolean isBulk(Object obj, boolean sequenced) {
+        if (!(obj instanceof Packet packet) || packet.getType() == null) {
+            return false;
+        }
+        // Outbox packets never pass one another, so cumulative ACKs never cover unsent entries
+        return packet.getType().isBulk() || (sequenced && sequencedBulkQueued.get() > 0);
+    }
+
+    /**
+     * Returns whether an object is a packet from a client's outbox, i.e. one with a
+     * sequence number that is not a server notice.
+     */
+    private static boolean isSequenced(Object obj) {
+        return obj instanceof Packet packet && packet.getSequence() > 0 && packet.getSenderId() != null;
+    }
+
+    private void checkWritable() throws IOException {
+        IOException failure = writeFailure;
+        if (failure != null) {
+            throw new IOException("Connection failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * Receives an object from the peer, blocking until one arrives.
+     * Called by the connection's single listener thread.
      *
      * @return the received object, castable by the caller
      * @throws IOException            if an I/O error occurs during reading
      * @throws ClassNotFoundException if the class of a serialized object cannot be found
      */
     public Object receiveMessageObject() throws IOException, ClassNotFoundException {
-        synchronized (input) {
-            return input.readObject();
-        }
+        Object obj = transport.receive();
+        lastReceivedNanos = System.nanoTime();
+        hibernated = false;
+        return obj;
     }
 
     /**
-     * Closes the peer connection by closing the input and output streams,
-     * and the underlying socket.
+     * Blocks until the peer's handshake has arrived. Not needed before sending or
+     * receiving; a server calls it to bound how long a new client may take to open.
      *
-     * <p>If multiple close operations fail, only the first encountered exception
-     * is thrown.
+     * @throws IOException if reading the handshake fails or times out
+     * @see Transport#awaitHandshake()
+     */
+    public void awaitHandshake() throws IOException {
+        transport.awaitHandshake();
+    }
+
+    /**
+     * Returns how long ago an object was last received from the peer
+     * (or the connection was opened, if nothing has been received yet).
      *
-     * @throws IOException if an I/O error occurs while closing any resource
+     * @return the idle time in milliseconds
      */
-    public void close() throws IOException {
-        IOException ex = null;
-        try {
-            if (output != null) output.close();
-        } catch (IOException e) {
-            ex = e;
+    public long idleMillis() {
+        return (System.nanoTime() - lastReceivedNanos) / 1_000_000;
+    }
+
+    /**
+     * Moves an idle connection to a low-memory state by resetting the transport.
+     * An {@link java.io.ObjectOutputStream} keeps a reference to every object it has written
+     * (and the peer's {@link java.io.ObjectInputStream} to every object it has read) until the
+     * stream is reset, so an idle socket connection would otherwise pin all past packets.
+     * The reset is sent in-band and clears both handle tables; the connection wakes up on
+     * its next received object.
+     * <p>
+     * The reset is written under the write lock like any packet, but never waits for it: a
+     * sender holding the lock may be blocked on a peer that stopped reading, so if the lock
+     * is taken the connection is left as it is and the caller can try again later.
+     * </p>
+     *
+     * @return true if the connection is hibernated, false if a writer held the lock
+     * @throws IOException if an earlier write on this connection failed, or writing the reset fails
+     */
+    public boolean hibernate() throws IOException {
+        if (hibernated) {
+            return true;
         }
-        try {
-            if (input != null) input.close();
-        } catch (IOException e) {
-            if (ex == null) ex = e;
+        if (!writeLock.tryLock()) {
+            return false;
         }
         try {
-            if (socket != null && !socket.isClosed()) socket.close();
+            checkWritable();
+            transport.reset();
+            hibernated = true;
         } catch (IOException e) {
-            if (ex == null) ex = e;
+            failWrites(e);
+            writeLock.unlock();
+            throw e;
         }
-        if (ex != null) throw ex;
+        writeAndUnlock();
+        return true;
+    }
+
+    /**
+     * Returns whether the connection is hibernated, i.e. idle since its last {@link #hibernate()}.
+     *
+     * @return true if hibernated
+     */
+    public boolean isHibernated() {
+        return hibernated;
+    }
+
+    /**
+     * Closes the peer connection and its transport.
+     *
+     * @throws IOException if an I/O error occurs while closing
+     */
+    public void close() throws IOException {
+        transport.close();
     }
 
     /**
-     * Returns the remote socket address of the connected peer as a string.
+     * Returns the address of the connected peer as a string.
      *
-     * @return the remote socket address string (never null)
+     * @return the remote address string (never null)
      */
     public String getRemoteAddress() {
-        return socket.getRemoteSocketAddress().toString();
+        return transport.getRemoteAddress();
     }
 }
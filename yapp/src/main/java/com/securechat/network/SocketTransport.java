@@ -0,0 +1,107 @@
+package com.securechat.network;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+
+/**
+ * A {@link Transport} serializing objects over a socket with object streams.
+ * <p>
+ * Writes and reads are each synchronized on their stream, so several threads may send
+ * concurrently.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class SocketTransport implements Transport {
+
+    private final Socket socket;
+    private final Object readLock = new Object();
+    private ObjectInputStream input;  // guarded by readLock, opened on first read
+    private final ObjectOutputStream output;
+
+    /**
+     * Creates a transport over the given socket and writes this end's object stream header.
+     * The peer's header is read on the first receive.
+     *
+     * @param socket the connected socket (non-null)
+     * @throws IOException if an I/O error occurs during stream initialization
+     */
+    public SocketTransport(Socket socket) throws IOException {
+        this.socket = socket;
+        // Every send is a whole flushed packet; Nagle would only hold it back for a delayed ACK
+        socket.setTcpNoDelay(true);
+        this.output = new ObjectOutputStream(socket.getOutputStream());
+        this.output.flush();  // send the header now so the peer's first read does not wait on us
+    }
+
+    @Override
+    public void send(Object obj) throws IOException {
+        synchronized (output) {
+            output.writeObject(obj);
+            output.flush();
+        }
+    }
+
+    @Override
+    public Object receive() throws IOException, ClassNotFoundException {
+        synchronized (readLock) {
+            return input().readObject();
+        }
+    }
+
+    @Override
+    public void awaitHandshake() throws IOException {
+        synchronized (readLock) {
+            input();
+        }
+    }
+
+    /**
+     * Returns the input stream, reading the peer's stream header first if this is the first
+     * read. Deferring the header keeps construction from waiting a round trip for the peer.
+     */
+    private ObjectInputStream input() throws IOException {
+        if (input == null) {
+            input = new ObjectInputStream(socket.getInputStream());
+        }
+        return input;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        synchronized (output) {
+            output.reset();
+            output.flush();
+        }
+    }
+
+    /**
+     * Closes the streams and the socket. If several closes fail, the first exception is thrown.
+     *
+     * @throws IOException if an I/O error occurs while closing any resource
+     */
+    @Override
+    public void close() throws IOException {
+        IOException ex = null;
+        try {
+            output.close();
+        } catch (IOException e) {
+            ex = e;
+        }
+        // The input stream is left to the socket close: a listener blocked in a read holds its lock
+        try {
+            if (!socket.isClosed()) socket.close();
+        } catch (IOException e) {
+            if (ex == null) ex = e;
+        }
+        if (ex != null) throw ex;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+}
@@ -0,0 +1,71 @@
+package com.securechat.network;
+
+import java.io.IOException;
+
+/**
+ * Carries objects between the two ends of a {@link PeerConnection}.
+ * <p>
+ * {@link SocketTransport} serializes objects over a TCP socket; {@link LoopbackTransport}
+ * hands them to an in-process peer through bounded queues. Implementations must allow
+ * {@link #send} to be called from several threads at once; {@link #receive} is called by
+ * a single listener thread.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public interface Transport {
+
+    /**
+     * Sends an object to the peer, blocking while the transport is full.
+     *
+     * @param obj the object to send (non-null, Serializable for socket transports)
+     * @throws IOException if the transport is closed or writing fails
+     */
+    void send(Object obj) throws IOException;
+
+    /**
+     * Receives the next object from the peer, blocking until one arrives.
+     *
+     * @return the received object
+     * @throws java.io.EOFException   if the peer closed the transport
+     * @throws IOException            if this end is closed or reading fails
+     * @throws ClassNotFoundException if the class of a serialized object cannot be found
+     */
+    Object receive() throws IOException, ClassNotFoundException;
+
+    /**
+     * Blocks until the peer's side of the handshake has arrived, such as the header of its
+     * object stream. {@link #receive} completes the handshake implicitly, so sending never
+     * waits for it; callers use this only to bound the handshake separately. Transports
+     * without a handshake return immediately.
+     *
+     * @throws IOException if reading the handshake fails
+     */
+    default void awaitHandshake() throws IOException {
+        // No handshake to wait for
+    }
+
+    /**
+     * Releases per-stream state kept for objects already sent, such as the handle table of
+     * an {@link java.io.ObjectOutputStream}. Transports without such state do nothing.
+     *
+     * @throws IOException if the reset cannot be written
+     */
+    void reset() throws IOException;
+
+    /**
+     * Closes the transport. Pending and later receives on this end fail; the peer
+     * receives what was already sent and then sees end of stream.
+     *
+     * @throws IOException if closing fails
+     */
+    void close() throws IOException;
+
+    /**
+     * Returns a description of the peer's address for logging.
+     *
+     * @return the remote address (never null)
+     */
+    String getRemoteAddress();
+}
@@ -1,6 +1,7 @@
 package com.securechat.protocol;
 
 import java.io.Serializable;
+import com.securechat.crypto.libsignal.PreKeyBatchDTO;
 import com.securechat.crypto.libsignal.PreKeyBundleDTO;
 
 /**
@@ -24,6 +25,8 @@ public class Packet implements Serializable {
 
     // Payload fields - only one used depending on packet type
     private PreKeyBundleDTO preKeyBundlePayload;
+    private PreKeyBatchDTO preKeyBatchPayload;
+    private PresenceBatch presencePayload;
     private byte[] messagePayload;
 
     private String senderId;
@@ -31,6 +34,15 @@ public class Packet implements Serializable {
     private String recipientId;
     private int recipientDeviceId;
 
+    private long sequence;           // Client outbox sequence number, 0 if not sent through an outbox
+    private int hops;                // Inter-node forwards so far, 0 when sent by a client
+    private long retryAfterMillis;   // Back-off requested by the server, 0 if none
+
+    // Latency trace timestamps in TraceClock microseconds, 0 if the packet is not traced
+    private long traceClientSendMicros;
+    private long traceServerReceiveMicros;
+    private long traceServerForwardMicros;
+
     /**
      * Default constructor for deserialization frameworks.
      */
@@ -52,6 +64,20 @@ public class Packet implements Serializable {
         this.type = PacketType.PREKEY_BUNDLE;
     }
 
+    /**
+     * Constructs a PREKEY_UPLOAD packet containing a batch of fresh prekeys.
+     *
+     * @param senderId       the unique ID of the sender
+     * @param senderDeviceId the device ID of the sender
+     * @param preKeyBatch    the prekey batch payload
+     */
+    public Packet(String senderId, int senderDeviceId, PreKeyBatchDTO preKeyBatch) {
+        this.senderId = senderId;
+        this.senderDeviceId = senderDeviceId;
+        this.preKeyBatchPayload = preKeyBatch;
+        this.type = PacketType.PREKEY_UPLOAD;
+    }
+
     /**
      * Constructs a GET_PREKEY_BUNDLE packet, requesting a pre-key bundle
      * for a recipient's specific device.
@@ -129,6 +155,42 @@ public class Packet implements Serializable {
         this.preKeyBundlePayload = preKeyBundlePayload;
     }
 
+    /**
+     * Returns the prekey batch payload if this packet is of type PREKEY_UPLOAD.
+     *
+     * @return the prekey batch payload, or null if not applicable
+     */
+    public PreKeyBatchDTO getPreKeyBatchPayload() {
+        return preKeyBatchPayload;
+    }
+
+    /**
+     * Sets the prekey batch payload.
+     *
+     * @param preKeyBatchPayload the prekey batch payload to set
+     */
+    public void setPreKeyBatchPayload(PreKeyBatchDTO preKeyBatchPayload) {
+        this.preKeyBatchPayload = preKeyBatchPayload;
+    }
+
+    /**
+     * Returns the presence payload if this packet is of type SUBSCRIBE_PRESENCE or PRESENCE.
+     *
+     * @return the presence payload, or null if not applicable
+     */
+    public PresenceBatch getPresencePayload() {
+        return presencePayload;
+    }
+
+    /**
+     * Sets the presence payload.
+     *
+     * @param presencePayload the presence payload to set
+     */
+    public void setPresencePayload(PresenceBatch presencePayload) {
+        this.presencePayload = presencePayload;
+    }
+
     /**
      * Returns the encrypted message payload.
      *
@@ -219,6 +281,124 @@ public class Packet implements Serializable {
         this.recipientDeviceId = recipientDeviceId;
     }
 
+    /**
+     * Returns the client outbox sequence number. The server echoes it in the ACK it
+     * returns once the packet has been received.
+     *
+     * @return the sequence number, or 0 if the packet was not sent through an outbox
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Sets the client outbox sequence number.
+     *
+     * @param sequence the sequence number to set
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Returns how many times the packet has been forwarded between cluster nodes.
+     *
+     * @return the hop count, 0 for a packet straight from a client
+     */
+    public int getHops() {
+        return hops;
+    }
+
+    /**
+     * Sets the inter-node hop count.
+     *
+     * @param hops the hop count to set
+     */
+    public void setHops(int hops) {
+        this.hops = hops;
+    }
+
+    /**
+     * Returns how long the server asks the client to wait before sending again.
+     *
+     * @return the back-off in milliseconds, or 0 if none is requested
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * Sets how long the client should wait before sending again.
+     *
+     * @param retryAfterMillis the back-off in milliseconds
+     */
+    public void setRetryAfterMillis(long retryAfterMillis) {
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Returns whether this packet was sampled for latency tracing.
+     *
+     * @return true if the packet carries a client send timestamp
+     */
+    public boolean isTraced() {
+        return traceClientSendMicros != 0;
+    }
+
+    /**
+     * Returns the time the sending client handed this packet to the network.
+     *
+     * @return the trace timestamp in microseconds, or 0 if not traced
+     */
+    public long getTraceClientSendMicros() {
+        return traceClientSendMicros;
+    }
+
+    /**
+     * Sets the time the sending client handed this packet to the network.
+     *
+     * @param traceClientSendMicros the trace timestamp in microseconds
+     */
+    public void setTraceClientSendMicros(long traceClientSendMicros) {
+        this.traceClientSendMicros = traceClientSendMicros;
+    }
+
+    /**
+     * Returns the time the server received this packet.
+     *
+     * @return the trace timestamp in microseconds, or 0 if not set
+     */
+    public long getTraceServerReceiveMicros() {
+        return traceServerReceiveMicros;
+    }
+
+    /**
+     * Sets the time the server received this packet.
+     *
+     * @param traceServerReceiveMicros the trace timestamp in microseconds
+     */
+    public void setTraceServerReceiveMicros(long traceServerReceiveMicros) {
+        this.traceServerReceiveMicros = traceServerReceiveMicros;
+    }
+
+    /**
+     * Returns the time the server forwarded this packet to its recipient.
+     *
+     * @return the trace timestamp in microseconds, or 0 if not set
+     */
+    public long getTraceServerForwardMicros() {
+        return traceServerForwardMicros;
+    }
+
+    /**
+     * Sets the time the server forwarded this packet to its recipient.
+     *
+     * @param traceServerForwardMicros the trace timestamp in microseconds
+     */
+    public void setTraceServerForwardMicros(long traceServerForwardMicros) {
+        this.traceServerForwardMicros = traceServerForwardMicros;
+    }
+
     /**
      * Returns a string representation of the packet for debugging.
      *
@@ -229,10 +409,15 @@ public class Packet implements Serializable {
         return "Packet{" +
                 "type=" + type +
                 ", preKeyBundlePayload=" + preKeyBundlePayload +
+                ", preKeyBatchPayload=" + preKeyBatchPayload +
+                ", presencePayload=" + presencePayload +
                 ", messagePayload=" + (messagePayload != null ? messagePayload.length + " bytes" : null) +
                 ", senderId='" + senderId + '\'' +
                 ", senderDeviceId=" + senderDeviceId +
                 ", recipientId='" + recipientId + '\'' +
+                ", sequence=" + sequence +
+                ", hops=" + hops +
+                ", retryAfterMillis=" + retryAfterMillis +
                 '}';
     }
 }
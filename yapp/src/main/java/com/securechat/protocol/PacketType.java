@@ -37,6 +37,43 @@ public enum PacketType {
      */
     GET_PREKEY_BUNDLE,
 
+    /**
+     * Lightweight registration carrying only a digest of a previously uploaded prekey bundle.
+     * The server binds the connection and, if it does not hold an identical bundle,
+     * answers with a GET_PREKEY_BUNDLE asking the client to upload the full bundle.
+     */
+    REGISTER,
+
+    /**
+     * Packet carrying a PreKeyBatchDTO.
+     * Used by clients to upload fresh one-time prekeys and rotated signed prekeys in bulk.
+     */
+    PREKEY_UPLOAD,
+
+    /**
+     * Packet carrying a server-issued resume token.
+     * Sent by the server after a successful registration or resume; the client presents
+     * the token in a RESUME packet to rebind a new connection after a disconnect.
+     */
+    SESSION_TOKEN,
+
+    /**
+     * Packet presenting a resume token to rebind a reconnected client without re-registering.
+     * If the token is unknown or expired the server answers with a GET_PREKEY_BUNDLE request.
+     */
+    RESUME,
+
+    /**
+     * Heartbeat sent by the server to a connection that has been idle for a while.
+     * The client answers with PONG; a connection that stays silent is closed.
+     */
+    PING,
+
+    /**
+     * Heartbeat reply to a PING.
+     */
+    PONG,
+
     /**
      * Acknowledgement packet.
      * Sent to confirm receipt of a message or packet.
@@ -53,5 +90,75 @@ public enum PacketType {
      * Command packet used for control or protocol commands.
      * Can be used to execute protocol-level commands or other control operations.
      */
-    COMMAND
+    COMMAND,
+
+    /**
+     * First packet on an inter-node link in a cluster, naming the sending node in the
+     * sender ID and signed with the cluster secret. Every later packet on the connection
+     * is treated as forwarded by that node.
+     */
+    NODE_HELLO,
+
+    /**
+     * Inter-node notice that a user's device is connected to the node named in the payload.
+     * Sent to the node owning the user, carrying a copy of any uploaded PreKeyBundle or
+     * prekey batch so the owner can serve bundles for the user.
+     */
+    LOCATE,
+
+    /**
+     * Packet carrying a PresenceBatch naming the users whose presence the sending device
+     * wants to follow. It replaces the device's earlier subscription and is dropped when
+     * the device disconnects. The server answers with a PRESENCE packet holding their
+     * current state.
+     */
+    SUBSCRIBE_PRESENCE,
+
+    /**
+     * Packet carrying a PresenceBatch of users that came online or went offline.
+     * Changes are coalesced over a short window, so a user reconnecting within it is
+     * not reported at all.
+     */
+    PRESENCE,
+
+    /**
+     * Sent by the server when a client exceeds its rate limit. The refused packet's outbox
+     * sequence is echoed, and the client should resend from it after the packet's
+     * retry-after delay. For a refused bundle request, the sequence is 0 and the payload
+     * names the requested user.
+     */
+    SLOW_DOWN,
+
+    /**
+     * Sent by the server while it sheds load. A refused connection gets one before it is
+     * closed, and the client should not reconnect before the retry-after delay. A shed
+     * message or ACK has its outbox sequence echoed, as with SLOW_DOWN. Otherwise the
+     * sequence is 0 and the client should pause its outbox for the delay; a payload then
+     * names the user of a bundle request that was refused rather than deferred.
+     */
+    OVERLOAD,
+
+    /**
+     * Sent by the server to extend a client's send credit. The sequence is the highest
+     * outbox sequence the client may send on this connection; entries beyond it wait in
+     * the outbox. Each connection starts with an implicit grant of
+     * {@link com.securechat.network.Outbox#INITIAL_CREDITS} entries past the last
+     * acknowledged one, and the server extends it as it processes the client's packets.
+     */
+    CREDIT;
+
+    /**
+     * Returns whether packets of this type are bulk traffic, which a connection sends
+     * only after the control packets waiting with it. Bulk covers ordinary messages,
+     * prekey uploads and presence batches; everything that a handshake, registration or
+     * retransmission waits on, including ACKs, is control.
+     *
+     * @return true for bulk types
+     */
+    public boolean isBulk() {
+        return switch (this) {
+            case MESSAGE, PREKEY_UPLOAD, PRESENCE -> true;
+            default -> false;
+        };
+    }
 }
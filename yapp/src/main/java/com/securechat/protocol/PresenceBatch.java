@@ -0,0 +1,85 @@
+package com.securechat.protocol;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+/**
+ * Payload of the presence packets: a list of user IDs, and for PRESENCE packets whether
+ * each of those users is online.
+ *
+ * <p>A SUBSCRIBE_PRESENCE packet carries only the user IDs. A PRESENCE packet from the
+ * server carries a batch of changes collected over one coalescing window, or the current
+ * state of every user just subscribed to.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class PresenceBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String[] userIds;
+    private final boolean[] online;   // parallel to userIds, null in a subscription
+
+    /**
+     * Constructs a batch of presence states.
+     *
+     * @param userIds the users (non-null)
+     * @param online  whether each user is online, or null for a subscription
+     * @throws IllegalArgumentException if the arrays differ in length
+     */
+    public PresenceBatch(String[] userIds, boolean[] online) {
+        if (userIds == null || (online != null && online.length != userIds.length)) {
+            throw new IllegalArgumentException("online must be null or parallel to userIds");
+        }
+        this.userIds = userIds;
+        this.online = online;
+    }
+
+    /**
+     * Builds the payload of a SUBSCRIBE_PRESENCE packet.
+     *
+     * @param userIds the users to follow; an empty collection cancels every subscription
+     * @return the subscription batch
+     */
+    public static PresenceBatch subscription(Collection<String> userIds) {
+        return new PresenceBatch(userIds.toArray(new String[0]), null);
+    }
+
+    /**
+     * Returns the number of users in this batch.
+     *
+     * @return the user count
+     */
+    public int size() {
+        return userIds.length;
+    }
+
+    /**
+     * Returns the user at a position in this batch.
+     *
+     * @param index the position
+     * @return the user ID
+     */
+    public String getUserId(int index) {
+        return userIds[index];
+    }
+
+    /**
+     * Returns whether the user at a position in this batch is online.
+     *
+     * @param index the position
+     * @return true if online; always false in a subscription
+     */
+    public boolean isOnline(int index) {
+        return online != null && online[index];
+    }
+
+    @Override
+    public String toString() {
+        return "PresenceBatch{" +
+                "users=" + userIds.length +
+                ", subscription=" + (online == null) +
+                '}';
+    }
+}
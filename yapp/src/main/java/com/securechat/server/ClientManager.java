@@ -1,11 +1,20 @@
 package com.securechat.server;
 
+import com.securechat.crypto.libsignal.PreKeyBatchDTO;
 import com.securechat.crypto.libsignal.PreKeyBundleDTO;
+import com.securechat.metrics.Counter;
+import com.securechat.metrics.Histogram;
+import com.securechat.metrics.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Manages the registration, retrieval, and removal of {@link PreKeyBundleDTO} objects
@@ -15,6 +24,15 @@ import java.util.concurrent.ConcurrentHashMap;
  * pre-key bundles, allowing secure session initiation in a multi-device end-to-end
  * encryption system such as one based on the Signal Protocol.
  *
+ * <p>Devices may also upload batches of one-time prekeys. Each bundle lookup hands out
+ * (and removes) one of them, falling back to the registered bundle's own prekey when
+ * the supply is exhausted.
+ *
+ * <p>A manager opened with {@link #open(Path)} is backed by a durable {@link PreKeyDirectory}:
+ * every change is also logged to the directory file, and after a restart a device's
+ * bundle and remaining prekeys are read back from it the first time the device is
+ * looked up, so bundles can be served before devices re-register.
+ *
  * <p>Thread-safe operations are supported via {@link ConcurrentHashMap}.
  * 
  * @author bhickensalsa
@@ -28,10 +46,61 @@ public class ClientManager {
     // Map of userId -> deviceId -> PreKeyBundleDTO
     private final Map<String, Map<Integer, PreKeyBundleDTO>> peerBundles = new ConcurrentHashMap<>();
 
+    // Map of userId -> deviceId -> unused one-time prekeys, handed out in upload order
+    private final Map<String, Map<Integer, Queue<OneTimePreKey>>> oneTimePreKeys = new ConcurrentHashMap<>();
+
+    record OneTimePreKey(int id, String publicKey) {
+    }
+
+    /**
+     * Most one-time prekeys kept per device: twice a client's default batch, so a supply
+     * topped up at its low watermark is never trimmed. Older prekeys are dropped beyond it.
+     */
+    public static final int MAX_ONE_TIME_PREKEYS = 200;
+
+    // Durable backing store, or null for a purely in-memory manager
+    private final PreKeyDirectory directory;
+
+    // Held while a device's directory state is read into the maps above
+    private final Object loadLock = new Object();
+
+    private final Counter bundleHits = MetricsRegistry.global().counter("clientmanager.bundle.hit");
+    private final Counter bundleMisses = MetricsRegistry.global().counter("clientmanager.bundle.miss");
+    private final Counter oneTimeServed = MetricsRegistry.global().counter("clientmanager.onetime.served");
+    private final Counter oneTimeExhausted = MetricsRegistry.global().counter("clientmanager.onetime.exhausted");
+    private final Counter oneTimeTrimmed = MetricsRegistry.global().counter("clientmanager.onetime.trimmed");
+    private final Histogram lookupLatency = MetricsRegistry.global().histogram("clientmanager.bundle.lookup");
+
+    /**
+     * Creates an in-memory manager whose registrations are lost on restart.
+     */
+    public ClientManager() {
+        this(null);
+    }
+
+    private ClientManager(PreKeyDirectory directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens a manager backed by the prekey directory file at {@code file}, creating the
+     * file if needed. Devices recorded in it are served without registering again.
+     *
+     * @param file the directory file
+     * @return the manager
+     * @throws IOException if the file cannot be opened or is not a prekey directory
+     */
+    public static ClientManager open(Path file) throws IOException {
+        return new ClientManager(PreKeyDirectory.open(file));
+    }
+
     /**
      * Registers or updates a {@link PreKeyBundleDTO} for a specific user's device.
      *
-     * <p>If a bundle already exists for the given device, it will be overwritten.
+     * <p>If a bundle already exists for the given device, it will be overwritten. The
+     * device's one-time prekeys are dropped with it: a device uploads its full bundle when
+     * it starts without its old keys or the server has lost them, and in either case it
+     * uploads a fresh supply next, whose IDs may repeat those of the old one.
      *
      * @param userId   the unique identifier for the user (non-null and non-empty)
      * @param deviceId the device ID (must be non-negative)
@@ -49,7 +118,15 @@ public class ClientManager {
             throw new IllegalArgumentException("PreKeyBundleDTO must not be null");
         }
 
+        ensureLoaded(userId, deviceId);
         peerBundles.computeIfAbsent(userId, k -> new ConcurrentHashMap<>()).put(deviceId, bundle);
+        oneTimePreKeys.computeIfPresent(userId, (id, devices) -> {
+            devices.remove(deviceId);
+            return devices.isEmpty() ? null : devices;
+        });
+        if (directory != null) {
+            directory.replaceDevice(userId, deviceId, bundle);
+        }
         logger.info("{} Registered PreKeyBundle for user '{}' device '{}'", LOG_PREFIX, userId, deviceId);
     }
 
@@ -61,24 +138,140 @@ public class ClientManager {
      * @return the corresponding {@link PreKeyBundleDTO}, or {@code null} if not found
      */
     public PreKeyBundleDTO getPreKeyBundle(String userId, int deviceId) {
+        long start = System.nanoTime();
+        try {
+            return lookupPreKeyBundle(userId, deviceId);
+        } finally {
+            lookupLatency.recordSince(start);
+        }
+    }
+
+    private PreKeyBundleDTO lookupPreKeyBundle(String userId, int deviceId) {
         if (userId == null || userId.isEmpty() || deviceId < 0) {
             logger.warn("{} Invalid parameters for getPreKeyBundle: userId='{}', deviceId={}", LOG_PREFIX, userId, deviceId);
+            bundleMisses.increment();
             return null;
         }
+        ensureLoaded(userId, deviceId);
         Map<Integer, PreKeyBundleDTO> deviceMap = peerBundles.get(userId);
         if (deviceMap == null) {
             logger.debug("{} No devices found for user '{}'", LOG_PREFIX, userId);
+            bundleMisses.increment();
             return null;
         }
         PreKeyBundleDTO bundle = deviceMap.get(deviceId);
         if (bundle == null) {
             logger.debug("{} No PreKeyBundle found for user '{}' device '{}'", LOG_PREFIX, userId, deviceId);
-        } else {
-            logger.debug("{} Retrieved PreKeyBundle for user '{}' device '{}'", LOG_PREFIX, userId, deviceId);
+            bundleMisses.increment();
+            return null;
         }
+        bundleHits.increment();
+        OneTimePreKey preKey = pollOneTimePreKey(userId, deviceId);
+        if (preKey != null) {
+            if (directory != null) {
+                directory.markTaken(userId, deviceId, preKey.id());
+            }
+            oneTimeServed.increment();
+            logger.debug("{} Retrieved PreKeyBundle for user '{}' device '{}' with one-time PreKey {}", LOG_PREFIX, userId, deviceId, preKey.id());
+            return bundle.withPreKey(preKey.id(), preKey.publicKey());
+        }
+        oneTimeExhausted.increment();
+        logger.debug("{} Retrieved PreKeyBundle for user '{}' device '{}'", LOG_PREFIX, userId, deviceId);
         return bundle;
     }
 
+    /**
+     * Adds a batch of uploaded prekeys for a user's device. One-time prekeys are appended
+     * to the device's supply; a rotated signed prekey replaces the one in its registered bundle.
+     * A supply grown beyond {@link #MAX_ONE_TIME_PREKEYS} loses its oldest prekeys, so a
+     * device cannot make the manager or its directory grow without bound.
+     *
+     * @param userId   the user ID (non-null and non-empty)
+     * @param deviceId the device ID (non-negative)
+     * @param batch    the uploaded batch (non-null)
+     * @throws IllegalArgumentException if any argument is invalid or the batch holds more
+     *                                  than {@link #MAX_ONE_TIME_PREKEYS} one-time prekeys
+     * @throws IllegalStateException if the batch rotates the signed prekey of an unregistered device
+     */
+    public void addPreKeys(String userId, int deviceId, PreKeyBatchDTO batch) {
+        if (userId == null || userId.isEmpty() || deviceId < 0 || batch == null) {
+            throw new IllegalArgumentException("Invalid parameters for addPreKeys");
+        }
+        int[] ids = batch.getPreKeyIds();
+        String[] publics = batch.getPreKeyPublics();
+        if (ids == null || publics == null || ids.length != publics.length || ids.length > MAX_ONE_TIME_PREKEYS) {
+            throw new IllegalArgumentException("Invalid one-time prekey batch");
+        }
+        ensureLoaded(userId, deviceId);
+
+        if (batch.hasSignedPreKey()) {
+            Map<Integer, PreKeyBundleDTO> deviceMap = peerBundles.get(userId);
+            PreKeyBundleDTO rotated = deviceMap == null ? null : deviceMap.computeIfPresent(deviceId,
+                    (id, bundle) -> bundle.withSignedPreKey(batch.getSignedPreKeyId(),
+                            batch.getSignedPreKeyPublic(), batch.getSignedPreKeySignature()));
+            if (rotated == null) {
+                throw new IllegalStateException("No registered bundle to rotate for user '" + userId + "' device '" + deviceId + "'");
+            }
+            if (directory != null) {
+                directory.putBundle(userId, deviceId, rotated);
+            }
+            logger.info("{} Rotated SignedPreKey for user '{}' device '{}' to {}", LOG_PREFIX, userId, deviceId, batch.getSignedPreKeyId());
+        }
+
+        Queue<OneTimePreKey> supply = oneTimePreKeys
+                .computeIfAbsent(userId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(deviceId, k -> new ConcurrentLinkedQueue<>());
+        for (int i = 0; i < ids.length; i++) {
+            supply.add(new OneTimePreKey(ids[i], publics[i]));
+        }
+        if (directory != null) {
+            directory.addPreKeys(userId, deviceId, ids, publics);
+        }
+        int trimmed = 0;
+        while (supply.size() > MAX_ONE_TIME_PREKEYS) {
+            OneTimePreKey oldest = supply.poll();
+            if (oldest == null) {
+                break;
+            }
+            if (directory != null) {
+                directory.markTaken(userId, deviceId, oldest.id());
+            }
+            trimmed++;
+        }
+        oneTimeTrimmed.add(trimmed);
+        logger.info("{} Added {} one-time PreKeys for user '{}' device '{}', dropped {} oldest",
+                LOG_PREFIX, ids.length, userId, deviceId, trimmed);
+    }
+
+    /**
+     * Removes and returns the next unused one-time prekey of a device, if any.
+     */
+    private OneTimePreKey pollOneTimePreKey(String userId, int deviceId) {
+        Map<Integer, Queue<OneTimePreKey>> devices = oneTimePreKeys.get(userId);
+        Queue<OneTimePreKey> supply = devices != null ? devices.get(deviceId) : null;
+        return supply != null ? supply.poll() : null;
+    }
+
+    /**
+     * Checks whether the stored bundle for a user's device matches the given digest.
+     *
+     * @param userId   the user ID
+     * @param deviceId the device ID
+     * @param digest   a digest produced by {@link PreKeyBundleDTO#digest()}
+     * @return {@code true} if an identical bundle is registered, {@code false} otherwise
+     */
+    public boolean hasIdenticalBundle(String userId, int deviceId, byte[] digest) {
+        if (userId == null || digest == null) {
+            return false;
+        }
+        ensureLoaded(userId, deviceId);
+        Map<Integer, PreKeyBundleDTO> deviceMap = peerBundles.get(userId);
+        PreKeyBundleDTO bundle = deviceMap != null ? deviceMap.get(deviceId) : null;
+        boolean identical = bundle != null && MessageDigest.isEqual(bundle.digest(), digest);
+        logger.debug("{} Bundle digest check for user '{}' device '{}': {}", LOG_PREFIX, userId, deviceId, identical);
+        return identical;
+    }
+
     /**
      * Removes the {@link PreKeyBundleDTO} entry for a given user and device.
      *
@@ -94,11 +287,19 @@ public class ClientManager {
             logger.warn("{} Invalid parameters for removePreKeyBundle: userId='{}', deviceId={}", LOG_PREFIX, userId, deviceId);
             return false;
         }
+        ensureLoaded(userId, deviceId);
+        if (directory != null) {
+            directory.remove(userId, deviceId);
+        }
         Map<Integer, PreKeyBundleDTO> deviceMap = peerBundles.get(userId);
         if (deviceMap == null) {
             return false;
         }
         PreKeyBundleDTO removed = deviceMap.remove(deviceId);
+        oneTimePreKeys.computeIfPresent(userId, (id, devices) -> {
+            devices.remove(deviceId);
+            return devices.isEmpty() ? null : devices;
+        });
         if (removed != null) {
             logger.info("{} Removed PreKeyBundle for user '{}' device '{}'", LOG_PREFIX, userId, deviceId);
             if (deviceMap.isEmpty()) {
@@ -115,6 +316,62 @@ public class ClientManager {
      */
     public void clearAll() {
         peerBundles.clear();
+        oneTimePreKeys.clear();
+        if (directory != null) {
+            directory.clear();
+        }
         logger.info("{} Cleared all PreKeyBundles", LOG_PREFIX);
     }
+
+    /**
+     * Forces every change to the prekey directory to disk. Changes are otherwise
+     * group-committed within a few milliseconds. Does nothing for an in-memory manager.
+     */
+    public void sync() {
+        if (directory != null) {
+            directory.sync();
+        }
+    }
+
+    /**
+     * Commits and closes the prekey directory, if any.
+     */
+    public void close() {
+        if (directory != null) {
+            directory.close();
+        }
+    }
+
+    /**
+     * Reads a device's bundle and remaining one-time prekeys from the directory into the
+     * in-memory maps the first time the device is touched. The directory remembers which
+     * devices it has handed out, so nothing is recorded here for devices it does not hold.
+     * A device with a bundle in memory has been loaded already; other callers wait for a
+     * load in progress to finish.
+     */
+    private void ensureLoaded(String userId, int deviceId) {
+        if (directory == null) {
+            return;
+        }
+        Map<Integer, PreKeyBundleDTO> deviceMap = peerBundles.get(userId);
+        if (deviceMap != null && deviceMap.containsKey(deviceId)) {
+            return;
+        }
+        synchronized (loadLock) {
+            PreKeyDirectory.DeviceState state = directory.load(userId, deviceId);
+            if (state == null) {
+                return;
+            }
+            // Prekeys first, so a lookup finding the bundle also finds them
+            if (!state.oneTimePreKeys().isEmpty()) {
+                oneTimePreKeys.computeIfAbsent(userId, k -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(deviceId, k -> new ConcurrentLinkedQueue<>())
+                        .addAll(state.oneTimePreKeys());
+            }
+            if (state.bundle() != null) {
+                peerBundles.computeIfAbsent(userId, k -> new ConcurrentHashMap<>()).put(deviceId, state.bundle());
+            }
+            logger.debug("{} Loaded user '{}' device '{}' from the prekey directory", LOG_PREFIX, userId, deviceId);
+        }
+    }
 }
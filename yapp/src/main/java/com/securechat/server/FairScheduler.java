@@ -0,0 +1,155 @@
+package com.securechat.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs work from many connections on a fixed set of worker threads, taking turns
+ * round-robin between connections.
+ *
+ * <p>Each connection has a {@link Lane}: a short queue of tasks run in order, by one
+ * worker at a time. A lane with work waits in a ready queue. A worker takes the lane at
+ * its head, runs at most {@link #QUANTUM} of its tasks and, if more remain, puts it back
+ * at the tail. A connection sending as fast as it can therefore gets one quantum per
+ * round, like every other busy connection, instead of keeping a worker to itself.
+ *
+ * <p>Lanes are bounded. A reader submitting to a full lane blocks, stops reading its
+ * socket, and lets TCP flow control push back on the sender.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+final class FairScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(FairScheduler.class);
+
+    /** Tasks a worker runs from one lane before moving on to the next. */
+    static final int QUANTUM = 8;
+
+    /** Tasks a lane holds before its submitter blocks. */
+    static final int LANE_CAPACITY = 64;
+
+    /**
+     * The queue of tasks from one connection.
+     */
+    static final class Lane {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Semaphore space = new Semaphore(LANE_CAPACITY);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+    }
+
+    private final String logPrefix;
+    private final BlockingQueue<Lane> ready = new LinkedBlockingQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Thread[] workers;
+
+    /**
+     * Starts the worker threads.
+     *
+     * @param name    prefix of the worker thread names
+     * @param threads number of workers, at least 1
+     */
+    FairScheduler(String name, int threads) {
+        this.logPrefix = "[" + name + "]";
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::work, name + "-dispatch-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Creates a lane for a new connection.
+     *
+     * @return the lane
+     */
+    Lane newLane() {
+        return new Lane();
+    }
+
+    /**
+     * Queues a task on a lane, blocking while the lane is full.
+     *
+     * @param lane the lane
+     * @param task the task
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    void submit(Lane lane, Runnable task) throws InterruptedException {
+        lane.space.acquire();
+        enqueue(lane, task);
+    }
+
+    /**
+     * Queues a lane's final task without waiting for room, so it runs after everything
+     * already submitted even if the submitter can no longer block.
+     *
+     * @param lane the lane
+     * @param task the task
+     */
+    void finish(Lane lane, Runnable task) {
+        enqueue(lane, task);
+    }
+
+    /**
+     * Returns the number of tasks waiting across all lanes.
+     *
+     * @return the queue depth
+     */
+    int queued() {
+        return queued.get();
+    }
+
+    /**
+     * Stops the workers. Queued tasks are abandoned.
+     */
+    void shutdown() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void enqueue(Lane lane, Runnable task) {
+        lane.tasks.add(task);
+        queued.incrementAndGet();
+        if (lane.scheduled.compareAndSet(false, true)) {
+            ready.add(lane);
+        }
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                Lane lane = ready.take();
+                for (int i = 0; i < QUANTUM; i++) {
+                    Runnable task = lane.tasks.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    lane.space.release();
+                    queued.decrementAndGet();
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.error("{} Dispatched task failed", logPrefix, e);
+                    }
+                }
+                lane.scheduled.set(false);
+                // A task added after the last poll could not schedule the lane while we held it
+                if (!lane.tasks.isEmpty() && lane.scheduled.compareAndSet(false, true)) {
+                    ready.add(lane);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
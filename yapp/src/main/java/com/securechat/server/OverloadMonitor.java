@@ -0,0 +1,192 @@
+package com.securechat.server;
+
+import com.securechat.metrics.Counter;
+import com.securechat.metrics.Histogram;
+import com.securechat.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+
+/**
+ * Decides how much work the server sheds, from how loaded it is.
+ *
+ * <p>{@link #sample()} runs on a timer. It reads three signals:
+ * <ul>
+ *   <li>how many packets wait in the {@link FairScheduler},</li>
+ *   <li>dispatch lag, i.e. how long a probe task waits before a worker runs it,</li>
+ *   <li>heap occupancy after the most recent collection.</li>
+ * </ul>
+ * Each signal is divided by its limit, and the largest ratio is the pressure. A pressure of
+ * 1 means some signal is at its limit. Rising pressure moves through the {@link Level}s in
+ * priority order. New connections are refused first, then bundle requests are deferred,
+ * and messages and ACKs are shed last. Pressure must fall {@link #HYSTERESIS} below a
+ * level's threshold before the monitor steps back down, so the level does not flap
+ * around a boundary.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+final class OverloadMonitor {
+
+    private static final Logger logger = LoggerFactory.getLogger(OverloadMonitor.class);
+
+    /** Shedding levels, each also applying the measures of the levels below it. */
+    enum Level {
+        /** Everything is served. */
+        NORMAL(0),
+        /** New connections are refused. */
+        REFUSE_CONNECTIONS(0.5),
+        /** Prekey bundle requests are deferred until pressure drops. */
+        DEFER_BUNDLES(0.75),
+        /** Messages and ACKs are refused and must be resent. */
+        SHED_MESSAGES(1.0);
+
+        final double threshold;
+
+        Level(double threshold) {
+            this.threshold = threshold;
+        }
+    }
+
+    /** Pressure drop below a level's threshold needed to leave it. */
+    static final double HYSTERESIS = 0.1;
+
+    /** Back-off asked of clients at the lowest shedding level, doubling per level above. */
+    static final long BASE_RETRY_AFTER_MILLIS = 500;
+
+    private final String logPrefix;
+    private final FairScheduler dispatcher;
+    private final FairScheduler.Lane probeLane;
+    private final int maxQueued;
+    private final long maxLagNanos;
+    private final double maxHeapFraction;
+    private final List<MemoryPoolMXBean> heapPools;
+
+    private volatile Level level = Level.NORMAL;
+
+    // Probe state, only touched by the sampling thread and the probe itself
+    private volatile long probeSubmittedNanos;
+    private volatile boolean probePending;
+    private volatile long lastLagNanos;
+
+    private final Histogram lag = MetricsRegistry.global().histogram("overload.dispatch.lag");
+    private final Counter transitions = MetricsRegistry.global().counter("overload.transitions");
+
+    /**
+     * Creates a monitor.
+     *
+     * @param logPrefix       prefix for log lines
+     * @param dispatcher      the scheduler whose queue depth and lag are watched
+     * @param maxQueued       queued packets at which the queue signal reaches 1
+     * @param maxLagMillis    dispatch lag at which the lag signal reaches 1
+     * @param maxHeapFraction heap occupancy after GC at which the heap signal reaches 1
+     */
+    OverloadMonitor(String logPrefix, FairScheduler dispatcher, int maxQueued, long maxLagMillis, double maxHeapFraction) {
+        this.logPrefix = logPrefix;
+        this.dispatcher = dispatcher;
+        this.probeLane = dispatcher.newLane();
+        this.maxQueued = maxQueued;
+        this.maxLagNanos = maxLagMillis * 1_000_000L;
+        this.maxHeapFraction = maxHeapFraction;
+        this.heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                // Only the old generation supports usage thresholds; young pools are mostly garbage
+                .filter(pool -> pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported())
+                .toList();
+    }
+
+    /**
+     * Returns the current shedding level.
+     *
+     * @return the level
+     */
+    Level level() {
+        return level;
+    }
+
+    /**
+     * Returns whether the current level applies the measures of {@code measure}.
+     *
+     * @param measure the level introducing a measure
+     * @return true if that measure is in force
+     */
+    boolean isAtLeast(Level measure) {
+        return level.compareTo(measure) >= 0;
+    }
+
+    /**
+     * Returns how long clients should back off at the current level.
+     *
+     * @return the back-off in milliseconds
+     */
+    long retryAfterMillis() {
+        int steps = Math.max(0, level.ordinal() - 1);
+        return BASE_RETRY_AFTER_MILLIS << steps;
+    }
+
+    /**
+     * Reads the signals and updates the level. Must be called from one thread at a time.
+     */
+    void sample() {
+        long now = System.nanoTime();
+        long lagNanos = lastLagNanos;
+        if (probePending) {
+            // A probe still waiting counts as at least as late as its age
+            lagNanos = Math.max(lagNanos, now - probeSubmittedNanos);
+        } else {
+            probePending = true;
+            probeSubmittedNanos = now;
+            dispatcher.finish(probeLane, this::completeProbe);
+        }
+
+        double queuePressure = (double) dispatcher.queued() / maxQueued;
+        double lagPressure = (double) lagNanos / maxLagNanos;
+        double heapPressure = heapOccupancy() / maxHeapFraction;
+        double current = Math.max(queuePressure, Math.max(lagPressure, heapPressure));
+
+        Level previous = level;
+        Level next = previous;
+        while (next.ordinal() + 1 < Level.values().length && current >= Level.values()[next.ordinal() + 1].threshold) {
+            next = Level.values()[next.ordinal() + 1];
+        }
+        while (next != Level.NORMAL && current < next.threshold - HYSTERESIS) {
+            next = Level.values()[next.ordinal() - 1];
+        }
+        if (next != previous) {
+            level = next;
+            transitions.increment();
+            if (next.compareTo(previous) > 0) {
+                logger.warn("{} Overload level {} -> {} (queued={}, lag={} ms, heap={}%)", logPrefix, previous, next,
+                        dispatcher.queued(), lagNanos / 1_000_000, Math.round(heapOccupancy() * 100));
+            } else {
+                logger.info("{} Overload level {} -> {}", logPrefix, previous, next);
+            }
+        }
+    }
+
+    private void completeProbe() {
+        long lagNanos = System.nanoTime() - probeSubmittedNanos;
+        lastLagNanos = lagNanos;
+        lag.record(lagNanos);
+        probePending = false;
+    }
+
+    /**
+     * Returns the old generation's occupancy after its last collection, which unlike the
+     * live usage does not count garbage waiting to be collected.
+     */
+    private double heapOccupancy() {
+        double highest = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0) {
+                highest = Math.max(highest, (double) usage.getUsed() / usage.getMax());
+            }
+        }
+        return highest;
+    }
+}
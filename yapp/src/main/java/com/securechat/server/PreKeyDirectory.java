@@ -0,0 +1,559 @@
+package com.securechat.server;
+
+import com.securechat.crypto.libsignal.PreKeyBundleDTO;
+import com.securechat.metrics.Counter;
+import com.securechat.metrics.Histogram;
+import com.securechat.metrics.MetricsRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The durable backing store of a {@link ClientManager}: a memory-mapped, append-only log
+ * of prekey directory updates.
+ * <p>
+ * Opening a directory only scans the log to index where each device's records are; bundles
+ * and one-time prekeys are decoded when a device is first looked up. A restarted server
+ * can therefore serve bundles almost at once instead of waiting for every device to
+ * register again.
+ * </p>
+ * <p>
+ * Updates are appended to the mapped file as they happen and so survive a crash of the
+ * process at once. A commit thread forces them to disk every {@link #COMMIT_INTERVAL_MILLIS}
+ * while there are any, so a burst of registrations costs one flush rather than one per
+ * update. When the log fills, the live records are rewritten into a new file that replaces
+ * the old one. A power loss can leave the last records torn; reopening the log ends it at
+ * the first record that does not decode.
+ * </p>
+ * <p>
+ * Log layout (big-endian): a 16-byte header (magic, version, reserved) followed by
+ * records of {@code [int length][byte type][UTF userId][int deviceId][body]}; a zero
+ * length marks the end of the log. Bodies: a BUNDLE record holds the bundle as
+ * length-prefixed JSON; PREKEYS holds a count and that many {@code [int id][UTF key]};
+ * TAKEN holds the ID of a one-time prekey handed out; REMOVE has no body.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+final class PreKeyDirectory {
+
+    private static final Logger logger = LoggerFactory.getLogger(PreKeyDirectory.class);
+    private static final String LOG_PREFIX = "[PreKeyDirectory]";
+
+    /** Initial file size: 4 MiB. The file doubles when live records outgrow it. */
+    static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+
+    /** Upper bound on how long an update stays in the page cache before it is forced to disk. */
+    static final long COMMIT_INTERVAL_MILLIS = 5;
+
+    private static final int MAGIC = 0x5953504B; // "YSPK"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private static final byte BUNDLE = 1;
+    private static final byte PREKEYS = 2;
+    private static final byte TAKEN = 3;
+    private static final byte REMOVE = 4;
+
+    /** A device's decoded state, as handed to the {@link ClientManager} on first lookup. */
+    record DeviceState(PreKeyBundleDTO bundle, List<ClientManager.OneTimePreKey> oneTimePreKeys) {
+    }
+
+    /** Where a device's live records are. */
+    private static final class DeviceIndex {
+        final String userId;
+        final int deviceId;
+        int bundleOffset = -1;
+        final List<Integer> preKeyOffsets = new ArrayList<>();
+        final Set<Integer> taken = new HashSet<>();
+        boolean loaded;  // handed to the ClientManager, which keeps it up to date from then on
+
+        DeviceIndex(String userId, int deviceId) {
+            this.userId = userId;
+            this.deviceId = deviceId;
+        }
+    }
+
+    private final Path file;
+    private final ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "PreKeyDirectory-commit");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Counter records = MetricsRegistry.global().counter("prekeydir.records");
+    private final Counter commits = MetricsRegistry.global().counter("prekeydir.commits");
+    private final Counter compactions = MetricsRegistry.global().counter("prekeydir.compactions");
+    private final Histogram commitLatency = MetricsRegistry.global().histogram("prekeydir.commit");
+
+    // Held while forcing, so a sync() waits for a group commit already in progress
+    private final Object commitLock = new Object();
+
+    // Guarded by this
+    private Map<String, DeviceIndex> index = new LinkedHashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer log;
+    private int writeOffset = HEADER_SIZE;
+    private int committedOffset = HEADER_SIZE;
+    private boolean closed;
+
+    private PreKeyDirectory(Path file, int capacity) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.log = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, channel.size()));
+
+        long start = System.nanoTime();
+        if (log.getInt(0) == MAGIC) {
+            if (log.getInt(4) != VERSION) {
+                channel.close();
+                throw new IOException("Unsupported prekey directory version " + log.getInt(4) + " in " + file);
+            }
+            scan();
+        } else {
+            log.putInt(0, MAGIC);
+            log.putInt(4, VERSION);
+            log.putInt(HEADER_SIZE, 0);
+            log.force();
+        }
+        committedOffset = writeOffset;
+        committer.scheduleWithFixedDelay(this::commit, COMMIT_INTERVAL_MILLIS, COMMIT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        logger.info("{} Opened {} with {} devices in {} ms", LOG_PREFIX, file, index.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Opens the directory at {@code file}, creating it if needed.
+     *
+     * @param file the directory file
+     * @return the directory
+     * @throws IOException if the file cannot be opened or is not a prekey directory
+     */
+    static PreKeyDirectory open(Path file) throws IOException {
+        return new PreKeyDirectory(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Decodes a device's registered bundle and its one-time prekeys not yet handed out,
+     * the first time it is asked for. Devices recorded since the directory was opened
+     * are already known to the caller.
+     *
+     * @return the state, with a null bundle if only prekeys were uploaded, or null if the
+     *         directory has no records for the device or has handed them out before
+     */
+    synchronized DeviceState load(String userId, int deviceId) {
+        DeviceIndex device = index.get(key(userId, deviceId));
+        if (device == null || device.loaded) {
+            return null;
+        }
+        try {
+            PreKeyBundleDTO bundle = device.bundleOffset >= 0 ? readBundle(device.bundleOffset) : null;
+            List<ClientManager.OneTimePreKey> preKeys = remainingPreKeys(device);
+            device.loaded = true;
+            return new DeviceState(bundle, preKeys);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Corrupt prekey directory record for " + userId + ":" + deviceId, e);
+        }
+    }
+
+    /**
+     * Records a device's bundle, replacing any earlier one.
+     */
+    void putBundle(String userId, int deviceId, PreKeyBundleDTO bundle) {
+        byte[] json = bundle.toJson().getBytes(StandardCharsets.UTF_8);
+        append(BUNDLE, userId, deviceId, out -> {
+            out.writeInt(json.length);
+            out.write(json);
+        });
+    }
+
+    /**
+     * Records a device's bundle and drops its one-time prekeys, as a REMOVE record
+     * followed by a BUNDLE record.
+     */
+    synchronized void replaceDevice(String userId, int deviceId, PreKeyBundleDTO bundle) {
+        remove(userId, deviceId);
+        putBundle(userId, deviceId, bundle);
+    }
+
+    /**
+     * Records one-time prekeys added to a device's supply.
+     */
+    void addPreKeys(String userId, int deviceId, int[] ids, String[] publicKeys) {
+        if (ids.length == 0) {
+            return;
+        }
+        append(PREKEYS, userId, deviceId, out -> {
+            out.writeInt(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                out.writeInt(ids[i]);
+                out.writeUTF(publicKeys[i]);
+            }
+        });
+    }
+
+    /**
+     * Records that a one-time prekey was handed out and must not be served again.
+     */
+    void markTaken(String userId, int deviceId, int preKeyId) {
+        append(TAKEN, userId, deviceId, out -> out.writeInt(preKeyId));
+    }
+
+    /**
+     * Records that a device was removed.
+     */
+    void remove(String userId, int deviceId) {
+        append(REMOVE, userId, deviceId, out -> { });
+    }
+
+    /**
+     * Removes every device by starting a new, empty log.
+     */
+    synchronized void clear() {
+        rewrite(List.of(), 0);
+    }
+
+    /**
+     * Forces every appended update to disk now, waiting for a group commit that is
+     * already forcing part of them.
+     */
+    void sync() {
+        commit();
+    }
+
+    /**
+     * Commits outstanding updates and closes the file.
+     */
+    void close() {
+        committer.shutdownNow();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                log.force();
+                channel.close();
+                logger.info("{} Closed {}", LOG_PREFIX, file);
+            } catch (IOException e) {
+                logger.warn("{} Failed to close {}: {}", LOG_PREFIX, file, e.getMessage(), e);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface BodyWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Appends a record and updates the index. The update is durable once the next group
+     * commit has run.
+     */
+    private void append(byte type, String userId, int deviceId, BodyWriter body) {
+        byte[] record = encode(type, userId, deviceId, body);
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Prekey directory is closed");
+            }
+            if (writeOffset + 4 + record.length + 4 > log.capacity()) {
+                rewrite(4 + record.length + 4);
+            }
+            int offset = writeOffset;
+            log.put(offset + 4, record);
+            log.putInt(offset + 4 + record.length, 0);
+            log.putInt(offset, record.length); // publish the record last
+            writeOffset = offset + 4 + record.length;
+            try {
+                apply(index, log, offset);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            DeviceIndex device = index.get(key(userId, deviceId));
+            if (device != null) {
+                device.loaded = true;
+            }
+        }
+        records.increment();
+    }
+
+    /** The header fields of a record, read straight from the log. */
+    private record Header(byte type, String userId, int deviceId, int bodyOffset, int end) {
+    }
+
+    /**
+     * Reads the header of the record at {@code offset}, checking that it lies within the
+     * record and the log.
+     *
+     * @throws IOException if the record is malformed
+     */
+    private static Header header(MappedByteBuffer log, int offset) throws IOException {
+        int length = log.getInt(offset);
+        int start = offset + 4;
+        if (length < 1 + 2 + 4 || length > log.capacity() - start) {
+            throw new IOException("Bad record length " + length);
+        }
+        int utfLength = Short.toUnsignedInt(log.getShort(start + 1));
+        int bodyOffset = start + 1 + 2 + utfLength + 4;
+        int end = start + length;
+        if (bodyOffset > end) {
+            throw new IOException("User ID overruns the record");
+        }
+        byte[] utf = new byte[2 + utfLength];
+        log.get(start + 1, utf);
+        String userId = new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+        return new Header(log.get(start), userId, log.getInt(bodyOffset - 4), bodyOffset, end);
+    }
+
+    /**
+     * Updates {@code target}, the index or one being built, for the record at {@code offset}
+     * of {@code log}. Caller holds the lock.
+     *
+     * @throws IOException if the record is malformed
+     */
+    private static void apply(Map<String, DeviceIndex> target, MappedByteBuffer log, int offset) throws IOException {
+        Header header = header(log, offset);
+        String key = key(header.userId(), header.deviceId());
+        switch (header.type()) {
+            case BUNDLE -> target.computeIfAbsent(key, k -> new DeviceIndex(header.userId(), header.deviceId())).bundleOffset = offset;
+            case PREKEYS -> target.computeIfAbsent(key, k -> new DeviceIndex(header.userId(), header.deviceId())).preKeyOffsets.add(offset);
+            case TAKEN -> {
+                if (header.bodyOffset() + 4 > header.end()) {
+                    throw new IOException("Truncated TAKEN record");
+                }
+                DeviceIndex device = target.get(key);
+                if (device != null) {
+                    device.taken.add(log.getInt(header.bodyOffset()));
+                }
+            }
+            case REMOVE -> target.remove(key);
+            default -> throw new IOException("Unknown record type " + header.type());
+        }
+    }
+
+    /**
+     * Rebuilds the index from the log, reading only record headers. A record that does not
+     * decode, e.g. one torn by a power loss that reached disk with some of its pages
+     * missing, ends the log: it and anything after it are dropped.
+     */
+    private void scan() {
+        int offset = HEADER_SIZE;
+        while (offset + 4 <= log.capacity()) {
+            int length = log.getInt(offset);
+            if (length == 0) {
+                break;
+            }
+            try {
+                apply(index, log, offset);
+            } catch (IOException e) {
+                logger.warn("{} Truncating {} at offset {}, malformed record: {}", LOG_PREFIX, file, offset, e.getMessage());
+                log.putInt(offset, 0);
+                break;
+            }
+            offset += 4 + length;
+        }
+        writeOffset = offset;
+    }
+
+    /**
+     * Group commit: forces everything appended since the last commit in one flush. Commits
+     * run one at a time, so once this returns every update appended before the call is on
+     * disk, including those claimed by a commit that was still forcing them.
+     */
+    private void commit() {
+        synchronized (commitLock) {
+            MappedByteBuffer target;
+            int from;
+            int to;
+            synchronized (this) {
+                if (closed || writeOffset == committedOffset) {
+                    return;
+                }
+                target = log;
+                from = committedOffset;
+                to = writeOffset;
+                committedOffset = writeOffset;
+            }
+            long start = System.nanoTime();
+            // Include the end marker after the last record
+            target.force(from, Math.min(to + 4, target.capacity()) - from);
+            commitLatency.recordSince(start);
+            commits.increment();
+        }
+    }
+
+    private void rewrite(int headroom) {
+        rewrite(List.copyOf(index.values()), headroom);
+    }
+
+    /**
+     * Writes the live records of {@code devices} to a new file, large enough for them plus
+     * {@code headroom} bytes, and atomically replaces the log with it. The index is swapped
+     * for the new file's only once the file is in place, so a failed rewrite leaves the
+     * directory serving the old log. Caller holds the lock.
+     */
+    private void rewrite(List<DeviceIndex> devices, int headroom) {
+        Path next = file.resolveSibling(file.getFileName() + ".compact");
+        FileChannel nextChannel = null;
+        try {
+            List<byte[]> live = new ArrayList<>();
+            int liveBytes = 0;
+            for (DeviceIndex device : devices) {
+                if (device.bundleOffset >= 0) {
+                    byte[] bundle = readRecord(device.bundleOffset);
+                    live.add(bundle);
+                    liveBytes += 4 + bundle.length;
+                }
+                List<ClientManager.OneTimePreKey> remaining = remainingPreKeys(device);
+                if (!remaining.isEmpty()) {
+                    byte[] preKeys = encode(PREKEYS, device.userId, device.deviceId, out -> {
+                        out.writeInt(remaining.size());
+                        for (ClientManager.OneTimePreKey preKey : remaining) {
+                            out.writeInt(preKey.id());
+                            out.writeUTF(preKey.publicKey());
+                        }
+                    });
+                    live.add(preKeys);
+                    liveBytes += 4 + preKeys.length;
+                }
+            }
+
+            int capacity = log.capacity();
+            while (HEADER_SIZE + liveBytes + headroom + 4 > capacity / 2 && capacity < Integer.MAX_VALUE / 2) {
+                capacity *= 2;
+            }
+
+            nextChannel = FileChannel.open(next, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer nextLog = nextChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            nextLog.putInt(0, MAGIC);
+            nextLog.putInt(4, VERSION);
+
+            Map<String, DeviceIndex> nextIndex = new LinkedHashMap<>();
+            int offset = HEADER_SIZE;
+            for (byte[] record : live) {
+                nextLog.putInt(offset, record.length);
+                nextLog.put(offset + 4, record);
+                apply(nextIndex, nextLog, offset);
+                offset += 4 + record.length;
+            }
+            nextLog.putInt(offset, 0);
+            for (DeviceIndex device : devices) {
+                DeviceIndex moved = nextIndex.get(key(device.userId, device.deviceId));
+                if (moved != null) {
+                    moved.loaded = device.loaded;
+                }
+            }
+            nextLog.force();
+            Files.move(next, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            FileChannel previous = channel;
+            channel = nextChannel;
+            log = nextLog;
+            index = nextIndex;
+            writeOffset = offset;
+            committedOffset = offset;
+            compactions.increment();
+            logger.info("{} Compacted {} to {} devices, {} live bytes, capacity {}", LOG_PREFIX, file, index.size(), liveBytes, capacity);
+            try {
+                previous.close();
+            } catch (IOException e) {
+                logger.warn("{} Failed to close the replaced log of {}: {}", LOG_PREFIX, file, e.getMessage(), e);
+            }
+        } catch (IOException e) {
+            if (nextChannel != null) {
+                try {
+                    nextChannel.close();
+                    Files.deleteIfExists(next);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw new UncheckedIOException("Failed to compact prekey directory " + file, e);
+        }
+    }
+
+    private List<ClientManager.OneTimePreKey> remainingPreKeys(DeviceIndex device) throws IOException {
+        List<ClientManager.OneTimePreKey> remaining = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
+        for (int offset : device.preKeyOffsets) {
+            DataInputStream in = body(offset);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int id = in.readInt();
+                String publicKey = in.readUTF();
+                if (!device.taken.contains(id) && seen.add(id)) {
+                    remaining.add(new ClientManager.OneTimePreKey(id, publicKey));
+                }
+            }
+        }
+        return remaining;
+    }
+
+    private PreKeyBundleDTO readBundle(int offset) throws IOException {
+        DataInputStream in = body(offset);
+        byte[] json = new byte[in.readInt()];
+        in.readFully(json);
+        return PreKeyBundleDTO.fromJson(new String(json, StandardCharsets.UTF_8));
+    }
+
+    private byte[] readRecord(int offset) {
+        byte[] record = new byte[log.getInt(offset)];
+        log.get(offset + 4, record);
+        return record;
+    }
+
+    /**
+     * Returns a stream positioned at the body of the record at {@code offset}.
+     */
+    private DataInputStream body(int offset) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRecord(offset)));
+        in.readByte();
+        in.readUTF();
+        in.readInt();
+        return in;
+    }
+
+    private static byte[] encode(byte type, String userId, int deviceId, BodyWriter body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeUTF(userId);
+            out.writeInt(deviceId);
+            body.write(out);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String key(String userId, int deviceId) {
+        return userId + ":" + deviceId;
+    }
+}
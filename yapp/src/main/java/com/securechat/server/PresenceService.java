@@ -0,0 +1,199 @@
+package com.securechat.server;
+
+import com.securechat.metrics.Counter;
+import com.securechat.metrics.MetricsRegistry;
+import com.securechat.network.MessageRouter;
+import com.securechat.protocol.Packet;
+import com.securechat.protocol.PacketType;
+import com.securechat.protocol.PresenceBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks which users are online and tells subscribed devices when that changes.
+ *
+ * <p>The service listens to the {@link MessageRouter}. A device event only marks its user
+ * dirty; {@link #flush()}, run once per coalescing window, compares each dirty user's
+ * current state with the state last published and fans out only real changes. A user
+ * who drops and reconnects within one window is never reported, however often it
+ * flaps. Each subscriber receives all of its changes from one flush in a single
+ * PRESENCE packet.
+ *
+ * <p>A user is online while any of their devices is registered on this server.
+ * Subscriptions belong to a device and are dropped when that device goes offline;
+ * clients subscribe again after reconnecting.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+final class PresenceService implements MessageRouter.PresenceListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(PresenceService.class);
+    private static final String LOG_PREFIX = "[PresenceService]";
+
+    /** Most users a single device may follow. */
+    static final int MAX_SUBSCRIPTIONS = 1024;
+
+    private record Subscriber(String userId, int deviceId) {
+    }
+
+    private final MessageRouter router;
+
+    // Users with device events since the last flush
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    // Users last published as online; only touched by the flushing thread
+    private final Set<String> published = new HashSet<>();
+
+    // Followed user -> subscribed devices, and the reverse, guarded by this
+    private final Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final Map<Subscriber, String[]> subscriptions = new HashMap<>();
+
+    private final Counter changes = MetricsRegistry.global().counter("presence.changes");
+    private final Counter coalesced = MetricsRegistry.global().counter("presence.coalesced");
+    private final Counter batches = MetricsRegistry.global().counter("presence.batches");
+    private final Counter notifications = MetricsRegistry.global().counter("presence.notifications");
+
+    PresenceService(MessageRouter router) {
+        this.router = router;
+    }
+
+    @Override
+    public void onPresenceChanged(String userId, int deviceId, boolean online) {
+        dirty.add(userId);
+        if (!online) {
+            unsubscribe(new Subscriber(userId, deviceId));
+        }
+    }
+
+    /**
+     * Replaces a device's subscription with the given users and returns their current
+     * state. Users beyond {@link #MAX_SUBSCRIPTIONS} are ignored.
+     *
+     * @param userId   the subscribing user
+     * @param deviceId the subscribing device
+     * @param request  the users to follow; empty to cancel the subscription
+     * @return the current presence of the followed users
+     */
+    PresenceBatch subscribe(String userId, int deviceId, PresenceBatch request) {
+        int count = Math.min(request.size(), MAX_SUBSCRIPTIONS);
+        if (count < request.size()) {
+            logger.warn("{} User '{}' device '{}' subscribed to {} users, keeping the first {}",
+                    LOG_PREFIX, userId, deviceId, request.size(), count);
+        }
+        String[] targets = new String[count];
+        boolean[] online = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            targets[i] = request.getUserId(i);
+        }
+
+        Subscriber subscriber = new Subscriber(userId, deviceId);
+        synchronized (this) {
+            removeSubscription(subscriber);
+            if (count > 0) {
+                subscriptions.put(subscriber, targets);
+                for (String target : targets) {
+                    subscribers.computeIfAbsent(target, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            online[i] = router.isOnline(targets[i]);
+        }
+        logger.debug("{} User '{}' device '{}' follows {} users", LOG_PREFIX, userId, deviceId, count);
+        return new PresenceBatch(targets, online);
+    }
+
+    /**
+     * Publishes the changes collected since the last flush. Must be called from one
+     * thread at a time, normally a timer firing once per coalescing window.
+     */
+    void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        Map<Subscriber, List<String>> changedUsers = new HashMap<>();
+        Map<Subscriber, List<Boolean>> changedStates = new HashMap<>();
+        for (Iterator<String> it = dirty.iterator(); it.hasNext(); ) {
+            String userId = it.next();
+            // Remove before reading the state, so a later event marks the user dirty again
+            it.remove();
+            boolean online = router.isOnline(userId);
+            if (online == published.contains(userId)) {
+                coalesced.increment();
+                continue;
+            }
+            if (online) {
+                published.add(userId);
+            } else {
+                published.remove(userId);
+            }
+            changes.increment();
+            Set<Subscriber> followers = subscribers.get(userId);
+            if (followers == null) {
+                continue;
+            }
+            for (Subscriber follower : followers) {
+                changedUsers.computeIfAbsent(follower, k -> new ArrayList<>()).add(userId);
+                changedStates.computeIfAbsent(follower, k -> new ArrayList<>()).add(online);
+            }
+        }
+
+        changedUsers.forEach((follower, users) -> {
+            List<Boolean> states = changedStates.get(follower);
+            boolean[] online = new boolean[states.size()];
+            for (int i = 0; i < online.length; i++) {
+                online[i] = states.get(i);
+            }
+            router.routeMessage(presencePacket(follower.userId(), follower.deviceId(),
+                    new PresenceBatch(users.toArray(new String[0]), online)), null);
+            batches.increment();
+            notifications.add(online.length);
+        });
+    }
+
+    /**
+     * Builds a PRESENCE packet from the server to a device.
+     *
+     * @param userId   the recipient user
+     * @param deviceId the recipient device
+     * @param batch    the presence states
+     * @return the packet
+     */
+    static Packet presencePacket(String userId, int deviceId, PresenceBatch batch) {
+        Packet packet = new Packet();
+        packet.setType(PacketType.PRESENCE);
+        packet.setPresencePayload(batch);
+        packet.setSenderId(null);
+        packet.setSenderDeviceId(-1);
+        packet.setRecipientId(userId);
+        packet.setRecipientDeviceId(deviceId);
+        return packet;
+    }
+
+    private synchronized void unsubscribe(Subscriber subscriber) {
+        removeSubscription(subscriber);
+    }
+
+    private void removeSubscription(Subscriber subscriber) {
+        String[] targets = subscriptions.remove(subscriber);
+        if (targets == null) {
+            return;
+        }
+        for (String target : targets) {
+            subscribers.computeIfPresent(target, (k, set) -> {
+                set.remove(subscriber);
+                return set.isEmpty() ? null : set;
+            });
+        }
+    }
+}
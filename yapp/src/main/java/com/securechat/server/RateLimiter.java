@@ -0,0 +1,139 @@
+package com.securechat.server;
+
+import com.securechat.metrics.Counter;
+import com.securechat.metrics.MetricsRegistry;
+import com.securechat.protocol.PacketType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-device and per-user token buckets limiting how fast clients may send.
+ *
+ * <p>Every device has its own bucket, and all devices of a user share a second, larger
+ * one, so a user cannot multiply their allowance by opening more devices. A packet is
+ * admitted only if both buckets hold its cost. Prekey bundle requests cost more than
+ * messages, since each one consumes a one-time prekey from the directory.
+ *
+ * <p>Buckets are lock-free and created on first use. {@link #evictIdle()} drops buckets
+ * that have refilled completely, which is equivalent to keeping them.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class RateLimiter {
+
+    /** Default sustained packets per second per device. */
+    public static final double DEFAULT_DEVICE_RATE = 50;
+
+    /** Default packets a device may send in a burst. */
+    public static final int DEFAULT_DEVICE_BURST = 100;
+
+    /** Default sustained packets per second per user, across their devices. */
+    public static final double DEFAULT_USER_RATE = 100;
+
+    /** Default packets a user may send in a burst, across their devices. */
+    public static final int DEFAULT_USER_BURST = 200;
+
+    /** Tokens charged for a GET_PREKEY_BUNDLE, against one for a message or ACK. */
+    public static final int BUNDLE_REQUEST_COST = 5;
+
+    private final long deviceInterval;
+    private final long deviceAllowance;
+    private final long userInterval;
+    private final long userAllowance;
+
+    private final Map<String, TokenBucket> deviceBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+
+    private final Counter limited = MetricsRegistry.global().counter("ratelimit.limited");
+    private final Counter evicted = MetricsRegistry.global().counter("ratelimit.evicted");
+
+    /**
+     * Creates a limiter with the default rates.
+     */
+    public RateLimiter() {
+        this(DEFAULT_DEVICE_RATE, DEFAULT_DEVICE_BURST, DEFAULT_USER_RATE, DEFAULT_USER_BURST);
+    }
+
+    /**
+     * Creates a limiter with the given rates.
+     *
+     * @param deviceRate  sustained packets per second per device
+     * @param deviceBurst packets a device may send back to back
+     * @param userRate    sustained packets per second per user
+     * @param userBurst   packets a user may send back to back
+     * @throws IllegalArgumentException if a rate is not positive or a burst is below
+     *                                  {@link #BUNDLE_REQUEST_COST}
+     */
+    public RateLimiter(double deviceRate, int deviceBurst, double userRate, int userBurst) {
+        if (deviceRate <= 0 || userRate <= 0) {
+            throw new IllegalArgumentException("Rates must be positive");
+        }
+        if (deviceBurst < BUNDLE_REQUEST_COST || userBurst < BUNDLE_REQUEST_COST) {
+            throw new IllegalArgumentException("Bursts must be at least " + BUNDLE_REQUEST_COST);
+        }
+        this.deviceInterval = Math.max(1, (long) (1_000_000_000L / deviceRate));
+        this.deviceAllowance = (deviceBurst - 1) * deviceInterval;
+        this.userInterval = Math.max(1, (long) (1_000_000_000L / userRate));
+        this.userAllowance = (userBurst - 1) * userInterval;
+    }
+
+    /**
+     * Returns the number of tokens a packet type costs.
+     *
+     * @param type the packet type
+     * @return the cost in tokens
+     */
+    public static int costOf(PacketType type) {
+        return type == PacketType.GET_PREKEY_BUNDLE ? BUNDLE_REQUEST_COST : 1;
+    }
+
+    /**
+     * Charges a packet to the sending device and its user.
+     *
+     * @param userId   the sending user
+     * @param deviceId the sending device
+     * @param type     the packet type, which determines the cost
+     * @return 0 if the packet is admitted, otherwise the milliseconds the client should
+     *         back off, at least 1
+     */
+    public long acquire(String userId, int deviceId, PacketType type) {
+        int cost = costOf(type);
+        long now = System.nanoTime();
+        TokenBucket device = deviceBuckets.computeIfAbsent(userId + ":" + deviceId, k -> new TokenBucket());
+        long wait = device.tryAcquire(now, cost, deviceInterval, deviceAllowance);
+        // Ask the client to wait until half the burst is back rather than for one token, so
+        // a backlog resumes as a batch instead of being refused again packet by packet
+        if (wait > 0) {
+            wait += deviceAllowance / 2;
+        } else {
+            TokenBucket user = userBuckets.computeIfAbsent(userId, k -> new TokenBucket());
+            wait = user.tryAcquire(now, cost, userInterval, userAllowance);
+            if (wait == 0) {
+                return 0;
+            }
+            wait += userAllowance / 2;
+            device.refund(cost, deviceInterval);
+        }
+        limited.increment();
+        return Math.max(1, (wait + 999_999) / 1_000_000);
+    }
+
+    /**
+     * Drops buckets that have refilled completely. Run periodically to bound memory.
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        evictIdle(deviceBuckets, now);
+        evictIdle(userBuckets, now);
+    }
+
+    private void evictIdle(Map<String, TokenBucket> buckets, long now) {
+        buckets.forEach((key, bucket) -> {
+            if (bucket.isFull(now) && buckets.remove(key, bucket)) {
+                evicted.increment();
+            }
+        });
+    }
+}
@@ -0,0 +1,92 @@
+package com.securechat.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues and validates resume tokens that let a reconnecting client rebind its
+ * connection without re-registering its PreKeyBundle.
+ * <p>
+ * Each user device holds at most one token. Issuing a new token replaces the old one,
+ * and a token is only accepted for the device it was issued to and before it expires.
+ * Validation is a map lookup and a constant-time compare, so a wave of reconnects
+ * costs no bundle parsing or digest work.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+final class ResumeTokenRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResumeTokenRegistry.class);
+    private static final String LOG_PREFIX = "[ResumeTokenRegistry]";
+
+    /** Default token lifetime: 24 hours. */
+    static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private static final int TOKEN_LENGTH = 32;
+
+    private final SecureRandom random = new SecureRandom();
+    private final long ttlMillis;
+
+    // Map of "userId:deviceId" -> current token
+    private final Map<String, ResumeToken> tokens = new ConcurrentHashMap<>();
+
+    private record ResumeToken(byte[] value, long expiresAt) {
+    }
+
+    ResumeTokenRegistry() {
+        this(DEFAULT_TTL_MILLIS);
+    }
+
+    ResumeTokenRegistry(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Issues a fresh token for a user device, replacing any previous one.
+     *
+     * @param userId   the user ID
+     * @param deviceId the device ID
+     * @return the token bytes to send to the client
+     */
+    byte[] issue(String userId, int deviceId) {
+        byte[] value = new byte[TOKEN_LENGTH];
+        random.nextBytes(value);
+        tokens.put(key(userId, deviceId), new ResumeToken(value, System.currentTimeMillis() + ttlMillis));
+        logger.debug("{} Issued resume token for user '{}' device '{}'", LOG_PREFIX, userId, deviceId);
+        return value.clone();
+    }
+
+    /**
+     * Checks a presented token against the one issued to the user device.
+     * Expired tokens are removed.
+     *
+     * @param userId   the user ID claimed by the client
+     * @param deviceId the device ID claimed by the client
+     * @param value    the presented token bytes
+     * @return true if the token is current for this device
+     */
+    boolean validate(String userId, int deviceId, byte[] value) {
+        String key = key(userId, deviceId);
+        ResumeToken token = tokens.get(key);
+        if (token == null || value == null) {
+            return false;
+        }
+        if (token.expiresAt() < System.currentTimeMillis()) {
+            tokens.remove(key, token);
+            return false;
+        }
+        return MessageDigest.isEqual(token.value(), value);
+    }
+
+    private static String key(String userId, int deviceId) {
+        return userId + ":" + deviceId;
+    }
+}
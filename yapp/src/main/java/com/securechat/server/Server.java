@@ -1,19 +1,57 @@
 package com.securechat.server;
 
+import com.securechat.cluster.Cluster;
+import com.securechat.crypto.libsignal.PreKeyBatchDTO;
 import com.securechat.crypto.libsignal.PreKeyBundleDTO;
+import com.securechat.jfr.PacketReceivedEvent;
+import com.securechat.jfr.PreKeyBundleServedEvent;
+import com.securechat.metrics.Counter;
+import com.securechat.metrics.Histogram;
+import com.securechat.metrics.MetricsRegistry;
+import com.securechat.metrics.TraceClock;
+import com.securechat.network.ChannelTransport;
+import com.securechat.network.LoopbackTransport;
 import com.securechat.network.MessageRouter;
+import com.securechat.network.Outbox;
 import com.securechat.network.PeerConnection;
 import com.securechat.protocol.Packet;
 import com.securechat.protocol.PacketType;
+import com.securechat.protocol.PresenceBatch;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The {@code Server} class represents the main entry point for the SecureChat backend server.
@@ -23,6 +61,21 @@ import java.util.concurrent.Executors;
  * It runs on a specified port and uses a thread pool to manage client handler threads concurrently.
  * The server listens for various types of {@link Packet} including key exchange and encrypted messages.
  * </p>
+ * <p>
+ * Each connection's reader only deserializes packets. A {@link FairScheduler} processes
+ * them, taking turns round-robin between connections, and a {@link RateLimiter} answers
+ * senders over their limit with SLOW_DOWN.
+ * </p>
+ * <p>
+ * An {@link OverloadMonitor} watches the dispatch queue, dispatch lag and heap. As load
+ * rises the server refuses new connections, then defers bundle requests, and sheds
+ * messages and ACKs only last, telling clients to back off with OVERLOAD.
+ * </p>
+ * <p>
+ * Clients send outbox packets only within the credit the server grants with CREDIT, which
+ * it extends as their packets are routed, so each connection holds at most one window of
+ * unprocessed packets here.
+ * </p>
  *
  * @author bhickensalsa
  * @version 0.1
@@ -30,12 +83,110 @@ import java.util.concurrent.Executors;
 public class Server {
     private static final Logger logger = LoggerFactory.getLogger(Server.class);
 
+    /** Idle time after which the server pings a connection and hibernates it. */
+    public static final long DEFAULT_PING_INTERVAL_MILLIS = 30_000;
+
+    /** Idle time after which an unresponsive connection is closed. */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 90_000;
+
+    /** Default number of TCP acceptor threads. */
+    public static final int DEFAULT_ACCEPTOR_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /** Workers processing packets from all connections, taking turns between them. */
+    private static final int DISPATCH_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    /** How often fully refilled rate-limit buckets are dropped. */
+    private static final long RATE_LIMIT_EVICT_INTERVAL_MILLIS = 30_000;
+
+    /** How long a client waits before resending outbox packets that arrived ahead of its registration. */
+    private static final long UNREGISTERED_RETRY_AFTER_MILLIS = 1_000;
+
+    /** File type bits of a {@code unix:mode} attribute, and their value for a socket. */
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    /** Default queued packets, across all connections, at which the server counts as overloaded. */
+    public static final int DEFAULT_MAX_QUEUED_PACKETS = 10_000;
+
+    /** Default dispatch lag at which the server counts as overloaded. */
+    public static final long DEFAULT_MAX_DISPATCH_LAG_MILLIS = 250;
+
+    /** Default old-generation occupancy after GC at which the server counts as overloaded. */
+    public static final double DEFAULT_MAX_HEAP_FRACTION = 0.9;
+
+    /** How often the overload signals are sampled. */
+    private static final long OVERLOAD_SAMPLE_INTERVAL_MILLIS = 100;
+
+    /** Bundle requests held while deferred; further ones are refused. */
+    private static final int MAX_DEFERRED_BUNDLE_REQUESTS = 4096;
+
+    /** Outbox packets a client may have outstanding while the server is not overloaded; halved per overload level. */
+    private static final int CREDIT_WINDOW = Outbox.INITIAL_CREDITS;
+
+    /** Smallest credit window, so a client under heavy shedding still makes progress. */
+    private static final int MIN_CREDIT_WINDOW = 8;
+
+    /** Default window over which presence changes are coalesced before fan-out. */
+    public static final long DEFAULT_PRESENCE_WINDOW_MILLIS = 250;
+
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+
+    /** Pending-connection queue per listening socket, sized for a fleet reconnecting at once. */
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    /** How often per-packet traffic is summarised at INFO instead of being logged per message. */
+    private static final long TRAFFIC_SUMMARY_INTERVAL_MILLIS = 60_000;
+
     private final int port;
+    private final String logPrefix;
+    private final long pingIntervalMillis;
+    private final long idleTimeoutMillis;
     private final ExecutorService pool = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+    private final Set<PeerConnection> connections = ConcurrentHashMap.newKeySet();
+    private final List<ServerSocket> listeners = new CopyOnWriteArrayList<>();
+
+    // Resolved once so recording per packet is a plain EnumMap lookup
+    private final Map<PacketType, Counter> packetsReceived = new EnumMap<>(PacketType.class);
+    private final Map<PacketType, Histogram> packetHandling = new EnumMap<>(PacketType.class);
+    private final Counter connectionsAccepted = MetricsRegistry.global().counter("server.connections.accepted");
+    private final Counter connectionsClosed = MetricsRegistry.global().counter("server.connections.closed");
+    private final Counter routed = MetricsRegistry.global().counter("router.routed");
+    private final Counter dropped = MetricsRegistry.global().counter("router.dropped");
+    private final Counter noRoute = MetricsRegistry.global().counter("router.noroute");
     private final MessageRouter messageRouter = new MessageRouter();
-    private final ClientManager clientManager = new ClientManager();
+    private volatile ClientManager clientManager = new ClientManager();
+    private final ResumeTokenRegistry resumeTokens = new ResumeTokenRegistry();
+    private final PresenceService presence = new PresenceService(messageRouter);
+    private final FairScheduler dispatcher;
+    private final Counter rateLimitDiscarded = MetricsRegistry.global().counter("ratelimit.discarded");
+    private final FairScheduler.Lane deferredLane;
+    private final Queue<Runnable> deferredBundleRequests = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger deferredCount = new AtomicInteger();
+    private final Counter overloadRefused = MetricsRegistry.global().counter("overload.refused");
+    private final Counter overloadDeferred = MetricsRegistry.global().counter("overload.deferred");
+    private final Counter overloadShed = MetricsRegistry.global().counter("overload.shed");
+    private final Counter unregisteredDropped = MetricsRegistry.global().counter("server.unregistered.dropped");
+    private final Counter creditsGranted = MetricsRegistry.global().counter("flowcontrol.granted");
+    private final Counter creditViolations = MetricsRegistry.global().counter("flowcontrol.violations");
+    private volatile OverloadMonitor overload;
+
+    private volatile int acceptorThreads = DEFAULT_ACCEPTOR_THREADS;
+    private volatile long presenceWindowMillis = DEFAULT_PRESENCE_WINDOW_MILLIS;
+    private volatile RateLimiter rateLimiter = new RateLimiter();
+    private volatile Cluster cluster;
+    private volatile Path unixSocketPath;
+    private volatile ServerSocketChannel unixChannel;
 
     private volatile boolean isRunning = true;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final AtomicBoolean timersStarted = new AtomicBoolean();
+    private final AtomicInteger localConnections = new AtomicInteger();
+
+    // Totals at the previous traffic summary; only touched by the heartbeat thread
+    private long summaryReceived;
+    private long summaryRouted;
+    private long summaryDropped;
 
     /**
      * Constructs a {@code Server} instance listening on the specified port.
@@ -43,94 +194,1026 @@ public class Server {
      * @param port The TCP port on which the server will accept client connections.
      */
     public Server(int port) {
+        this(port, DEFAULT_PING_INTERVAL_MILLIS, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Constructs a {@code Server} instance with custom heartbeat settings.
+     *
+     * @param port               The TCP port on which the server will accept client connections.
+     * @param pingIntervalMillis Idle time after which a connection is pinged and hibernated.
+     * @param idleTimeoutMillis  Idle time after which a connection is closed; must exceed the ping interval.
+     * @throws IllegalArgumentException if the intervals are not positive or out of order
+     */
+    public Server(int port, long pingIntervalMillis, long idleTimeoutMillis) {
+        if (pingIntervalMillis <= 0 || idleTimeoutMillis <= pingIntervalMillis) {
+            throw new IllegalArgumentException("idleTimeoutMillis must exceed a positive pingIntervalMillis");
+        }
         this.port = port;
+        this.logPrefix = "[Server-" + port + "]";
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.dispatcher = new FairScheduler("Server-" + port, DISPATCH_THREADS);
+        this.deferredLane = dispatcher.newLane();
+        this.overload = new OverloadMonitor(logPrefix, dispatcher, DEFAULT_MAX_QUEUED_PACKETS,
+                DEFAULT_MAX_DISPATCH_LAG_MILLIS, DEFAULT_MAX_HEAP_FRACTION);
+
+        MetricsRegistry metrics = MetricsRegistry.global();
+        for (PacketType type : PacketType.values()) {
+            packetsReceived.put(type, metrics.counter("server.packets." + type));
+            packetHandling.put(type, metrics.histogram("server.handle." + type));
+        }
+        messageRouter.setPresenceListener(presence);
+    }
+
+    /**
+     * Makes {@link #start()} also listen on a Unix domain socket at the given path, for
+     * clients on the same host. Such clients connect with a {@code unix:<path>} endpoint and
+     * skip the TCP/IP stack. A stale socket file left at the path is replaced; any other
+     * file or directory there stops the server from starting.
+     *
+     * @param path the socket file path, or null to listen on TCP only
+     * @throws IllegalStateException if the server is already listening
+     */
+    public void setUnixSocketPath(Path path) {
+        if (started.getCount() == 0) {
+            throw new IllegalStateException("Unix socket path must be set before start()");
+        }
+        this.unixSocketPath = path;
+    }
+
+    /**
+     * Sets how many threads accept TCP connections. Where the platform supports
+     * {@code SO_REUSEPORT}, each acceptor binds its own listening socket and the kernel
+     * spreads incoming connections across them; otherwise the acceptors share one socket.
+     *
+     * @param acceptorThreads the number of acceptor threads, at least 1
+     * @throws IllegalArgumentException if {@code acceptorThreads} is less than 1
+     * @throws IllegalStateException if the server is already listening
+     */
+    public void setAcceptorThreads(int acceptorThreads) {
+        if (acceptorThreads < 1) {
+            throw new IllegalArgumentException("acceptorThreads must be at least 1");
+        }
+        if (started.getCount() == 0) {
+            throw new IllegalStateException("Acceptor threads must be set before start()");
+        }
+        this.acceptorThreads = acceptorThreads;
+    }
+
+    /**
+     * Sets the token buckets limiting how fast each device and user may send messages
+     * and bundle requests. Over-limit packets are answered with SLOW_DOWN. Defaults to a
+     * {@link RateLimiter} with its default rates.
+     *
+     * @param rateLimiter the limiter, or null to admit everything
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Sets the limits at which the server counts as overloaded. Each signal is compared
+     * with its limit; at half of any limit new connections are refused, at three quarters
+     * bundle requests are deferred, and at the limit messages and ACKs are shed.
+     *
+     * @param maxQueuedPackets     packets waiting for dispatch across all connections
+     * @param maxDispatchLagMillis delay between a packet being queued and processed
+     * @param maxHeapFraction      old-generation occupancy after GC, between 0 and 1
+     * @throws IllegalArgumentException if a limit is not positive or the heap fraction exceeds 1
+     * @throws IllegalStateException if the server is already listening
+     */
+    public void setOverloadThresholds(int maxQueuedPackets, long maxDispatchLagMillis, double maxHeapFraction) {
+        if (maxQueuedPackets <= 0 || maxDispatchLagMillis <= 0 || maxHeapFraction <= 0 || maxHeapFraction > 1) {
+            throw new IllegalArgumentException("Overload thresholds must be positive and the heap fraction at most 1");
+        }
+        if (started.getCount() == 0) {
+            throw new IllegalStateException("Overload thresholds must be set before start()");
+        }
+        this.overload = new OverloadMonitor(logPrefix, dispatcher, maxQueuedPackets, maxDispatchLagMillis, maxHeapFraction);
+    }
+
+    /**
+     * Sets the window over which presence changes are coalesced. Subscribers receive at
+     * most one PRESENCE batch per window, and a user going offline and back online within
+     * it is not reported. Defaults to {@link #DEFAULT_PRESENCE_WINDOW_MILLIS}.
+     *
+     * @param windowMillis the coalescing window in milliseconds, positive
+     * @throws IllegalArgumentException if {@code windowMillis} is not positive
+     * @throws IllegalStateException if the server is already listening
+     */
+    public void setPresenceWindowMillis(long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive");
+        }
+        if (started.getCount() == 0) {
+            throw new IllegalStateException("Presence window must be set before start()");
+        }
+        this.presenceWindowMillis = windowMillis;
+    }
+
+    /**
+     * Keeps registered bundles and one-time prekeys in a durable directory file, so after
+     * a restart the server can serve bundles for devices that have not reconnected yet.
+     * The file is opened immediately; devices in it are decoded on first lookup.
+     *
+     * @param file the prekey directory file, created if missing
+     * @throws IOException if the file cannot be opened or is not a prekey directory
+     * @throws IllegalStateException if the server is already listening
+     */
+    public void setPreKeyDirectory(Path file) throws IOException {
+        if (started.getCount() == 0) {
+            throw new IllegalStateException("Prekey directory must be set before start()");
+        }
+        ClientManager previous = clientManager;
+        clientManager = ClientManager.open(file);
+        previous.close();
+        logger.info("{} Using prekey directory {}", logPrefix, file);
     }
 
     /**
-     * Returns a prefix string used for logging purposes, specific to the server port.
+     * Runs this server as a node of a cluster. Users owned by other nodes may still
+     * connect here; packets for recipients that are not connected locally are forwarded
+     * through the cluster, and connections opening with a NODE_HELLO from a member are
+     * treated as inter-node links.
      *
-     * @return A formatted log prefix string.
+     * @param cluster the local node's cluster view, or null to run standalone
+     * @throws IllegalStateException if the server is already listening
      */
-    private String prefix() {
-        return "[Server-" + port + "]";
+    public void setCluster(Cluster cluster) {
+        if (started.getCount() == 0) {
+            throw new IllegalStateException("Cluster must be set before start()");
+        }
+        this.cluster = cluster;
     }
 
     /**
      * Starts the server, begins accepting client connections, and dispatches
-     * handlers for processing incoming packets.
+     * handlers for processing incoming packets. The calling thread becomes one of the
+     * acceptors and returns once the server is stopped.
      */
     public void start() {
         Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            logger.info("{} SecureChat server started and listening on port {}", prefix(), port);
+        if (unixSocketPath != null) {
+            try {
+                removeStaleSocket(unixSocketPath);
+            } catch (IOException e) {
+                logger.error("{} Cannot listen on Unix domain socket {}: {}", logPrefix, unixSocketPath, e.getMessage(), e);
+                return;
+            }
+        }
+        try {
+            bindListeners();
+        } catch (Exception e) {
+            logger.error("{} Server socket failed on port {}", logPrefix, port, e);
+            closeListeners();
+            return;
+        }
+        logger.info("{} SecureChat server started and listening on port {} with {} acceptor(s) on {} socket(s)",
+                logPrefix, port, acceptorThreads, listeners.size());
+        if (unixSocketPath != null) {
+            startUnixListener(unixSocketPath);
+        }
+        started.countDown();
+        startTimers();
 
-            while (isRunning) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    clientSocket.setSoTimeout(30000);
+        for (int i = 1; i < acceptorThreads; i++) {
+            ServerSocket listener = listeners.get(i % listeners.size());
+            Thread acceptor = new Thread(() -> acceptLoop(listener), "Server-" + port + "-acceptor-" + i);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        acceptLoop(listeners.get(0));
+    }
 
-                    PeerConnection conn = new PeerConnection(clientSocket);
-                    logger.info("{} Accepted new client connection from {}", prefix(), clientSocket.getRemoteSocketAddress());
+    /**
+     * Binds one listening socket per acceptor with {@code SO_REUSEPORT}, or a single
+     * shared socket where that option is unavailable or only one acceptor is configured.
+     *
+     * @throws IOException if binding fails
+     */
+    private void bindListeners() throws IOException {
+        ServerSocket first = new ServerSocket();
+        listeners.add(first);
+        // An ephemeral port would give every reuse-port socket a different port
+        boolean reusePort = acceptorThreads > 1 && port != 0
+                && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        int count = reusePort ? acceptorThreads : 1;
+        for (int i = 1; i < count; i++) {
+            listeners.add(new ServerSocket());
+        }
+        for (ServerSocket listener : listeners) {
+            if (reusePort) {
+                listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            listener.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        }
+    }
+
+    /**
+     * Accepts connections from one listening socket until the server stops. The accept
+     * thread only sets socket options; the blocking stream handshake runs on the pool, so
+     * a slow client cannot hold up the connections queued behind it.
+     *
+     * @param listener the listening socket
+     */
+    private void acceptLoop(ServerSocket listener) {
+        while (isRunning && !listener.isClosed()) {
+            try {
+                Socket clientSocket = listener.accept();
+                pool.execute(() -> handshake(clientSocket));
+            } catch (Exception e) {
+                if (isRunning) {
+                    logger.error("{} Error accepting client connection", logPrefix, e);
+                } else {
+                    logger.info("{} Server stopped accepting connections", logPrefix);
+                }
+            }
+        }
+    }
+
+    /**
+     * Exchanges the object stream headers on an accepted socket and then serves the
+     * connection on the same pool thread.
+     *
+     * @param clientSocket the accepted socket
+     */
+    private void handshake(Socket clientSocket) {
+        PeerConnection conn;
+        try {
+            // Bound only the stream handshake; idle detection afterwards is the heartbeat's job
+            clientSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            conn = new PeerConnection(clientSocket);
+            conn.awaitHandshake();
+            clientSocket.setSoTimeout(0);
+            if (refuseIfOverloaded(conn)) {
+                return;
+            }
+        } catch (Exception e) {
+            logger.warn("{} Handshake failed with {}: {}", logPrefix, clientSocket.getRemoteSocketAddress(), e.getMessage());
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {
+                // Nothing more to release
+            }
+            return;
+        }
+        register(conn);
+        handleClient(conn);
+    }
 
-                    pool.execute(() -> handleClient(conn));
+    /**
+     * Deletes a socket file left at {@code path} by an earlier run. Anything else at the
+     * path, such as a regular file or a directory, is left alone and stops the server.
+     *
+     * @param path the socket file path
+     * @throws IOException if the path holds something other than a socket, or deleting fails
+     */
+    private void removeStaleSocket(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        boolean socket;
+        if (path.getFileSystem().supportedFileAttributeViews().contains("unix")) {
+            int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            socket = (mode & S_IFMT) == S_IFSOCK;
+        } else {
+            socket = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+        }
+        if (!socket) {
+            throw new IOException("Not a socket file, refusing to replace it: " + path);
+        }
+        Files.delete(path);
+        logger.info("{} Removed stale Unix domain socket {}", logPrefix, path);
+    }
+
+    /**
+     * Binds the Unix domain socket and accepts from it on a dedicated thread. A failure to
+     * bind is logged and leaves the TCP listener running.
+     *
+     * @param path the socket file path
+     */
+    private void startUnixListener(Path path) {
+        try {
+            ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.bind(UnixDomainSocketAddress.of(path));
+            unixChannel = channel;
+            logger.info("{} Listening on Unix domain socket {}", logPrefix, path);
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.error("{} Failed to listen on Unix domain socket {}", logPrefix, path, e);
+            return;
+        }
+
+        Thread acceptor = new Thread(() -> {
+            while (isRunning && unixChannel.isOpen()) {
+                try {
+                    SocketChannel client = unixChannel.accept();
+                    pool.execute(() -> acceptUnix(client));
                 } catch (Exception e) {
                     if (isRunning) {
-                        logger.error("{} Error accepting client connection", prefix(), e);
+                        logger.error("{} Error accepting Unix domain connection", logPrefix, e);
                     } else {
-                        logger.info("{} Server stopped accepting connections", prefix());
+                        logger.info("{} Server stopped accepting Unix domain connections", logPrefix);
                     }
                 }
             }
+        }, "Server-" + port + "-unix");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Performs the stream handshake on an accepted Unix domain channel and registers the
+     * connection. Channels have no read timeout, so the handshake runs on a pool thread
+     * and the heartbeat timer closes the channel if it stalls.
+     *
+     * @param client the accepted channel
+     */
+    private void acceptUnix(SocketChannel client) {
+        ScheduledFuture<?> timeout = heartbeat.schedule(() -> {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }, HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            PeerConnection conn = new PeerConnection(new ChannelTransport(client));
+            conn.awaitHandshake();
+            if (timeout.cancel(false) && !refuseIfOverloaded(conn)) {
+                register(conn);
+                handleClient(conn);
+            }
         } catch (Exception e) {
-            logger.error("{} Server socket failed on port {}", prefix(), port, e);
+            timeout.cancel(false);
+            logger.warn("{} Unix domain handshake failed: {}", logPrefix, e.getMessage());
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // Nothing more to release
+            }
         }
     }
 
     /**
-     * Handles communication with a single client, processing incoming {@link Packet}s
-     * and routing or responding as needed.
+     * Opens an in-process connection to this server over a {@link LoopbackTransport}.
+     * The server end is handled exactly like an accepted socket; the returned end is for
+     * the caller, typically a {@link com.securechat.client.UserClient} embedded in the same
+     * JVM. This works whether or not {@link #start()} has been called, so the server can
+     * also run as a purely in-process relay. In-process connections are not refused
+     * while the server is overloaded, since a refusal would reach the caller as a closed
+     * connection rather than a request to back off; their packets are still shed.
+     *
+     * @return the client end of the connection
+     * @throws IllegalStateException if the server has been stopped
+     */
+    public PeerConnection connectLocal() {
+        if (!isRunning) {
+            throw new IllegalStateException("Server is stopped");
+        }
+        startTimers();
+        LoopbackTransport.Pair pair = LoopbackTransport.pair(
+                "local-" + localConnections.incrementAndGet(), LoopbackTransport.DEFAULT_CAPACITY);
+        accept(new PeerConnection(pair.server()));
+        return new PeerConnection(pair.client());
+    }
+
+    /**
+     * Registers a newly opened connection and starts its handler.
+     *
+     * @param conn the connection
+     */
+    private void accept(PeerConnection conn) {
+        register(conn);
+        pool.execute(() -> handleClient(conn));
+    }
+
+    /**
+     * Turns a new connection away while the server is shedding load, telling the client
+     * with an OVERLOAD when to try again.
+     *
+     * @param conn the connection, after its stream handshake
+     * @return true if the connection was refused and closed
+     */
+    private boolean refuseIfOverloaded(PeerConnection conn) {
+        OverloadMonitor monitor = overload;
+        if (!monitor.isAtLeast(OverloadMonitor.Level.REFUSE_CONNECTIONS)) {
+            return false;
+        }
+        overloadRefused.increment();
+        try {
+            conn.sendMessageObject(backOffPacket(PacketType.OVERLOAD, null, -1, 0, monitor.retryAfterMillis()));
+        } catch (Exception e) {
+            logger.debug("{} Failed to send OVERLOAD to {}: {}", logPrefix, conn, e.getMessage());
+        }
+        try {
+            conn.close();
+        } catch (IOException ignored) {
+            // Nothing more to release
+        }
+        logger.debug("{} Refused connection from {} while overloaded", logPrefix, conn.getRemoteAddress());
+        return true;
+    }
+
+    /**
+     * Adds a newly opened connection to the tracked set.
+     *
+     * @param conn the connection
+     */
+    private void register(PeerConnection conn) {
+        connections.add(conn);
+        connectionsAccepted.increment();
+        logger.info("{} Accepted new client connection from {}", logPrefix, conn.getRemoteAddress());
+    }
+
+    /**
+     * Schedules the heartbeat sweep, the presence flush, rate-limit bucket eviction,
+     * overload sampling and the traffic summary, once.
+     */
+    private void startTimers() {
+        if (!timersStarted.compareAndSet(false, true)) {
+            return;
+        }
+        long sweepMillis = Math.max(1, pingIntervalMillis / 2);
+        heartbeat.scheduleAtFixedRate(this::checkIdleConnections, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        heartbeat.scheduleWithFixedDelay(this::flushPresence, presenceWindowMillis, presenceWindowMillis, TimeUnit.MILLISECONDS);
+        heartbeat.scheduleAtFixedRate(this::evictRateLimitBuckets, RATE_LIMIT_EVICT_INTERVAL_MILLIS,
+                RATE_LIMIT_EVICT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        heartbeat.scheduleWithFixedDelay(this::sampleOverload, OVERLOAD_SAMPLE_INTERVAL_MILLIS,
+                OVERLOAD_SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        heartbeat.scheduleAtFixedRate(this::logTrafficSummary, TRAFFIC_SUMMARY_INTERVAL_MILLIS,
+                TRAFFIC_SUMMARY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads {@link Packet}s from a single client and hands them to the
+     * {@link FairScheduler}, which processes them in order on its workers while taking
+     * turns with other connections. The reader only deserializes; once the connection
+     * closes, its cleanup is queued behind the packets still waiting in its lane.
      *
      * @param conn The {@link PeerConnection} representing the client.
      */
     private void handleClient(PeerConnection conn) {
-        logger.info("{} Started client handler for {}", prefix(), conn);
+        logger.info("{} Started client handler for {}", logPrefix, conn);
+        ConnectionState state = new ConnectionState(dispatcher.newLane());
         try {
             while (isRunning) {
                 Object obj = conn.receiveMessageObject();
 
                 if (!(obj instanceof Packet packet)) {
-                    logger.warn("{} Expected Packet but received {} from {}", prefix(),
+                    logger.warn("{} Expected Packet but received {} from {}", logPrefix,
                             obj == null ? "null" : obj.getClass().getName(), conn);
                     continue;
                 }
 
-                String senderId = packet.getSenderId();
-                int senderDeviceId = packet.getSenderDeviceId();
+                if (packet.isTraced()) {
+                    packet.setTraceServerReceiveMicros(TraceClock.nowMicros());
+                }
+                dispatcher.submit(state.lane, () -> process(packet, conn, state));
+            }
+        } catch (EOFException e) {
+            logger.info("{} Client disconnected: {}", logPrefix, conn);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("{} Client handler error for connection {}", logPrefix, conn, e);
+        } finally {
+            dispatcher.finish(state.lane, () -> closeClient(conn, state));
+        }
+    }
 
+    /**
+     * Per-connection state, only touched by the dispatcher worker currently running the
+     * connection's lane.
+     */
+    private static final class ConnectionState {
+        final FairScheduler.Lane lane;
+        String linkNode;          // set once a cluster member identifies the connection as its link
+        String boundUserId;       // device the connection registered as, unregistered when it closes
+        int boundDeviceId = -1;
+        long rejectedSequence;    // outbox sequence refused by the rate limiter or shed, until it is resent
+        long creditLimit;         // highest outbox sequence the client may send, 0 before its first one
+
+        ConnectionState(FairScheduler.Lane lane) {
+            this.lane = lane;
+        }
+    }
+
+    /**
+     * Processes one packet from a client, routing or responding as needed. A failure
+     * closes the connection, which ends its reader.
+     *
+     * @param packet the packet
+     * @param conn   the connection it arrived on
+     * @param state  the connection's state
+     */
+    private void process(Packet packet, PeerConnection conn, ConnectionState state) {
+        String senderId = packet.getSenderId();
+        int senderDeviceId = packet.getSenderDeviceId();
+        long start = System.nanoTime();
+        PacketReceivedEvent receivedEvent = new PacketReceivedEvent();
+        receivedEvent.begin();
+
+        try {
+            if (state.linkNode != null) {
+                handleForwarded(packet, state.linkNode);
+            } else {
                 switch (packet.getType()) {
-                    case PREKEY_BUNDLE -> handlePreKeyBundleRegistration(packet, conn);
-                    case GET_PREKEY_BUNDLE -> handlePreKeyBundleRequest(packet, conn);
+                    case PREKEY_BUNDLE -> {
+                        if (handlePreKeyBundleRegistration(packet, conn)) {
+                            bind(state, senderId, senderDeviceId);
+                        }
+                    }
+                    case GET_PREKEY_BUNDLE -> {
+                        if (admit(packet, conn, state)) {
+                            requestPreKeyBundle(packet, conn);
+                        }
+                    }
+                    case REGISTER -> {
+                        if (handleDigestRegistration(packet, conn)) {
+                            bind(state, senderId, senderDeviceId);
+                        }
+                    }
+                    case RESUME -> {
+                        if (handleResume(packet, conn)) {
+                            bind(state, senderId, senderDeviceId);
+                        }
+                    }
+                    case PREKEY_UPLOAD -> {
+                        if (admit(packet, conn, state)) {
+                            handlePreKeyUpload(packet, conn);
+                        }
+                    }
+                    case PING -> sendHeartbeat(conn, PacketType.PONG);
+                    case PONG -> logger.debug("{} Received PONG from {}", logPrefix, conn);
+                    case NODE_HELLO -> state.linkNode = acceptNodeLink(packet, conn, state);
+                    case SUBSCRIBE_PRESENCE -> {
+                        if (admit(packet, conn, state)) {
+                            handlePresenceSubscription(packet, conn);
+                        }
+                    }
                     case PREKEY_MESSAGE, MESSAGE, ACK -> {
+                        if (!admit(packet, conn, state)) {
+                            break;
+                        }
+                        senderId = packet.getSenderId();
+                        senderDeviceId = packet.getSenderDeviceId();
                         try {
-                            messageRouter.routeMessage(packet, senderId);
-                            logger.info("{} Routed {} packet from user '{}' device '{}'", prefix(), packet.getType(), senderId, senderDeviceId);
+                            deliver(packet, senderId);
+                            if (logger.isDebugEnabled()) {
+                                logger.debug("{} Routed {} packet from user '{}' device '{}'", logPrefix, packet.getType(), senderId, senderDeviceId);
+                            }
                         } catch (Exception e) {
-                            logger.error("{} Failed to route message from user '{}' device '{}'", prefix(), senderId, senderDeviceId, e);
+                            logger.error("{} Failed to route message from user '{}' device '{}'", logPrefix, senderId, senderDeviceId, e);
                         }
+                        acknowledgeReceipt(packet, conn);
+                        grantCredit(packet, conn, state);
                     }
-                    default -> logger.warn("{} Unknown packet type '{}' from user '{}' device '{}'", prefix(), packet.getType(), senderId, senderDeviceId);
+                    default -> logger.warn("{} Unknown packet type '{}' from user '{}' device '{}'", logPrefix, packet.getType(), senderId, senderDeviceId);
                 }
             }
         } catch (Exception e) {
-            logger.error("{} Client handler error for connection {}", prefix(), conn, e);
-        } finally {
+            logger.error("{} Client handler error for connection {}", logPrefix, conn, e);
             try {
                 conn.close();
-                logger.info("{} Closed connection for client {}", prefix(), conn);
-            } catch (Exception e) {
-                logger.warn("{} Failed to close client connection {}", prefix(), conn, e);
+            } catch (IOException ignored) {
+                // The reader notices and queues the cleanup
+            }
+        }
+
+        packetsReceived.get(packet.getType()).increment();
+        packetHandling.get(packet.getType()).recordSince(start);
+        if (receivedEvent.shouldCommit()) {
+            receivedEvent.peer = senderId;
+            receivedEvent.deviceId = senderDeviceId;
+            receivedEvent.packetType = packet.getType().name();
+            receivedEvent.bytes = packet.getMessagePayload() != null ? packet.getMessagePayload().length : 0;
+            receivedEvent.commit();
+        }
+    }
+
+    /**
+     * Records the device a connection has successfully registered, resumed or
+     * re-registered as.
+     *
+     * @param state    the connection's state
+     * @param userId   the registered user ID
+     * @param deviceId the registered device ID
+     */
+    private static void bind(ConnectionState state, String userId, int deviceId) {
+        state.boundUserId = userId;
+        state.boundDeviceId = deviceId;
+    }
+
+    /**
+     * Releases a closed client connection after its queued packets have been processed.
+     *
+     * @param conn  the connection
+     * @param state the connection's state
+     */
+    private void closeClient(PeerConnection conn, ConnectionState state) {
+        connections.remove(conn);
+        connectionsClosed.increment();
+        if (state.boundUserId != null) {
+            messageRouter.unregisterPeerDevice(state.boundUserId, state.boundDeviceId, conn);
+        }
+        try {
+            conn.close();
+            logger.info("{} Closed connection for client {}", logPrefix, conn);
+        } catch (Exception e) {
+            logger.warn("{} Failed to close client connection {}", logPrefix, conn, e);
+        }
+    }
+
+    /**
+     * Admits a client packet for routing, a bundle lookup, a prekey upload or a presence
+     * subscription. The packet must come from a connection that has registered, and its
+     * sender is overwritten with the registered device, so a client can neither impersonate
+     * another user nor forge a server notice (sender ID null) to someone else, nor upload
+     * prekeys or subscribe to presence for another device. An outbox packet from a connection that has not
+     * registered is refused with SLOW_DOWN rather than dropped, so it is resent once the
+     * client has registered.
+     * <p>
+     * The packet is then charged to the sender's token buckets. An over-limit packet is
+     * answered with SLOW_DOWN and dropped, and while the server is shedding messages a
+     * message or ACK is answered with OVERLOAD and dropped. If it came from the client's
+     * outbox, every later outbox packet on the connection is dropped too, without a
+     * notice, until the refused one is resent. Cumulative ACKs therefore never skip over it.
+     * An outbox packet beyond the client's send credit is refused with SLOW_DOWN as well.
+     *
+     * @param packet the packet
+     * @param conn   the connection it arrived on
+     * @param state  the connection's state
+     * @return true if the packet may be processed
+     */
+    private boolean admit(Packet packet, PeerConnection conn, ConnectionState state) {
+        long sequence = packet.getSequence();
+        if (state.rejectedSequence > 0) {
+            if (sequence > state.rejectedSequence) {
+                rateLimitDiscarded.increment();
+                return false;
+            }
+            if (sequence == state.rejectedSequence) {
+                state.rejectedSequence = 0;
+            }
+        }
+        if (state.boundUserId == null) {
+            unregisteredDropped.increment();
+            if (sequence > 0) {
+                // Sent right behind a registration that failed, e.g. a rejected resume; resend once registered
+                refuse(packet, conn, state, PacketType.SLOW_DOWN, UNREGISTERED_RETRY_AFTER_MILLIS);
+            } else {
+                logger.warn("{} Dropped {} from unregistered connection {}", logPrefix, packet.getType(), conn);
+                sendError(conn, "Not registered");
+            }
+            return false;
+        }
+        packet.setSenderId(state.boundUserId);
+        packet.setSenderDeviceId(state.boundDeviceId);
+        if (sequence > 0) {
+            if (state.creditLimit == 0) {
+                // The client's first outbox packet follows its last acknowledged one
+                state.creditLimit = sequence - 1 + Outbox.INITIAL_CREDITS;
+            } else if (sequence > state.creditLimit) {
+                creditViolations.increment();
+                refuse(packet, conn, state, PacketType.SLOW_DOWN, OverloadMonitor.BASE_RETRY_AFTER_MILLIS);
+                return false;
+            }
+        }
+        OverloadMonitor monitor = overload;
+        // Bundle requests are deferred elsewhere, a shed upload would leave lookups without one-time
+        // prekeys, and a shed subscription would not be renewed before the client registers again
+        PacketType type = packet.getType();
+        boolean sheddable = type != PacketType.GET_PREKEY_BUNDLE && type != PacketType.PREKEY_UPLOAD
+                && type != PacketType.SUBSCRIBE_PRESENCE;
+        if (sheddable && monitor.isAtLeast(OverloadMonitor.Level.SHED_MESSAGES)) {
+            overloadShed.increment();
+            refuse(packet, conn, state, PacketType.OVERLOAD, monitor.retryAfterMillis());
+            return false;
+        }
+        RateLimiter limiter = rateLimiter;
+        if (limiter == null) {
+            return true;
+        }
+        long retryAfterMillis = limiter.acquire(state.boundUserId, state.boundDeviceId, packet.getType());
+        if (retryAfterMillis == 0) {
+            return true;
+        }
+        refuse(packet, conn, state, PacketType.SLOW_DOWN, retryAfterMillis);
+        return false;
+    }
+
+    /**
+     * Extends a client's send credit once one of its outbox packets has been processed,
+     * i.e. routed to the recipient's connection. Credit therefore returns only as fast as
+     * the server and the recipients drain it, and never lets more than one window of the
+     * client's packets wait in the server. The window shrinks as the server grows more
+     * overloaded. Grants are batched, going out once the credit would grow by half a window.
+     *
+     * @param packet the processed packet
+     * @param conn   the client's connection
+     * @param state  the connection's state
+     */
+    private void grantCredit(Packet packet, PeerConnection conn, ConnectionState state) {
+        if (packet.getSequence() <= 0) {
+            return;
+        }
+        int window = Math.max(MIN_CREDIT_WINDOW, CREDIT_WINDOW >> overload.level().ordinal());
+        long limit = packet.getSequence() + window;
+        if (limit - state.creditLimit < window / 2) {
+            return;
+        }
+        state.creditLimit = limit;
+        try {
+            Packet credit = new Packet();
+            credit.setType(PacketType.CREDIT);
+            credit.setSenderId(null);
+            credit.setSenderDeviceId(-1);
+            credit.setRecipientId(packet.getSenderId());
+            credit.setRecipientDeviceId(packet.getSenderDeviceId());
+            credit.setSequence(limit);
+            conn.sendMessageObject(credit);
+            creditsGranted.increment();
+        } catch (Exception e) {
+            logger.debug("{} Failed to send CREDIT to {}: {}", logPrefix, conn, e.getMessage());
+        }
+    }
+
+    /**
+     * Drops a refused packet, starting go-back-N if it came from the outbox, and tells the
+     * client to back off. The notice echoes the packet's outbox sequence; for a bundle
+     * request, which is not sent through the outbox, it carries the requested user in the
+     * payload instead.
+     *
+     * @param packet           the refused packet
+     * @param conn             the client's connection
+     * @param state            the connection's state
+     * @param type             SLOW_DOWN or OVERLOAD
+     * @param retryAfterMillis how long the client should wait before resending
+     */
+    private void refuse(Packet packet, PeerConnection conn, ConnectionState state, PacketType type, long retryAfterMillis) {
+        if (packet.getSequence() > 0) {
+            state.rejectedSequence = packet.getSequence();
+        }
+        try {
+            Packet notice = backOffPacket(type, packet.getSenderId(), packet.getSenderDeviceId(),
+                    packet.getSequence(), retryAfterMillis);
+            if (packet.getType() == PacketType.GET_PREKEY_BUNDLE && packet.getRecipientId() != null) {
+                notice.setMessagePayload(packet.getRecipientId().getBytes(StandardCharsets.UTF_8));
+            }
+            conn.sendMessageObject(notice);
+            logger.debug("{} Refused {} from user '{}' device '{}' with {}, retry in {} ms", logPrefix,
+                    packet.getType(), packet.getSenderId(), packet.getSenderDeviceId(), type, retryAfterMillis);
+        } catch (Exception e) {
+            logger.debug("{} Failed to send {} to {}: {}", logPrefix, type, conn, e.getMessage());
+        }
+    }
+
+    /**
+     * Builds a SLOW_DOWN or OVERLOAD notice from the server.
+     *
+     * @param type              SLOW_DOWN or OVERLOAD
+     * @param recipientId       the client's user ID, or null before it registered
+     * @param recipientDeviceId the client's device ID
+     * @param sequence          the refused outbox sequence, or 0 for a general notice
+     * @param retryAfterMillis  how long the client should wait
+     * @return the packet
+     */
+    private static Packet backOffPacket(PacketType type, String recipientId, int recipientDeviceId,
+                                        long sequence, long retryAfterMillis) {
+        Packet notice = new Packet();
+        notice.setType(type);
+        notice.setSenderId(null);
+        notice.setSenderDeviceId(-1);
+        notice.setRecipientId(recipientId);
+        notice.setRecipientDeviceId(recipientDeviceId);
+        notice.setSequence(sequence);
+        notice.setRetryAfterMillis(retryAfterMillis);
+        return notice;
+    }
+
+    /**
+     * Serves a bundle request now, or holds it while the server is deferring bundle
+     * requests. A held request is answered once pressure drops; the client is told with a
+     * general OVERLOAD to pause its outbox meanwhile. Past {@link #MAX_DEFERRED_BUNDLE_REQUESTS}
+     * held requests, further ones are refused and the client fails its pending request.
+     *
+     * @param packet the GET_PREKEY_BUNDLE
+     * @param conn   the connection it arrived on
+     */
+    private void requestPreKeyBundle(Packet packet, PeerConnection conn) {
+        OverloadMonitor monitor = overload;
+        if (!monitor.isAtLeast(OverloadMonitor.Level.DEFER_BUNDLES)) {
+            handlePreKeyBundleRequest(packet, conn);
+            return;
+        }
+        Packet notice = backOffPacket(PacketType.OVERLOAD, packet.getSenderId(), packet.getSenderDeviceId(),
+                0, monitor.retryAfterMillis());
+        if (deferredCount.incrementAndGet() <= MAX_DEFERRED_BUNDLE_REQUESTS) {
+            deferredBundleRequests.add(() -> {
+                deferredCount.decrementAndGet();
+                // Skip connections closed while waiting, rather than spend a one-time prekey on them
+                if (connections.contains(conn)) {
+                    handlePreKeyBundleRequest(packet, conn);
+                }
+            });
+            overloadDeferred.increment();
+        } else {
+            deferredCount.decrementAndGet();
+            overloadShed.increment();
+            if (packet.getRecipientId() != null) {
+                notice.setMessagePayload(packet.getRecipientId().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        try {
+            conn.sendMessageObject(notice);
+        } catch (Exception e) {
+            logger.debug("{} Failed to send OVERLOAD to {}: {}", logPrefix, conn, e.getMessage());
+        }
+    }
+
+    /**
+     * Routes a user packet to its recipient: over the recipient's local connection if it
+     * has one, otherwise through the cluster. Without a route it is dropped and counted.
+     *
+     * @param packet   the packet to deliver
+     * @param senderId the sender's user ID, for logging
+     */
+    private void deliver(Packet packet, String senderId) {
+        Cluster c = cluster;
+        if (c == null || packet.getRecipientId() == null
+                || messageRouter.hasPeer(packet.getRecipientId(), packet.getRecipientDeviceId())
+                || !c.forward(packet)) {
+            messageRouter.routeMessage(packet, senderId);
+        }
+    }
+
+    /**
+     * Accepts a NODE_HELLO, marking the connection as the link from another cluster node.
+     * The hello must be signed with the cluster secret, and the connection must not have
+     * registered as a client device already.
+     *
+     * @param packet the hello, naming the node in its sender ID
+     * @param conn   the connection it arrived on
+     * @param state  the connection's state
+     * @return the linked node's ID, or null if the hello is rejected
+     */
+    private String acceptNodeLink(Packet packet, PeerConnection conn, ConnectionState state) {
+        Cluster c = cluster;
+        String node = packet.getSenderId();
+        if (c == null || state.boundUserId != null || !c.verifyHello(packet)) {
+            logger.warn("{} Rejected NODE_HELLO from '{}' on {}", logPrefix, node, conn);
+            sendError(conn, "Not a cluster member");
+            return null;
+        }
+        logger.info("{} Accepted node link from {} on {}", logPrefix, node, conn);
+        return node;
+    }
+
+    /**
+     * Handles a packet arriving on a link from another cluster node. Packets without a
+     * sender are ignored: delivered to a client, they would pass for the server's own notices.
+     *
+     * @param packet   the forwarded packet
+     * @param fromNode the node that forwarded it
+     */
+    private void handleForwarded(Packet packet, String fromNode) {
+        Cluster c = cluster;
+        String userId = packet.getSenderId();
+        int deviceId = packet.getSenderDeviceId();
+        if (userId == null) {
+            logger.warn("{} Ignoring {} without a sender on link from {}", logPrefix, packet.getType(), fromNode);
+            return;
+        }
+        switch (packet.getType()) {
+            case LOCATE -> {
+                c.locate(userId, deviceId, new String(packet.getMessagePayload(), StandardCharsets.UTF_8));
+                try {
+                    if (packet.getPreKeyBundlePayload() != null) {
+                        clientManager.register(userId, deviceId, packet.getPreKeyBundlePayload());
+                    }
+                    if (packet.getPreKeyBatchPayload() != null) {
+                        clientManager.addPreKeys(userId, deviceId, packet.getPreKeyBatchPayload());
+                        publishLocation(userId, deviceId, null, packet.getPreKeyBatchPayload());
+                    }
+                } catch (Exception e) {
+                    logger.warn("{} Rejected keys of user '{}' device '{}' from {}: {}", logPrefix, userId, deviceId, fromNode, e.getMessage());
+                }
             }
+            case GET_PREKEY_BUNDLE -> serveForwardedBundleRequest(packet, fromNode);
+            case PREKEY_MESSAGE, MESSAGE, ACK, PREKEY_BUNDLE -> deliver(packet, userId);
+            case PING, PONG -> logger.debug("{} Received {} on link from {}", logPrefix, packet.getType(), fromNode);
+            default -> logger.warn("{} Unexpected {} on link from {}", logPrefix, packet.getType(), fromNode);
+        }
+    }
+
+    /**
+     * Answers a bundle request forwarded from another node. The owner replies with a
+     * PREKEY_BUNDLE addressed to the requester, which is delivered like any other packet.
+     *
+     * @param packet   the forwarded GET_PREKEY_BUNDLE
+     * @param fromNode the node that forwarded it
+     */
+    private void serveForwardedBundleRequest(Packet packet, String fromNode) {
+        String targetUserId = packet.getRecipientId();
+        int targetDeviceId = packet.getRecipientDeviceId();
+        PreKeyBundleDTO bundle = clientManager.getPreKeyBundle(targetUserId, targetDeviceId);
+        if (bundle == null) {
+            logger.warn("{} No PreKeyBundle found for user '{}' device '{}' requested via {}", logPrefix, targetUserId, targetDeviceId, fromNode);
+            return;
+        }
+        Packet response = new Packet(targetUserId, targetDeviceId, bundle);
+        response.setRecipientId(packet.getSenderId());
+        response.setRecipientDeviceId(packet.getSenderDeviceId());
+        deliver(response, targetUserId);
+    }
+
+    /**
+     * Reports a device registered here to its owner when running in a cluster.
+     *
+     * @param userId   the user ID
+     * @param deviceId the device ID
+     * @param bundle   a bundle just uploaded (may be null)
+     * @param batch    a prekey batch just uploaded (may be null)
+     */
+    private void publishLocation(String userId, int deviceId, PreKeyBundleDTO bundle, PreKeyBatchDTO batch) {
+        Cluster c = cluster;
+        if (c != null) {
+            c.publishLocation(userId, deviceId, bundle, batch);
+        }
+    }
+
+    /**
+     * Heartbeat sweep run on the shared timer. Connections that have been silent for the
+     * ping interval are hibernated and pinged; connections silent past the idle timeout
+     * are closed, which ends their handler. Nothing here waits for a connection's writer,
+     * so a peer that stopped reading cannot hold up the timer.
+     */
+    private void checkIdleConnections() {
+        for (PeerConnection conn : connections) {
+            long idle = conn.idleMillis();
+            if (idle >= idleTimeoutMillis) {
+                logger.info("{} Closing connection {} after {} ms without traffic", logPrefix, conn, idle);
+                connections.remove(conn);
+                try {
+                    conn.close();
+                } catch (Exception e) {
+                    logger.warn("{} Failed to close idle connection {}", logPrefix, conn, e);
+                }
+            } else if (idle >= pingIntervalMillis) {
+                try {
+                    // A writer holds the connection, maybe blocked on a stalled peer; the ping
+                    // would only queue behind it, so both wait for the next sweep
+                    if (!conn.hibernate()) {
+                        logger.debug("{} Connection {} busy writing, not hibernated", logPrefix, conn);
+                        continue;
+                    }
+                } catch (Exception e) {
+                    logger.debug("{} Failed to hibernate connection {}: {}", logPrefix, conn, e.getMessage());
+                }
+                sendHeartbeat(conn, PacketType.PING);
+            }
+        }
+    }
+
+    /**
+     * Logs one INFO line with the packets received, routed and dropped since the previous
+     * summary. Per-message events are logged at DEBUG only, so this is what a production
+     * log shows of message traffic. Quiet intervals are skipped.
+     */
+    private void logTrafficSummary() {
+        long received = 0;
+        for (Counter counter : packetsReceived.values()) {
+            received += counter.get();
+        }
+        long routedTotal = routed.get();
+        long droppedTotal = dropped.get() + noRoute.get();
+        if (received != summaryReceived || routedTotal != summaryRouted || droppedTotal != summaryDropped) {
+            logger.info("{} Traffic: {} packets received, {} routed, {} dropped, {} open connections",
+                    logPrefix, received - summaryReceived, routedTotal - summaryRouted,
+                    droppedTotal - summaryDropped, connections.size());
+            summaryReceived = received;
+            summaryRouted = routedTotal;
+            summaryDropped = droppedTotal;
+        }
+    }
+
+    /**
+     * Sends a PING or PONG heartbeat packet from the server.
+     *
+     * @param conn The connection to send the heartbeat on.
+     * @param type {@link PacketType#PING} or {@link PacketType#PONG}.
+     */
+    private void sendHeartbeat(PeerConnection conn, PacketType type) {
+        try {
+            Packet heartbeatPacket = new Packet();
+            heartbeatPacket.setType(type);
+            heartbeatPacket.setSenderId(null);
+            heartbeatPacket.setSenderDeviceId(-1);
+            conn.sendMessageObject(heartbeatPacket);
+        } catch (Exception e) {
+            logger.debug("{} Failed to send {} to {}: {}", logPrefix, type, conn, e.getMessage());
         }
     }
 
@@ -139,25 +1222,220 @@ public class Server {
      *
      * @param packet The incoming {@link Packet} containing the bundle.
      * @param conn   The {@link PeerConnection} of the sending client.
+     * @return true if the connection is now registered as the sending device
      */
-    private void handlePreKeyBundleRegistration(Packet packet, PeerConnection conn) {
+    private boolean handlePreKeyBundleRegistration(Packet packet, PeerConnection conn) {
         String userId = packet.getSenderId();
         int deviceId = packet.getSenderDeviceId();
         PreKeyBundleDTO bundle = packet.getPreKeyBundlePayload();
 
         if (userId == null || userId.isEmpty() || deviceId < 0 || bundle == null) {
-            logger.warn("{} Invalid PREKEY_BUNDLE registration packet from user '{}' device '{}'", prefix(), userId, deviceId);
+            logger.warn("{} Invalid PREKEY_BUNDLE registration packet from user '{}' device '{}'", logPrefix, userId, deviceId);
             sendError(conn, "Invalid PREKEY_BUNDLE packet");
-            return;
+            return false;
         }
 
         try {
             clientManager.register(userId, deviceId, bundle);
             messageRouter.registerPeer(userId, deviceId, conn);
-            logger.info("{} Registered PreKeyBundle for user '{}' device '{}'", prefix(), userId, deviceId);
+            publishLocation(userId, deviceId, bundle, null);
+            logger.info("{} Registered PreKeyBundle for user '{}' device '{}'", logPrefix, userId, deviceId);
+            sendResumeToken(userId, deviceId, conn);
+            return true;
         } catch (Exception e) {
-            logger.error("{} Failed to register peer '{}' device '{}'", prefix(), userId, deviceId, e);
+            logger.error("{} Failed to register peer '{}' device '{}'", logPrefix, userId, deviceId, e);
             sendError(conn, "Failed to register peer connection");
+            return false;
+        }
+    }
+
+    /**
+     * Handles a digest-only registration from a client that restored its keys.
+     * The connection is bound only if the stored bundle matches the digest; otherwise
+     * the client is asked to upload the full bundle, and is bound once it arrives.
+     *
+     * @param packet The incoming {@link Packet} carrying the bundle digest.
+     * @param conn   The {@link PeerConnection} of the sending client.
+     * @return true if the connection is now registered as the sending device
+     */
+    private boolean handleDigestRegistration(Packet packet, PeerConnection conn) {
+        String userId = packet.getSenderId();
+        int deviceId = packet.getSenderDeviceId();
+
+        if (userId == null || userId.isEmpty() || deviceId < 0 || packet.getMessagePayload() == null) {
+            logger.warn("{} Invalid REGISTER packet from user '{}' device '{}'", logPrefix, userId, deviceId);
+            sendError(conn, "Invalid REGISTER packet");
+            return false;
+        }
+
+        try {
+            if (clientManager.hasIdenticalBundle(userId, deviceId, packet.getMessagePayload())) {
+                messageRouter.registerPeer(userId, deviceId, conn);
+                publishLocation(userId, deviceId, null, null);
+                logger.info("{} Registered user '{}' device '{}' with existing PreKeyBundle", logPrefix, userId, deviceId);
+                sendResumeToken(userId, deviceId, conn);
+                return true;
+            }
+            conn.sendMessageObject(new Packet(null, -1, userId, deviceId));
+            logger.info("{} Requested full PreKeyBundle from user '{}' device '{}'", logPrefix, userId, deviceId);
+        } catch (Exception e) {
+            logger.error("{} Failed to register peer '{}' device '{}'", logPrefix, userId, deviceId, e);
+            sendError(conn, "Failed to register peer connection");
+        }
+        return false;
+    }
+
+    /**
+     * Handles a reconnecting client presenting a resume token. A valid token rebinds the
+     * connection in the {@link MessageRouter} straight away and is replaced by a fresh one;
+     * otherwise the client is asked to upload its full PreKeyBundle.
+     *
+     * @param packet The incoming {@link Packet} carrying the resume token.
+     * @param conn   The {@link PeerConnection} of the sending client.
+     * @return true if the connection is now registered as the sending device
+     */
+    private boolean handleResume(Packet packet, PeerConnection conn) {
+        String userId = packet.getSenderId();
+        int deviceId = packet.getSenderDeviceId();
+
+        if (userId == null || userId.isEmpty() || deviceId < 0) {
+            logger.warn("{} Invalid RESUME packet from user '{}' device '{}'", logPrefix, userId, deviceId);
+            sendError(conn, "Invalid RESUME packet");
+            return false;
+        }
+
+        try {
+            if (resumeTokens.validate(userId, deviceId, packet.getMessagePayload())) {
+                messageRouter.registerPeer(userId, deviceId, conn);
+                publishLocation(userId, deviceId, null, null);
+                logger.info("{} Resumed user '{}' device '{}'", logPrefix, userId, deviceId);
+                sendResumeToken(userId, deviceId, conn);
+                return true;
+            }
+            conn.sendMessageObject(new Packet(null, -1, userId, deviceId));
+            logger.info("{} Rejected resume token of user '{}' device '{}', requested full PreKeyBundle", logPrefix, userId, deviceId);
+        } catch (Exception e) {
+            logger.error("{} Failed to resume peer '{}' device '{}'", logPrefix, userId, deviceId, e);
+            sendError(conn, "Failed to resume peer connection");
+        }
+        return false;
+    }
+
+    /**
+     * Issues a new resume token for a registered client and sends it in a SESSION_TOKEN packet.
+     *
+     * @param userId   The registered user ID.
+     * @param deviceId The registered device ID.
+     * @param conn     The client's connection.
+     */
+    private void sendResumeToken(String userId, int deviceId, PeerConnection conn) {
+        try {
+            Packet tokenPacket = new Packet();
+            tokenPacket.setType(PacketType.SESSION_TOKEN);
+            tokenPacket.setMessagePayload(resumeTokens.issue(userId, deviceId));
+            tokenPacket.setSenderId(null);
+            tokenPacket.setSenderDeviceId(-1);
+            tokenPacket.setRecipientId(userId);
+            tokenPacket.setRecipientDeviceId(deviceId);
+            conn.sendMessageObject(tokenPacket);
+        } catch (Exception e) {
+            logger.warn("{} Failed to send resume token to user '{}' device '{}'", logPrefix, userId, deviceId, e);
+        }
+    }
+
+    /**
+     * Handles a presence subscription from a registered device and answers with the
+     * current state of the users it follows. The packet has been admitted, so its sender
+     * is the device the connection registered as.
+     *
+     * @param packet The incoming {@link Packet} carrying the users to follow.
+     * @param conn   The {@link PeerConnection} of the sending client.
+     */
+    private void handlePresenceSubscription(Packet packet, PeerConnection conn) {
+        String userId = packet.getSenderId();
+        int deviceId = packet.getSenderDeviceId();
+
+        if (packet.getPresencePayload() == null) {
+            logger.warn("{} Invalid SUBSCRIBE_PRESENCE packet from user '{}' device '{}'", logPrefix, userId, deviceId);
+            sendError(conn, "Invalid SUBSCRIBE_PRESENCE packet");
+            return;
+        }
+        // Subscriptions are dropped when the device unregisters, e.g. when a newer connection replaced this one
+        if (!messageRouter.hasPeer(userId, deviceId)) {
+            logger.warn("{} SUBSCRIBE_PRESENCE from unregistered user '{}' device '{}'", logPrefix, userId, deviceId);
+            sendError(conn, "Register before subscribing to presence");
+            return;
+        }
+
+        try {
+            PresenceBatch current = presence.subscribe(userId, deviceId, packet.getPresencePayload());
+            conn.sendMessageObject(PresenceService.presencePacket(userId, deviceId, current));
+        } catch (Exception e) {
+            logger.warn("{} Failed to answer presence subscription of user '{}' device '{}'", logPrefix, userId, deviceId, e);
+        }
+    }
+
+    /**
+     * Drops rate-limit buckets that have refilled; runs on the heartbeat timer.
+     */
+    private void evictRateLimitBuckets() {
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.evictIdle();
+        }
+    }
+
+    /**
+     * Samples the overload signals and, once bundle requests are no longer deferred,
+     * releases the held ones to the dispatcher on their own lane, where they take turns
+     * with client traffic. Runs on the heartbeat timer.
+     */
+    private void sampleOverload() {
+        try {
+            OverloadMonitor monitor = overload;
+            monitor.sample();
+            if (!monitor.isAtLeast(OverloadMonitor.Level.DEFER_BUNDLES)) {
+                Runnable task;
+                while ((task = deferredBundleRequests.poll()) != null) {
+                    dispatcher.finish(deferredLane, task);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("{} Overload sampling failed", logPrefix, e);
+        }
+    }
+
+    /**
+     * Publishes coalesced presence changes; runs on the heartbeat timer once per window.
+     */
+    private void flushPresence() {
+        try {
+            presence.flush();
+        } catch (Exception e) {
+            logger.error("{} Presence flush failed", logPrefix, e);
+        }
+    }
+
+    /**
+     * Handles a bulk upload of one-time prekeys and, optionally, a rotated signed prekey.
+     * The packet has been admitted, so its sender is the device the connection registered as.
+     *
+     * @param packet The incoming {@link Packet} carrying the prekey batch.
+     * @param conn   The {@link PeerConnection} of the sending client.
+     */
+    private void handlePreKeyUpload(Packet packet, PeerConnection conn) {
+        String userId = packet.getSenderId();
+        int deviceId = packet.getSenderDeviceId();
+
+        try {
+            clientManager.addPreKeys(userId, deviceId, packet.getPreKeyBatchPayload());
+            publishLocation(userId, deviceId, null, packet.getPreKeyBatchPayload());
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} Stored {} from user '{}' device '{}'", logPrefix, packet.getPreKeyBatchPayload(), userId, deviceId);
+            }
+        } catch (Exception e) {
+            logger.warn("{} Rejected PREKEY_UPLOAD from user '{}' device '{}': {}", logPrefix, userId, deviceId, e.getMessage());
+            sendError(conn, "Invalid PREKEY_UPLOAD packet");
         }
     }
 
@@ -173,26 +1451,68 @@ public class Server {
         int targetDeviceId = packet.getRecipientDeviceId();
 
         if (targetUserId == null || targetUserId.isEmpty() || targetDeviceId < 0) {
-            logger.warn("{} Invalid GET_PREKEY_BUNDLE request from '{}' for recipient '{}:{}'", prefix(), requesterId, targetUserId, targetDeviceId);
+            logger.warn("{} Invalid GET_PREKEY_BUNDLE request from '{}' for recipient '{}:{}'", logPrefix, requesterId, targetUserId, targetDeviceId);
             sendError(conn, "Invalid recipient info");
             return;
         }
 
+        // In a cluster only the owner serves bundles, so a one-time prekey is never handed out twice
+        Cluster c = cluster;
+        if (c != null && !c.owns(targetUserId)) {
+            if (!c.forwardToOwner(targetUserId, packet)) {
+                sendError(conn, "PreKeyBundle owner unreachable");
+            }
+            return;
+        }
+
+        PreKeyBundleServedEvent servedEvent = new PreKeyBundleServedEvent();
+        servedEvent.begin();
         PreKeyBundleDTO bundle = clientManager.getPreKeyBundle(targetUserId, targetDeviceId);
 
         if (bundle != null) {
             try {
                 Packet response = new Packet(targetUserId, targetDeviceId, bundle);
                 conn.sendMessageObject(response);
-                logger.info("{} Sent PREKEY_BUNDLE to requester '{}' for user '{}' device '{}'", prefix(), requesterId, targetUserId, targetDeviceId);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("{} Sent PREKEY_BUNDLE to requester '{}' for user '{}' device '{}'", logPrefix, requesterId, targetUserId, targetDeviceId);
+                }
             } catch (Exception e) {
-                logger.error("{} Failed to send PREKEY_BUNDLE to requester '{}'", prefix(), requesterId, e);
+                logger.error("{} Failed to send PREKEY_BUNDLE to requester '{}'", logPrefix, requesterId, e);
                 sendError(conn, "Failed to send PreKeyBundle");
             }
         } else {
-            logger.warn("{} No PreKeyBundle found for user '{}' device '{}'", prefix(), targetUserId, targetDeviceId);
+            logger.warn("{} No PreKeyBundle found for user '{}' device '{}'", logPrefix, targetUserId, targetDeviceId);
             sendError(conn, "PreKeyBundle not found for recipient");
         }
+
+        if (servedEvent.shouldCommit()) {
+            servedEvent.requester = requesterId;
+            servedEvent.peer = targetUserId;
+            servedEvent.deviceId = targetDeviceId;
+            servedEvent.found = bundle != null;
+            servedEvent.commit();
+        }
+    }
+
+    /**
+     * Acknowledges receipt of a packet sent through a client outbox by echoing its
+     * sequence number in a server ACK (sender ID null), letting the client trim its outbox.
+     * Packets without a sequence number are not acknowledged.
+     *
+     * @param packet The received {@link Packet}.
+     * @param conn   The connection the packet arrived on.
+     */
+    private void acknowledgeReceipt(Packet packet, PeerConnection conn) {
+        if (packet.getSequence() <= 0) {
+            return;
+        }
+        try {
+            Packet ack = new Packet(null, -1, packet.getSenderId(), packet.getSenderDeviceId(), null, PacketType.ACK);
+            ack.setSequence(packet.getSequence());
+            conn.sendMessageObject(ack);
+        } catch (Exception e) {
+            logger.warn("{} Failed to acknowledge packet {} from user '{}'", logPrefix, packet.getSequence(), packet.getSenderId(), e);
+        }
     }
 
     /**
@@ -212,9 +1532,53 @@ public class Server {
             errorPacket.setRecipientDeviceId(-1);
 
             conn.sendMessageObject(errorPacket);
-            logger.debug("{} Sent ERROR packet with message: {}", prefix(), message);
+            logger.debug("{} Sent ERROR packet with message: {}", logPrefix, message);
         } catch (Exception e) {
-            logger.warn("{} Failed to send error packet: {}", prefix(), e.getMessage(), e);
+            logger.warn("{} Failed to send error packet: {}", logPrefix, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Waits until {@link #start()} is listening for connections.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of {@code timeout}
+     * @return true if the server is listening, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitStarted(long timeout, TimeUnit unit) throws InterruptedException {
+        return started.await(timeout, unit);
+    }
+
+    /**
+     * Returns the number of client connections currently open.
+     *
+     * @return the open connection count
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Returns a plain-text dump of the server's metrics (and any other metrics recorded
+     * in this JVM). The same data is available over JMX as {@code com.securechat:type=Metrics}.
+     *
+     * @return the metrics, one per line
+     */
+    public String dumpMetrics() {
+        return MetricsRegistry.global().dump();
+    }
+
+    /**
+     * Closes the TCP listening sockets, which ends their accept loops.
+     */
+    private void closeListeners() {
+        for (ServerSocket listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                logger.warn("{} Failed to close listening socket", logPrefix, e);
+            }
         }
     }
 
@@ -224,7 +1588,24 @@ public class Server {
      */
     public void stop() {
         isRunning = false;
+        heartbeat.shutdownNow();
         pool.shutdownNow();
-        logger.info("{} Server stopped", prefix());
+        dispatcher.shutdown();
+        closeListeners();
+        Cluster c = cluster;
+        if (c != null) {
+            c.close();
+        }
+        clientManager.close();
+        ServerSocketChannel channel = unixChannel;
+        if (channel != null) {
+            try {
+                channel.close();
+                Files.deleteIfExists(unixSocketPath);
+            } catch (IOException e) {
+                logger.warn("{} Failed to remove Unix domain socket {}", logPrefix, unixSocketPath, e);
+            }
+        }
+        logger.info("{} Server stopped", logPrefix);
     }
 }
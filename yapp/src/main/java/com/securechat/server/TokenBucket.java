@@ -0,0 +1,69 @@
+package com.securechat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket kept as a single theoretical arrival time, in the style of
+ * the generic cell rate algorithm. Each admitted token pushes the time forward by one
+ * emission interval; a request is refused while the time would run more than the burst
+ * allowance ahead of the clock. A full bucket and a fresh one are indistinguishable, so
+ * idle buckets can be dropped and recreated at will.
+ *
+ * <p>The rate and burst are passed to each call rather than stored, which keeps a bucket
+ * to one {@link AtomicLong}.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+final class TokenBucket {
+
+    // Time, in System.nanoTime() terms, at which the bucket would be full again
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    /**
+     * Takes {@code cost} tokens if the bucket holds that many.
+     *
+     * @param now            the current System.nanoTime()
+     * @param cost           tokens to take, at least 1
+     * @param intervalNanos  nanoseconds to refill one token
+     * @param allowanceNanos how far ahead of the clock the bucket may run, i.e. the burst
+     *                       size minus one, times the interval
+     * @return 0 if the tokens were taken, otherwise the nanoseconds until they would be
+     */
+    long tryAcquire(long now, int cost, long intervalNanos, long allowanceNanos) {
+        long increment = cost * intervalNanos;
+        while (true) {
+            long current = fullAt.get();
+            long start = current - now > 0 ? current : now;
+            long next = start + increment;
+            long excess = next - now - allowanceNanos - intervalNanos;
+            if (excess > 0) {
+                return excess;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Returns tokens taken by a request that was refused further along, e.g. by the
+     * user's bucket after the device's bucket admitted it.
+     *
+     * @param cost          tokens to return
+     * @param intervalNanos nanoseconds to refill one token
+     */
+    void refund(int cost, long intervalNanos) {
+        fullAt.addAndGet(-cost * intervalNanos);
+    }
+
+    /**
+     * Returns whether the bucket has refilled completely, so dropping it loses nothing.
+     *
+     * @param now the current System.nanoTime()
+     * @return true if the bucket is full
+     */
+    boolean isFull(long now) {
+        return fullAt.get() - now <= 0;
+    }
+}
@@ -0,0 +1,51 @@
+package com.securechat.store;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default {@link SessionStorage} keeping every {@link SessionRecord} on the heap
+ * in a {@link ConcurrentHashMap}, with no bound on the number of sessions.
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class HeapSessionStorage implements SessionStorage {
+
+    private final Map<SignalProtocolAddress, SessionRecord> sessions = new ConcurrentHashMap<>();
+
+    @Override
+    public SessionRecord load(SignalProtocolAddress address) {
+        return sessions.get(address);
+    }
+
+    @Override
+    public void store(SignalProtocolAddress address, SessionRecord record) {
+        sessions.put(address, record);
+    }
+
+    @Override
+    public boolean contains(SignalProtocolAddress address) {
+        return sessions.containsKey(address);
+    }
+
+    @Override
+    public boolean remove(SignalProtocolAddress address) {
+        return sessions.remove(address) != null;
+    }
+
+    @Override
+    public Collection<SignalProtocolAddress> addresses() {
+        return new ArrayList<>(sessions.keySet());
+    }
+
+    @Override
+    public int size() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,191 @@
+package com.securechat.store;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary snapshot of the key material and session state held by a {@link SignalStore}.
+ * <p>
+ * Layout (big-endian): magic, format version, registration ID, the serialized
+ * identity key pair, then length-prefixed sections for prekeys, signed prekeys,
+ * trusted remote identities and session records. Every record is stored as its
+ * libsignal {@code serialize()} form, so restoring is a parse with no EC work.
+ * </p>
+ * <p>
+ * Snapshots are written to an owner-only temporary file, forced to disk and
+ * atomically moved into place, and are read through a read-only memory mapping
+ * of the whole file.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+final class KeySnapshot {
+
+    private static final int MAGIC = 0x59534E50; // "YSNP"
+    private static final int VERSION = 1;
+
+    private KeySnapshot() {
+    }
+
+    /**
+     * Writes the store's state to {@code file}, replacing any previous snapshot atomically.
+     *
+     * @param store the store to snapshot; its keys must be initialized
+     * @param file  the snapshot file
+     * @throws IOException if writing or moving the file fails
+     */
+    static void write(SignalStore store, Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp); // a leftover from a crashed write may have looser permissions
+
+        try {
+            try (FileChannel channel = openPrivate(tmp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(store.getLocalRegistrationId());
+                writeBytes(out, store.getIdentityKeyPair().serialize());
+
+                List<PreKeyRecord> preKeys = store.loadPreKeys();
+                out.writeInt(preKeys.size());
+                for (PreKeyRecord record : preKeys) {
+                    writeBytes(out, record.serialize());
+                }
+
+                List<SignedPreKeyRecord> signedPreKeys = store.loadSignedPreKeys();
+                out.writeInt(signedPreKeys.size());
+                for (SignedPreKeyRecord record : signedPreKeys) {
+                    writeBytes(out, record.serialize());
+                }
+
+                Map<SignalProtocolAddress, IdentityKey> identities = store.loadIdentities();
+                out.writeInt(identities.size());
+                for (Map.Entry<SignalProtocolAddress, IdentityKey> entry : identities.entrySet()) {
+                    writeAddress(out, entry.getKey());
+                    writeBytes(out, entry.getValue().serialize());
+                }
+
+                List<SignalProtocolAddress> sessions = List.copyOf(store.loadSessionAddresses());
+                out.writeInt(sessions.size());
+                for (SignalProtocolAddress address : sessions) {
+                    writeAddress(out, address);
+                    writeBytes(out, store.loadSession(address).serialize());
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a new file readable and writable only by its owner where the file system
+     * supports POSIX permissions, since snapshots hold private keys.
+     */
+    private static FileChannel openPrivate(Path file) throws IOException {
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return FileChannel.open(file, options,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        return FileChannel.open(file, options);
+    }
+
+    /**
+     * Restores a snapshot into {@code store}, initializing its identity keys and adding
+     * every prekey, signed prekey, trusted identity and session found in the file.
+     *
+     * @param store the store to populate
+     * @param file  the snapshot file
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    static void read(SignalStore store, Path file) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buf.getInt() != MAGIC) {
+                throw new IOException("Not a key snapshot: " + file);
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported key snapshot version " + version + " in " + file);
+            }
+            int registrationId = buf.getInt();
+            store.initializeKeys(new IdentityKeyPair(readBytes(buf)), registrationId);
+
+            for (int i = buf.getInt(); i > 0; i--) {
+                store.storePreKeyRecord(new PreKeyRecord(readBytes(buf)));
+            }
+            for (int i = buf.getInt(); i > 0; i--) {
+                store.storeSignedPreKeyRecord(new SignedPreKeyRecord(readBytes(buf)));
+            }
+            for (int i = buf.getInt(); i > 0; i--) {
+                store.saveIdentity(readAddress(buf), new IdentityKey(readBytes(buf), 0));
+            }
+            for (int i = buf.getInt(); i > 0; i--) {
+                store.storeSession(readAddress(buf), new SessionRecord(readBytes(buf)));
+            }
+        } catch (BufferUnderflowException | InvalidKeyException e) {
+            throw new IOException("Corrupt key snapshot: " + file, e);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeAddress(DataOutputStream out, SignalProtocolAddress address) throws IOException {
+        writeBytes(out, address.getName().getBytes(StandardCharsets.UTF_8));
+        out.writeInt(address.getDeviceId());
+    }
+
+    private static byte[] readBytes(ByteBuffer buf) throws IOException {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+            throw new IOException("Invalid record length " + length + " in key snapshot");
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static SignalProtocolAddress readAddress(ByteBuffer buf) throws IOException {
+        String name = new String(readBytes(buf), StandardCharsets.UTF_8);
+        return new SignalProtocolAddress(name, buf.getInt());
+    }
+}
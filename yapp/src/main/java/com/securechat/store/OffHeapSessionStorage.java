@@ -0,0 +1,119 @@
+package com.securechat.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link SessionStorage} that keeps no {@link SessionRecord} objects on the heap.
+ * <p>
+ * Every record lives only as serialized bytes in a {@link SessionArena} (direct or
+ * memory-mapped segments). {@link #load} deserializes a private copy that lives only
+ * as long as the encrypt or decrypt using it. The following {@link #store} writes the
+ * updated bytes into a fresh slot and returns the old slot to the arena's free list.
+ * The heap only holds one address-to-handle entry per session, so old-gen size and GC
+ * pause times no longer grow with the size of each record's ratchet state.
+ * </p>
+ * <p>
+ * The trade-off is one protobuf parse per load and one serialization per store.
+ * Records returned by {@link #load} are detached: changes are only persisted by
+ * {@link #store}, which is how libsignal's session cipher and builder use the store.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class OffHeapSessionStorage implements SessionStorage {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapSessionStorage.class);
+    private static final String LOG_PREFIX = "[OffHeapSessionStorage]";
+
+    private final SessionArena arena;
+    private final Map<SignalProtocolAddress, Long> handles = new HashMap<>();
+
+    /**
+     * Creates an off-heap storage backed by direct buffers of the default segment size.
+     */
+    public OffHeapSessionStorage() {
+        this(SessionArena.direct(SessionArena.DEFAULT_SEGMENT_SIZE));
+    }
+
+    /**
+     * Creates an off-heap storage backed by the given arena.
+     *
+     * @param arena the arena holding serialized records (non-null, owned by this storage)
+     */
+    public OffHeapSessionStorage(SessionArena arena) {
+        this.arena = arena;
+        logger.info("{} Created", LOG_PREFIX);
+    }
+
+    @Override
+    public SessionRecord load(SignalProtocolAddress address) {
+        byte[] serialized;
+        synchronized (this) {
+            Long handle = handles.get(address);
+            if (handle == null) {
+                return null;
+            }
+            serialized = arena.read(handle);
+        }
+        try {
+            return new SessionRecord(serialized);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Corrupt off-heap session for " + address, e);
+        }
+    }
+
+    @Override
+    public void store(SignalProtocolAddress address, SessionRecord record) {
+        byte[] serialized = record.serialize();
+        synchronized (this) {
+            Long previous = handles.put(address, arena.write(serialized));
+            if (previous != null) {
+                arena.free(previous);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(SignalProtocolAddress address) {
+        return handles.containsKey(address);
+    }
+
+    @Override
+    public synchronized boolean remove(SignalProtocolAddress address) {
+        Long handle = handles.remove(address);
+        if (handle == null) {
+            return false;
+        }
+        arena.free(handle);
+        return true;
+    }
+
+    @Override
+    public synchronized Collection<SignalProtocolAddress> addresses() {
+        return new ArrayList<>(handles.keySet());
+    }
+
+    @Override
+    public synchronized int size() {
+        return handles.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        logger.info("{} Closing: {} sessions, {} live bytes in {} reserved",
+                LOG_PREFIX, handles.size(), arena.liveBytes(), arena.mappedBytes());
+        handles.clear();
+        arena.close();
+    }
+}
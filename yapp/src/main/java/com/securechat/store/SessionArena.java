@@ -0,0 +1,234 @@
+package com.securechat.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A slab of serialized session records held outside the Java heap, either in
+ * memory-mapped file segments ({@link #mapped}) or in direct buffers ({@link #direct}).
+ * <p>
+ * Records are written into power-of-two sized slots carved out of fixed-size
+ * segments. Each slot starts with an 8-byte header (slot capacity, payload length)
+ * followed by the payload. Freed slots are kept on per-size-class free lists and
+ * reused before new space is taken from the current segment, so a steady stream of
+ * spill/fault-in cycles does not grow the file.
+ * </p>
+ * <p>
+ * A record is addressed by a {@code long} handle encoding its segment and offset.
+ * This class is not thread-safe; callers must serialize access.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class SessionArena {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionArena.class);
+    private static final String LOG_PREFIX = "[SessionArena]";
+
+    /** Default segment size: 64 MiB per mapping. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int MIN_SLOT_SHIFT = 6; // 64-byte smallest slot
+
+    private final FileChannel channel; // null for direct arenas
+    private final int segmentSize;
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private final List<ArrayDeque<Long>> freeLists; // indexed by size class
+
+    private int bumpOffset;
+    private long liveBytes;
+
+    /**
+     * Opens a new arena backed by memory-mapped segments of the given file. Any existing
+     * content is discarded and the file is deleted when the arena is closed.
+     *
+     * @param file        the backing file path
+     * @param segmentSize the size of each mapped segment in bytes (power of two, at least 4 KiB)
+     * @return the new arena
+     * @throws UncheckedIOException if the file cannot be opened
+     * @throws IllegalArgumentException if the segment size is invalid
+     */
+    public static SessionArena mapped(Path file, int segmentSize) {
+        validateSegmentSize(segmentSize);
+        try {
+            FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            logger.info("{} Opened mapped arena at {} with {} byte segments", LOG_PREFIX, file, segmentSize);
+            return new SessionArena(channel, segmentSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open session arena file " + file, e);
+        }
+    }
+
+    /**
+     * Creates a new arena backed by direct (off-heap, non file-backed) buffers.
+     * Direct memory is bounded by {@code -XX:MaxDirectMemorySize}.
+     *
+     * @param segmentSize the size of each direct segment in bytes (power of two, at least 4 KiB)
+     * @return the new arena
+     * @throws IllegalArgumentException if the segment size is invalid
+     */
+    public static SessionArena direct(int segmentSize) {
+        validateSegmentSize(segmentSize);
+        logger.info("{} Created direct arena with {} byte segments", LOG_PREFIX, segmentSize);
+        return new SessionArena(null, segmentSize);
+    }
+
+    private SessionArena(FileChannel channel, int segmentSize) {
+        this.channel = channel;
+        this.segmentSize = segmentSize;
+        int sizeClasses = Integer.numberOfTrailingZeros(segmentSize) + 1;
+        this.freeLists = new ArrayList<>(sizeClasses);
+        for (int i = 0; i < sizeClasses; i++) {
+            freeLists.add(new ArrayDeque<>());
+        }
+        this.bumpOffset = segmentSize; // forces allocation of the first segment on first write
+    }
+
+    /**
+     * Copies a serialized record into the arena.
+     *
+     * @param data the serialized record bytes (non-null)
+     * @return a handle that can be passed to {@link #read(long)} and {@link #free(long)}
+     * @throws IllegalArgumentException if the record does not fit in a single segment
+     */
+    public long write(byte[] data) {
+        int sizeClass = sizeClassFor(data.length + HEADER_SIZE);
+        if (sizeClass >= freeLists.size()) {
+            throw new IllegalArgumentException("Record of " + data.length + " bytes exceeds segment size " + segmentSize);
+        }
+        int capacity = 1 << sizeClass;
+
+        Long reused = freeLists.get(sizeClass).poll();
+        long handle = reused != null ? reused : bumpAllocate(capacity);
+
+        ByteBuffer segment = segments.get(segmentIndex(handle));
+        int offset = segmentOffset(handle);
+        segment.putInt(offset, capacity);
+        segment.putInt(offset + 4, data.length);
+        segment.put(offset + HEADER_SIZE, data);
+
+        liveBytes += capacity;
+        return handle;
+    }
+
+    /**
+     * Reads back the record stored under a handle.
+     *
+     * @param handle a handle returned by {@link #write(byte[])} that has not been freed
+     * @return a copy of the serialized record bytes
+     */
+    public byte[] read(long handle) {
+        ByteBuffer segment = segments.get(segmentIndex(handle));
+        int offset = segmentOffset(handle);
+        byte[] data = new byte[segment.getInt(offset + 4)];
+        segment.get(offset + HEADER_SIZE, data);
+        return data;
+    }
+
+    /**
+     * Returns the slot behind a handle to its size-class free list.
+     *
+     * @param handle a handle returned by {@link #write(byte[])}; must not be used afterwards
+     */
+    public void free(long handle) {
+        int capacity = segments.get(segmentIndex(handle)).getInt(segmentOffset(handle));
+        freeLists.get(Integer.numberOfTrailingZeros(capacity)).push(handle);
+        liveBytes -= capacity;
+    }
+
+    /**
+     * Returns the number of bytes in slots currently holding records.
+     *
+     * @return live slot bytes
+     */
+    public long liveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Returns the total number of bytes reserved for this arena's segments.
+     *
+     * @return mapped or allocated segment bytes
+     */
+    public long mappedBytes() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    /**
+     * Releases all segments. For mapped arenas this closes the backing file, which also
+     * deletes it. Handles are invalid afterwards.
+     */
+    public void close() {
+        segments.clear();
+        if (channel == null) {
+            logger.info("{} Closed arena", LOG_PREFIX);
+            return;
+        }
+        try {
+            channel.close();
+            logger.info("{} Closed arena", LOG_PREFIX);
+        } catch (IOException e) {
+            logger.warn("{} Failed to close arena file: {}", LOG_PREFIX, e.getMessage(), e);
+        }
+    }
+
+    private long bumpAllocate(int capacity) {
+        if (bumpOffset + capacity > segmentSize) {
+            mapNextSegment();
+        }
+        long handle = (long) (segments.size() - 1) * segmentSize + bumpOffset;
+        bumpOffset += capacity;
+        return handle;
+    }
+
+    private void mapNextSegment() {
+        if (channel == null) {
+            segments.add(ByteBuffer.allocateDirect(segmentSize));
+        } else {
+            long position = (long) segments.size() * segmentSize;
+            try {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, segmentSize));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to map session arena segment at " + position, e);
+            }
+        }
+        bumpOffset = 0;
+        logger.debug("{} Added segment {} ({} bytes total)", LOG_PREFIX, segments.size() - 1, mappedBytes());
+    }
+
+    private static void validateSegmentSize(int segmentSize) {
+        if (segmentSize < 4096 || Integer.bitCount(segmentSize) != 1) {
+            throw new IllegalArgumentException("segmentSize must be a power of two >= 4096");
+        }
+    }
+
+    private int segmentIndex(long handle) {
+        return (int) (handle / segmentSize);
+    }
+
+    private int segmentOffset(long handle) {
+        return (int) (handle % segmentSize);
+    }
+
+    private static int sizeClassFor(int bytes) {
+        int shift = 32 - Integer.numberOfLeadingZeros(bytes - 1);
+        return Math.max(shift, MIN_SLOT_SHIFT);
+    }
+}
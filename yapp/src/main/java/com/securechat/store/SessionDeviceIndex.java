@@ -0,0 +1,108 @@
+package com.securechat.store;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Secondary index mapping a user name to the device IDs that have a stored session.
+ * <p>
+ * Each name maps to a sorted, copy-on-write {@code int[]}. Users have few devices,
+ * so updates copy a handful of ints while lookups read the array without locking
+ * or boxing. Updates for the same name are serialized through
+ * {@link ConcurrentHashMap#compute}, which also lets callers run the matching
+ * storage mutation atomically with the index change.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+class SessionDeviceIndex {
+
+    private static final int[] NO_DEVICES = new int[0];
+
+    private final Map<String, int[]> devicesByName = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a device ID under a name and runs {@code mutation} while the name is locked.
+     *
+     * @param name     the user name
+     * @param deviceId the device ID to add
+     * @param mutation the storage update to run atomically with the index change
+     */
+    void add(String name, int deviceId, Runnable mutation) {
+        devicesByName.compute(name, (n, devices) -> {
+            mutation.run();
+            if (devices == null) {
+                return new int[] { deviceId };
+            }
+            int pos = Arrays.binarySearch(devices, deviceId);
+            if (pos >= 0) {
+                return devices;
+            }
+            int insertAt = -pos - 1;
+            int[] grown = new int[devices.length + 1];
+            System.arraycopy(devices, 0, grown, 0, insertAt);
+            grown[insertAt] = deviceId;
+            System.arraycopy(devices, insertAt, grown, insertAt + 1, devices.length - insertAt);
+            return grown;
+        });
+    }
+
+    /**
+     * Removes a device ID from a name and runs {@code mutation} while the name is locked.
+     *
+     * @param name     the user name
+     * @param deviceId the device ID to remove
+     * @param mutation the storage update to run atomically with the index change
+     */
+    void remove(String name, int deviceId, Runnable mutation) {
+        devicesByName.compute(name, (n, devices) -> {
+            mutation.run();
+            if (devices == null) {
+                return null;
+            }
+            int pos = Arrays.binarySearch(devices, deviceId);
+            if (pos < 0) {
+                return devices;
+            }
+            if (devices.length == 1) {
+                return null;
+            }
+            int[] shrunk = new int[devices.length - 1];
+            System.arraycopy(devices, 0, shrunk, 0, pos);
+            System.arraycopy(devices, pos + 1, shrunk, pos, devices.length - pos - 1);
+            return shrunk;
+        });
+    }
+
+    /**
+     * Removes every device ID under a name, passing each to {@code mutation} while the name is locked.
+     *
+     * @param name     the user name
+     * @param mutation the storage update to run for each removed device ID
+     * @return the number of device IDs removed
+     */
+    int removeAll(String name, IntConsumer mutation) {
+        int[] removed = { 0 };
+        devicesByName.computeIfPresent(name, (n, devices) -> {
+            for (int deviceId : devices) {
+                mutation.accept(deviceId);
+            }
+            removed[0] = devices.length;
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Returns the device IDs currently indexed under a name.
+     *
+     * @param name the user name
+     * @return a sorted array of device IDs; never null, must not be modified
+     */
+    int[] devices(String name) {
+        return devicesByName.getOrDefault(name, NO_DEVICES);
+    }
+}
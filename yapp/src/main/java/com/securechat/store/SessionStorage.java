@@ -0,0 +1,123 @@
+package com.securechat.store;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * Backing storage for the session records held by a {@link SignalStore}.
+ * <p>
+ * Implementations decide where {@link SessionRecord}s live (heap, disk, off-heap)
+ * while {@link SignalStore} keeps the {@code SessionStore} contract expected by libsignal.
+ * Unlike {@link SignalStore#loadSession}, {@link #load} returns {@code null} on a miss,
+ * so callers decide whether a fresh record is needed.
+ * </p>
+ * <p>
+ * {@link #fromSpec(String)} builds a storage from a short text spec so launchers and
+ * the load generator can pick heap, tiered or off-heap sessions from configuration.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public interface SessionStorage {
+
+    /**
+     * Loads the session record stored for an address.
+     *
+     * @param address the remote peer address (non-null)
+     * @return the stored SessionRecord, or {@code null} if none exists
+     */
+    SessionRecord load(SignalProtocolAddress address);
+
+    /**
+     * Stores or replaces the session record for an address.
+     *
+     * @param address the remote peer address (non-null)
+     * @param record  the SessionRecord to store (non-null)
+     */
+    void store(SignalProtocolAddress address, SessionRecord record);
+
+    /**
+     * Checks whether a session record exists for an address without materializing it.
+     *
+     * @param address the remote peer address (non-null)
+     * @return true if a record is stored, false otherwise
+     */
+    boolean contains(SignalProtocolAddress address);
+
+    /**
+     * Removes the session record for an address.
+     *
+     * @param address the remote peer address (non-null)
+     * @return true if a record was removed, false if none existed
+     */
+    boolean remove(SignalProtocolAddress address);
+
+    /**
+     * Returns a snapshot of all addresses that currently have a stored session.
+     *
+     * @return the stored addresses
+     */
+    Collection<SignalProtocolAddress> addresses();
+
+    /**
+     * Returns the number of stored session records.
+     *
+     * @return the session count
+     */
+    int size();
+
+    /**
+     * Releases any resources (files, mapped memory) held by this storage.
+     */
+    default void close() {
+        // Nothing to release by default
+    }
+
+    /**
+     * Creates a storage from a text spec, as used by configuration files and command lines:
+     * <ul>
+     *   <li>{@code heap} keeps every record on the heap ({@link HeapSessionStorage});</li>
+     *   <li>{@code tiered:<hot sessions>} keeps at most that many records on the heap and
+     *       spills the rest to a new memory-mapped file in {@code java.io.tmpdir}
+     *       ({@link TieredSessionStorage});</li>
+     *   <li>{@code offheap[:<segment KiB>]} keeps records only as serialized bytes in direct
+     *       buffers of the given segment size, 64 MiB by default ({@link OffHeapSessionStorage}).</li>
+     * </ul>
+     *
+     * @param spec the storage spec (non-null)
+     * @return a new storage owned by the caller
+     * @throws IllegalArgumentException if the spec is not recognized
+     * @throws UncheckedIOException if the spill file for a tiered storage cannot be created
+     */
+    static SessionStorage fromSpec(String spec) {
+        String[] parts = spec.trim().split(":", 2);
+        String kind = parts[0].toLowerCase();
+        boolean hasArg = parts.length > 1;
+        try {
+            if (kind.equals("heap") && !hasArg) {
+                return new HeapSessionStorage();
+            }
+            if (kind.equals("tiered") && hasArg) {
+                int maxHotSessions = Integer.parseInt(parts[1]);
+                return new TieredSessionStorage(maxHotSessions, Files.createTempFile("securechat-sessions-", ".spill"));
+            }
+            if (kind.equals("offheap")) {
+                return hasArg
+                        ? new OffHeapSessionStorage(SessionArena.direct(Math.multiplyExact(Integer.parseInt(parts[1]), 1024)))
+                        : new OffHeapSessionStorage();
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException("Invalid session storage spec: " + spec, e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create session spill file", e);
+        }
+        throw new IllegalArgumentException("Session storage must be heap, tiered:<hot sessions> or offheap[:<segment KiB>], not " + spec);
+    }
+}
@@ -5,10 +5,15 @@ import org.slf4j.LoggerFactory;
 
 import org.whispersystems.libsignal.*;
 import org.whispersystems.libsignal.state.*;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
 
 /**
  * An implementation of {@link SignalProtocolStore} that manages the storage
@@ -16,7 +21,8 @@ import java.util.concurrent.ConcurrentHashMap;
  * <p>
  * This store holds identity keys, prekeys, signed prekeys, session records,
  * and identity keys for remote peers. It is thread-safe and uses concurrent
- * hash maps internally.
+ * hash maps internally. Session records are delegated to a pluggable
+ * {@link SessionStorage}, which defaults to an unbounded heap map.
  * </p>
  * <p>
  * It also includes logging for all major operations to facilitate debugging
@@ -37,15 +43,31 @@ public class SignalStore implements SignalProtocolStore {
 
     private final Map<Integer, PreKeyRecord> preKeyStore = new ConcurrentHashMap<>();
     private final Map<Integer, SignedPreKeyRecord> signedPreKeyStore = new ConcurrentHashMap<>();
-    private final Map<SignalProtocolAddress, SessionRecord> sessionStore = new ConcurrentHashMap<>();
     private final Map<SignalProtocolAddress, IdentityKey> identityStore = new ConcurrentHashMap<>();
+    private final SessionStorage sessionStore;
+    private final SessionDeviceIndex sessionDevices = new SessionDeviceIndex();
+
+    private volatile IntConsumer preKeyRemovalListener;
 
     /**
-     * Constructs a new SignalStore instance.
+     * Constructs a new SignalStore instance keeping all sessions on the heap.
      * Keys must be initialized separately via {@link #initializeKeys(IdentityKeyPair, int)}.
      */
     public SignalStore() {
-        logger.debug("{} SignalStore instance created, awaiting keys initialization", LOG_PREFIX);
+        this(new HeapSessionStorage());
+    }
+
+    /**
+     * Constructs a new SignalStore instance backed by the given session storage,
+     * e.g. a {@link TieredSessionStorage} for accounts holding very many sessions.
+     * Keys must be initialized separately via {@link #initializeKeys(IdentityKeyPair, int)}.
+     *
+     * @param sessionStorage the storage holding session records (non-null)
+     */
+    public SignalStore(SessionStorage sessionStorage) {
+        this.sessionStore = sessionStorage;
+        logger.debug("{} SignalStore instance created with {}, awaiting keys initialization",
+                LOG_PREFIX, sessionStorage.getClass().getSimpleName());
     }
 
     /**
@@ -71,7 +93,7 @@ public class SignalStore implements SignalProtocolStore {
             return;
         }
         preKeyStore.put(record.getId(), record);
-        logger.info("{} Stored PreKey with ID: {}", LOG_PREFIX, record.getId());
+        logger.debug("{} Stored PreKey with ID: {}", LOG_PREFIX, record.getId());
     }
 
     /**
@@ -85,7 +107,33 @@ public class SignalStore implements SignalProtocolStore {
             return;
         }
         signedPreKeyStore.put(record.getId(), record);
-        logger.info("{} Stored SignedPreKey with ID: {}", LOG_PREFIX, record.getId());
+        logger.debug("{} Stored SignedPreKey with ID: {}", LOG_PREFIX, record.getId());
+    }
+
+    /**
+     * Writes this store's key material, trusted identities and sessions to a snapshot file,
+     * so a later process can restore them with {@link #restoreSnapshot(Path)} instead of
+     * generating new keys.
+     *
+     * @param file the snapshot file; replaced atomically
+     * @throws IOException if the snapshot cannot be written
+     * @throws IllegalStateException if the identity keys have not been initialized
+     */
+    public void saveSnapshot(Path file) throws IOException {
+        KeySnapshot.write(this, file);
+        logger.info("{} Saved key snapshot to {}", LOG_PREFIX, file);
+    }
+
+    /**
+     * Restores key material, trusted identities and sessions from a snapshot file written
+     * by {@link #saveSnapshot(Path)}. The file is read through a read-only memory mapping.
+     *
+     * @param file the snapshot file
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public void restoreSnapshot(Path file) throws IOException {
+        KeySnapshot.read(this, file);
+        logger.info("{} Restored key snapshot from {}", LOG_PREFIX, file);
     }
 
     // === IdentityKeyStore Methods ===
@@ -137,7 +185,9 @@ public class SignalStore implements SignalProtocolStore {
             logger.info("{} Saved new identity for {} device {}", LOG_PREFIX, address.getName(), address.getDeviceId());
             return true;
         }
-        logger.debug("{} Identity for {} device {} unchanged", LOG_PREFIX, address.getName(), address.getDeviceId());
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} Identity for {} device {} unchanged", LOG_PREFIX, address.getName(), address.getDeviceId());
+        }
         return false;
     }
 
@@ -154,10 +204,21 @@ public class SignalStore implements SignalProtocolStore {
             return null;
         }
         IdentityKey key = identityStore.get(address);
-        logger.debug("{} Retrieved identity for {} device {}", LOG_PREFIX, address.getName(), address.getDeviceId());
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} Retrieved identity for {} device {}", LOG_PREFIX, address.getName(), address.getDeviceId());
+        }
         return key;
     }
 
+    /**
+     * Returns a copy of all trusted remote identities.
+     *
+     * @return a map of remote address to identity key
+     */
+    public Map<SignalProtocolAddress, IdentityKey> loadIdentities() {
+        return new HashMap<>(identityStore);
+    }
+
     // === PreKeyStore Methods ===
 
     /**
@@ -192,7 +253,7 @@ public class SignalStore implements SignalProtocolStore {
             return;
         }
         preKeyStore.put(preKeyId, record);
-        logger.info("{} Stored PreKey with ID: {}", LOG_PREFIX, preKeyId);
+        logger.debug("{} Stored PreKey with ID: {}", LOG_PREFIX, preKeyId);
     }
 
     /**
@@ -215,8 +276,33 @@ public class SignalStore implements SignalProtocolStore {
      */
     @Override
     public void removePreKey(int preKeyId) {
-        preKeyStore.remove(preKeyId);
-        logger.info("{} Removed PreKey with ID: {}", LOG_PREFIX, preKeyId);
+        PreKeyRecord removed = preKeyStore.remove(preKeyId);
+        logger.debug("{} Removed PreKey with ID: {}", LOG_PREFIX, preKeyId);
+        IntConsumer listener = preKeyRemovalListener;
+        if (removed != null && listener != null) {
+            listener.accept(preKeyId);
+        }
+    }
+
+    /**
+     * Sets a listener notified with the ID of every PreKey removed from this store.
+     * libsignal removes a one-time PreKey once a PreKey message consuming it is decrypted,
+     * so this tracks how fast the published supply is being used up.
+     *
+     * @param listener the listener to notify, or null to clear it
+     */
+    public void setPreKeyRemovalListener(IntConsumer listener) {
+        this.preKeyRemovalListener = listener;
+    }
+
+    /**
+     * Loads all stored PreKey records.
+     *
+     * @return a list of all PreKeyRecords currently stored
+     */
+    public List<PreKeyRecord> loadPreKeys() {
+        logger.debug("{} Loading all PreKeys, count: {}", LOG_PREFIX, preKeyStore.size());
+        return new ArrayList<>(preKeyStore.values());
     }
 
     // === SignedPreKeyStore Methods ===
@@ -253,7 +339,7 @@ public class SignalStore implements SignalProtocolStore {
             return;
         }
         signedPreKeyStore.put(signedPreKeyId, record);
-        logger.info("{} Stored SignedPreKey with ID: {}", LOG_PREFIX, signedPreKeyId);
+        logger.debug("{} Stored SignedPreKey with ID: {}", LOG_PREFIX, signedPreKeyId);
     }
 
     /**
@@ -277,7 +363,7 @@ public class SignalStore implements SignalProtocolStore {
     @Override
     public void removeSignedPreKey(int signedPreKeyId) {
         signedPreKeyStore.remove(signedPreKeyId);
-        logger.info("{} Removed SignedPreKey with ID: {}", LOG_PREFIX, signedPreKeyId);
+        logger.debug("{} Removed SignedPreKey with ID: {}", LOG_PREFIX, signedPreKeyId);
     }
 
     /**
@@ -305,24 +391,38 @@ public class SignalStore implements SignalProtocolStore {
             logger.warn("{} loadSession called with null address", LOG_PREFIX);
             return new SessionRecord();
         }
-        SessionRecord session = sessionStore.getOrDefault(address, new SessionRecord());
-        logger.debug("{} Loaded session for {} device {}", LOG_PREFIX, address.getName(), address.getDeviceId());
+        SessionRecord session = sessionStore.load(address);
+        if (session == null) {
+            session = new SessionRecord();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} Loaded session for {} device {}", LOG_PREFIX, address.getName(), address.getDeviceId());
+        }
         return session;
     }
 
+    /**
+     * Returns the addresses of all peers with a stored session.
+     *
+     * @return a snapshot of session addresses
+     */
+    public Collection<SignalProtocolAddress> loadSessionAddresses() {
+        return sessionStore.addresses();
+    }
+
     /**
      * Retrieves the list of device IDs for sub-device sessions associated with a given user name.
+     * Served from the name index, so the cost is proportional to the user's device count.
      *
      * @param name the user name whose sub-device sessions to retrieve
      * @return list of device IDs for the user's sub-device sessions
      */
     @Override
     public List<Integer> getSubDeviceSessions(String name) {
-        List<Integer> deviceIds = new ArrayList<>();
-        for (SignalProtocolAddress addr : sessionStore.keySet()) {
-            if (addr.getName().equals(name)) {
-                deviceIds.add(addr.getDeviceId());
-            }
+        int[] devices = sessionDevices.devices(name);
+        List<Integer> deviceIds = new ArrayList<>(devices.length);
+        for (int deviceId : devices) {
+            deviceIds.add(deviceId);
         }
         logger.debug("{} Found {} sub-device sessions for user {}", LOG_PREFIX, deviceIds.size(), name);
         return deviceIds;
@@ -340,8 +440,10 @@ public class SignalStore implements SignalProtocolStore {
             logger.warn("{} storeSession called with null address or record", LOG_PREFIX);
             return;
         }
-        sessionStore.put(address, record);
-        logger.debug("{} Stored session for {} device {}", LOG_PREFIX, address.getName(), address.getDeviceId());
+        sessionDevices.add(address.getName(), address.getDeviceId(), () -> sessionStore.store(address, record));
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} Stored session for {} device {}", LOG_PREFIX, address.getName(), address.getDeviceId());
+        }
     }
 
     /**
@@ -352,11 +454,13 @@ public class SignalStore implements SignalProtocolStore {
      */
     @Override
     public boolean containsSession(SignalProtocolAddress address) {
-        boolean contains = sessionStore.containsKey(address);
-        logger.debug("{} Checking if session exists for {} device {}: {}", LOG_PREFIX,
-                address == null ? "null" : address.getName(),
-                address == null ? "null" : address.getDeviceId(),
-                contains);
+        boolean contains = address != null && sessionStore.contains(address);
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} Checking if session exists for {} device {}: {}", LOG_PREFIX,
+                    address == null ? "null" : address.getName(),
+                    address == null ? "null" : address.getDeviceId(),
+                    contains);
+        }
         return contains;
     }
 
@@ -371,12 +475,13 @@ public class SignalStore implements SignalProtocolStore {
             logger.warn("{} deleteSession called with null address", LOG_PREFIX);
             return;
         }
-        sessionStore.remove(address);
+        sessionDevices.remove(address.getName(), address.getDeviceId(), () -> sessionStore.remove(address));
         logger.debug("{} Deleted session for {} device {}", LOG_PREFIX, address.getName(), address.getDeviceId());
     }
 
     /**
      * Deletes all session records associated with a given user name.
+     * Only the user's indexed devices are visited, not the whole session store.
      *
      * @param name the user name whose sessions should be deleted
      */
@@ -386,10 +491,18 @@ public class SignalStore implements SignalProtocolStore {
             logger.warn("{} deleteAllSessions called with null user name", LOG_PREFIX);
             return;
         }
-        int before = sessionStore.size();
-        sessionStore.keySet().removeIf(addr -> addr.getName().equals(name));
-        int after = sessionStore.size();
-        logger.debug("{} Deleted all sessions for user {} (removed {})", LOG_PREFIX, name, before - after);
+        int removed = sessionDevices.removeAll(name,
+                deviceId -> sessionStore.remove(new SignalProtocolAddress(name, deviceId)));
+        logger.debug("{} Deleted all sessions for user {} (removed {})", LOG_PREFIX, name, removed);
+    }
+
+    /**
+     * Releases resources held by the session storage, such as spill files.
+     * The store must not be used afterwards.
+     */
+    public void close() {
+        sessionStore.close();
+        logger.info("{} Closed session storage", LOG_PREFIX);
     }
 
     // === Trusted Identity Methods ===
@@ -418,7 +531,9 @@ public class SignalStore implements SignalProtocolStore {
             return true;
         }
         boolean trusted = existing.equals(identityKey);
-        logger.debug("{} Identity for {} device {} trusted? {}", LOG_PREFIX, address.getName(), address.getDeviceId(), trusted);
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} Identity for {} device {} trusted? {}", LOG_PREFIX, address.getName(), address.getDeviceId(), trusted);
+        }
         return trusted;
     }
 }
@@ -0,0 +1,158 @@
+package com.securechat.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link SessionStorage} that bounds the number of {@link SessionRecord}s kept on the heap.
+ * <p>
+ * The hot tier is an access-ordered LRU map holding at most {@code maxHotSessions}
+ * records. When it overflows, the least recently used record is serialized with
+ * {@link SessionRecord#serialize()} and spilled into a memory-mapped {@link SessionArena}.
+ * A later {@link #load} of a spilled address faults the record back into the hot tier
+ * and releases its arena slot.
+ * </p>
+ * <p>
+ * All operations are serialized on this instance. libsignal already serializes
+ * session cipher operations on a global lock, so this adds no contention on the
+ * encrypt/decrypt path.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+public class TieredSessionStorage implements SessionStorage {
+
+    private static final Logger logger = LoggerFactory.getLogger(TieredSessionStorage.class);
+    private static final String LOG_PREFIX = "[TieredSessionStorage]";
+
+    private final int maxHotSessions;
+    private final SessionArena arena;
+    private final Map<SignalProtocolAddress, Long> spilled = new HashMap<>();
+    private final LinkedHashMap<SignalProtocolAddress, SessionRecord> hot;
+
+    private long spillCount;
+    private long faultCount;
+
+    /**
+     * Creates a tiered storage spilling to the given file with default segment size.
+     *
+     * @param maxHotSessions the maximum number of records kept on the heap (positive)
+     * @param spillFile      the file backing the cold tier; truncated on open, deleted on close
+     */
+    public TieredSessionStorage(int maxHotSessions, Path spillFile) {
+        this(maxHotSessions, SessionArena.mapped(spillFile, SessionArena.DEFAULT_SEGMENT_SIZE));
+    }
+
+    /**
+     * Creates a tiered storage spilling into the given arena.
+     *
+     * @param maxHotSessions the maximum number of records kept on the heap (positive)
+     * @param arena          the arena backing the cold tier (non-null, owned by this storage)
+     */
+    public TieredSessionStorage(int maxHotSessions, SessionArena arena) {
+        if (maxHotSessions <= 0) {
+            throw new IllegalArgumentException("maxHotSessions must be positive");
+        }
+        this.maxHotSessions = maxHotSessions;
+        this.arena = arena;
+        this.hot = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SignalProtocolAddress, SessionRecord> eldest) {
+                if (size() <= TieredSessionStorage.this.maxHotSessions) {
+                    return false;
+                }
+                spill(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+        logger.info("{} Created with hot tier capacity {}", LOG_PREFIX, maxHotSessions);
+    }
+
+    @Override
+    public synchronized SessionRecord load(SignalProtocolAddress address) {
+        SessionRecord record = hot.get(address);
+        if (record != null) {
+            return record;
+        }
+        Long handle = spilled.remove(address);
+        if (handle == null) {
+            return null;
+        }
+        byte[] serialized = arena.read(handle);
+        arena.free(handle);
+        try {
+            record = new SessionRecord(serialized);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Corrupt spilled session for " + address, e);
+        }
+        faultCount++;
+        hot.put(address, record);
+        return record;
+    }
+
+    @Override
+    public synchronized void store(SignalProtocolAddress address, SessionRecord record) {
+        Long stale = spilled.remove(address);
+        if (stale != null) {
+            arena.free(stale);
+        }
+        hot.put(address, record);
+    }
+
+    @Override
+    public synchronized boolean contains(SignalProtocolAddress address) {
+        return hot.containsKey(address) || spilled.containsKey(address);
+    }
+
+    @Override
+    public synchronized boolean remove(SignalProtocolAddress address) {
+        if (hot.remove(address) != null) {
+            return true;
+        }
+        Long handle = spilled.remove(address);
+        if (handle != null) {
+            arena.free(handle);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized Collection<SignalProtocolAddress> addresses() {
+        Collection<SignalProtocolAddress> all = new ArrayList<>(hot.size() + spilled.size());
+        all.addAll(hot.keySet());
+        all.addAll(spilled.keySet());
+        return all;
+    }
+
+    @Override
+    public synchronized int size() {
+        return hot.size() + spilled.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        logger.info("{} Closing: {} hot, {} spilled, {} spills, {} faults, {} arena bytes live",
+                LOG_PREFIX, hot.size(), spilled.size(), spillCount, faultCount, arena.liveBytes());
+        hot.clear();
+        spilled.clear();
+        arena.close();
+    }
+
+    private void spill(SignalProtocolAddress address, SessionRecord record) {
+        spilled.put(address, arena.write(record.serialize()));
+        spillCount++;
+    }
+}
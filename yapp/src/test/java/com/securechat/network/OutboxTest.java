@@ -0,0 +1,223 @@
+package com.securechat.network;
+
+import com.securechat.protocol.Packet;
+import com.securechat.protocol.PacketType;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests {@link Outbox}: replay of a persistent log after reopening, compaction while
+ * entries are in flight, go-back-N rewinds against cumulative acknowledgements, and the
+ * server-granted send credit.
+ * <p>
+ * Packets are sent over a {@link LoopbackTransport}; the test reads the server end.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+class OutboxTest {
+
+    private static final int CAPACITY = 64 * 1024;
+    private static final long TIMEOUT_MILLIS = 5_000;
+    private static final long QUIET_MILLIS = 200;
+
+    @TempDir
+    Path dir;
+
+    private final List<Outbox> outboxes = new ArrayList<>();
+    private ExecutorService reader;
+    private LoopbackTransport.Pair pair;
+    private Future<Object> pending;
+
+    @BeforeEach
+    void setUp() {
+        reader = Executors.newSingleThreadExecutor();
+        pair = LoopbackTransport.pair("outbox-test", LoopbackTransport.DEFAULT_CAPACITY);
+    }
+
+    @AfterEach
+    void tearDown() {
+        outboxes.forEach(Outbox::close);
+        pair.client().close();
+        pair.server().close();
+        reader.shutdownNow();
+    }
+
+    @Test
+    void replaysUnacknowledgedEntriesAfterReopen() throws Exception {
+        Path file = dir.resolve("alice.outbox");
+        Outbox first = open(file, CAPACITY);
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(first.enqueue(message(i, 16)));
+        }
+        first.acknowledge(2);
+        first.close();
+
+        Outbox reopened = open(file, CAPACITY);
+        assertEquals(2, reopened.inFlightCount());
+        reopened.attach(new PeerConnection(pair.client()));
+        assertSequences(3, 4);
+
+        Packet next = message(5, 16);
+        assertTrue(reopened.enqueue(next));
+        assertEquals(5, next.getSequence(), "sequence numbers continue after the recovered entries");
+        assertSequences(5);
+    }
+
+    @Test
+    void compactionKeepsInFlightEntriesIntact() throws Exception {
+        Outbox outbox = open(dir.resolve("compact.outbox"), 16 * 1024);
+        List<Packet> queued = new ArrayList<>();
+        for (int i = 1; ; i++) {
+            Packet packet = message(i, 256);
+            if (!outbox.enqueue(packet)) {
+                break;
+            }
+            queued.add(packet);
+        }
+        assertTrue(queued.size() > 4, "the log holds several entries before it fills");
+
+        // Free the head of the log; the next enqueue has to move the rest to make room
+        long acked = queued.size() / 2;
+        outbox.acknowledge(acked);
+        Packet extra = message(queued.size() + 1, 256);
+        assertTrue(outbox.enqueue(extra));
+        queued.add(extra);
+
+        outbox.attach(new PeerConnection(pair.client()));
+        for (Packet expected : queued.subList((int) acked, queued.size())) {
+            Packet received = receive();
+            assertEquals(expected.getSequence(), received.getSequence());
+            assertArrayEquals(expected.getMessagePayload(), received.getMessagePayload());
+        }
+        assertQuiet();
+    }
+
+    @Test
+    void rewindResendsFromTheRefusedEntryAndIgnoresAcknowledgedOnes() throws Exception {
+        Outbox outbox = open(dir.resolve("rewind.outbox"), CAPACITY);
+        outbox.attach(new PeerConnection(pair.client()));
+        for (int i = 1; i <= 5; i++) {
+            outbox.enqueue(message(i, 16));
+        }
+        assertSequences(1, 2, 3, 4, 5);
+
+        outbox.rewind(3, 0);
+        assertSequences(3, 4, 5);
+
+        outbox.acknowledge(4);
+        assertEquals(1, outbox.inFlightCount());
+        outbox.rewind(2, 0); // already acknowledged, so nothing is resent
+        outbox.enqueue(message(6, 16));
+        assertSequences(6);
+
+        outbox.acknowledge(100); // cannot acknowledge past the last entry
+        assertEquals(0, outbox.inFlightCount());
+        Packet next = message(7, 16);
+        outbox.enqueue(next);
+        assertEquals(7, next.getSequence());
+        assertSequences(7);
+    }
+
+    @Test
+    void sendsNoFurtherThanTheGrantedCredit() throws Exception {
+        Outbox outbox = open(dir.resolve("credit.outbox"), CAPACITY);
+        int total = Outbox.INITIAL_CREDITS + 5;
+        for (int i = 1; i <= total; i++) {
+            outbox.enqueue(message(i, 16));
+        }
+        outbox.attach(new PeerConnection(pair.client()));
+        for (int i = 1; i <= Outbox.INITIAL_CREDITS; i++) {
+            assertEquals(i, receive().getSequence());
+        }
+        assertQuiet();
+
+        outbox.grant(Outbox.INITIAL_CREDITS + 2);
+        assertSequences(Outbox.INITIAL_CREDITS + 1, Outbox.INITIAL_CREDITS + 2);
+        outbox.grant(1); // grants never shrink the credit
+        assertQuiet();
+
+        // A new connection starts from the initial credit past the last acknowledged entry
+        outbox.acknowledge(Outbox.INITIAL_CREDITS);
+        LoopbackTransport.Pair next = LoopbackTransport.pair("outbox-test-2", LoopbackTransport.DEFAULT_CAPACITY);
+        pair.client().close();
+        pair.server().close();
+        pair = next;
+        pending = null;
+        outbox.attach(new PeerConnection(pair.client()));
+        for (int i = Outbox.INITIAL_CREDITS + 1; i <= total; i++) {
+            assertEquals(i, receive().getSequence());
+        }
+    }
+
+    @Test
+    void rejectsEntriesOnceTheLogIsFull() throws Exception {
+        Outbox outbox = open(dir.resolve("full.outbox"), 16 * 1024);
+        int accepted = 0;
+        while (outbox.enqueue(message(accepted + 1, 256))) {
+            accepted++;
+        }
+        assertEquals(accepted, outbox.inFlightCount());
+        assertFalse(outbox.enqueue(message(accepted + 1, 256)));
+
+        outbox.acknowledge(accepted);
+        assertTrue(outbox.enqueue(message(accepted + 1, 256)), "acknowledging everything frees the log");
+        assertThrows(IllegalArgumentException.class, () -> Outbox.open("bob", dir.resolve("small.outbox"), 1024));
+    }
+
+    private Outbox open(Path file, int capacity) throws Exception {
+        Outbox outbox = Outbox.open("alice", file, capacity);
+        outboxes.add(outbox);
+        return outbox;
+    }
+
+    /**
+     * Builds a MESSAGE whose payload records the sequence number it is expected to get.
+     */
+    private static Packet message(long expectedSequence, int size) {
+        byte[] payload = ByteBuffer.allocate(size).putLong(expectedSequence).array();
+        return new Packet("alice", 1, "bob", 1, payload, PacketType.MESSAGE);
+    }
+
+    private void assertSequences(long... sequences) throws Exception {
+        for (long sequence : sequences) {
+            assertEquals(sequence, receive().getSequence());
+        }
+    }
+
+    private Packet receive() throws Exception {
+        Future<Object> next = pending != null ? pending : reader.submit(pair.server()::receive);
+        pending = null;
+        return (Packet) next.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Asserts that nothing arrives for a while. The read stays pending for the next receive.
+     */
+    private void assertQuiet() throws Exception {
+        if (pending == null) {
+            pending = reader.submit(pair.server()::receive);
+        }
+        assertThrows(TimeoutException.class, () -> pending.get(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+    }
+}
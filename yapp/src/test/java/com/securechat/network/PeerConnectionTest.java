@@ -0,0 +1,230 @@
+package com.securechat.network;
+
+import com.securechat.protocol.Packet;
+import com.securechat.protocol.PacketType;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests the priority classes of {@link PeerConnection}: outbox packets never overtake one
+ * another, control packets overtake only what they may, a full backlog makes its sender
+ * wait, and a failed write discards the queues.
+ * <p>
+ * The connection runs over a {@link LoopbackTransport} holding two objects, so a writer
+ * blocks on the third object until the test reads the other end. Packets sent
+ * meanwhile are queued, and the order they are read in shows how they were scheduled.
+ * </p>
+ *
+ * @author bhickensalsa
+ * @version 0.1
+ */
+@Timeout(30)
+class PeerConnectionTest {
+
+    private LoopbackTransport.Pair pair;
+    private PeerConnection conn;
+
+    @BeforeEach
+    void setUp() {
+        pair = LoopbackTransport.pair("peer-test", 2);
+        conn = new PeerConnection(pair.client());
+    }
+
+    @AfterEach
+    void tearDown() {
+        pair.client().close();
+        pair.server().close();
+    }
+
+    @Test
+    void controlGoesAheadWhileOutboxPacketsKeepTheirOrder() throws Exception {
+        Thread writer = blockWriter();
+        conn.sendMessageObject(message("b1", 1));
+        conn.sendMessageObject(ack("a2", 2));          // must not acknowledge ahead of b1
+        conn.sendMessageObject(message("u", 0));
+        conn.sendMessageObject(ping("p"));
+        conn.sendMessageObject(serverAck("s", 9));     // refers to the client's own outbox
+
+        assertEquals(List.of("fill1", "fill2", "fill3", "p", "s", "b1", "a2", "u"), read(8));
+        writer.join();
+    }
+
+    @Test
+    void sequencedControlOvertakesOnlyUnsequencedBulk() throws Exception {
+        Thread writer = blockWriter();
+        conn.sendMessageObject(message("u", 0));
+        conn.sendMessageObject(ack("a1", 1));
+        assertEquals(List.of("fill1", "fill2", "fill3", "a1", "u"), read(5));
+        writer.join();
+
+        // Once the sequenced bulk packet is written, later ACKs are control again
+        writer = blockWriter();
+        conn.sendMessageObject(message("b2", 2));
+        conn.sendMessageObject(ack("a3", 3));
+        conn.sendMessageObject(message("u2", 0));
+        assertEquals(List.of("fill1", "fill2", "fill3", "b2", "a3", "u2"), read(6));
+        writer.join();
+
+        writer = blockWriter();
+        conn.sendMessageObject(message("u3", 0));
+        conn.sendMessageObject(ack("a4", 4));
+        assertEquals(List.of("fill1", "fill2", "fill3", "a4", "u3"), read(5));
+        writer.join();
+    }
+
+    @Test
+    void fullBulkBacklogMakesTheSenderWait() throws Exception {
+        Thread writer = blockWriter();
+        for (int i = 0; i < PeerConnection.BULK_BACKLOG; i++) {
+            conn.sendMessageObject(message("bulk" + i, 0));
+        }
+        Thread overflow = send(message("overflow", 0));
+        awaitBlocked(overflow);
+        conn.sendMessageObject(ping("p")); // the control backlog still has room
+
+        List<String> received = read(3 + PeerConnection.BULK_BACKLOG + 2);
+        overflow.join();
+        writer.join();
+        assertEquals(List.of("fill1", "fill2", "fill3", "p", "bulk0"), received.subList(0, 5));
+        assertEquals("overflow", received.get(received.size() - 1));
+    }
+
+    @Test
+    void fullControlBacklogMakesTheSenderWait() throws Exception {
+        Thread writer = blockWriter();
+        for (int i = 0; i < PeerConnection.CONTROL_BACKLOG; i++) {
+            conn.sendMessageObject(ping("control" + i));
+        }
+        Thread overflow = send(ping("overflow"));
+        awaitBlocked(overflow);
+
+        List<String> received = read(3 + PeerConnection.CONTROL_BACKLOG + 1);
+        overflow.join();
+        writer.join();
+        assertEquals("control0", received.get(3));
+        assertEquals("overflow", received.get(received.size() - 1));
+    }
+
+    @Test
+    void failedWriteDiscardsTheQueues() throws Exception {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                conn.sendMessageObject(ping("fill1"));
+                conn.sendMessageObject(ping("fill2"));
+                conn.sendMessageObject(ping("fill3"));
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+        writer.start();
+        awaitBlocked(writer);
+        conn.sendMessageObject(message("b1", 1));
+        conn.sendMessageObject(ping("p"));
+
+        pair.client().close();
+        writer.join();
+        assertInstanceOf(IOException.class, failure.get());
+        assertThrows(IOException.class, () -> conn.sendMessageObject(ping("late")));
+
+        // Only the packets handed to the transport before the failure are left to read
+        assertEquals(List.of("fill1", "fill2"), read(2));
+        assertThrows(EOFException.class, () -> pair.server().receive());
+    }
+
+    /**
+     * Starts a writer that fills the transport and blocks on a third packet while holding
+     * the connection's write lock, and waits until it is blocked.
+     */
+    private Thread blockWriter() throws InterruptedException {
+        Thread writer = new Thread(() -> {
+            try {
+                conn.sendMessageObject(ping("fill1"));
+                conn.sendMessageObject(ping("fill2"));
+                conn.sendMessageObject(ping("fill3"));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        awaitBlocked(writer);
+        return writer;
+    }
+
+    private Thread send(Packet packet) {
+        Thread sender = new Thread(() -> {
+            try {
+                conn.sendMessageObject(packet);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        sender.start();
+        return sender;
+    }
+
+    /**
+     * Waits until a thread is parked, i.e. blocked on a full transport or the write lock.
+     */
+    private static void awaitBlocked(Thread thread) throws InterruptedException {
+        while (true) {
+            Thread.State state = thread.getState();
+            if (state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING) {
+                return;
+            }
+            assertNotEquals(Thread.State.TERMINATED, state, "thread finished instead of blocking");
+            Thread.sleep(1);
+        }
+    }
+
+    private List<String> read(int count) throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            names.add(name(pair.server().receive()));
+        }
+        return names;
+    }
+
+    private static String name(Object obj) {
+        return new String(((Packet) obj).getMessagePayload());
+    }
+
+    private static Packet message(String name, long sequence) {
+        Packet packet = new Packet("alice", 1, "bob", 1, name.getBytes(), PacketType.MESSAGE);
+        packet.setSequence(sequence);
+        return packet;
+    }
+
+    private static Packet ack(String name, long sequence) {
+        Packet packet = new Packet("alice", 1, "bob", 1, name.getBytes(), PacketType.ACK);
+        packet.setSequence(sequence);
+        return packet;
+    }
+
+    private static Packet serverAck(String name, long sequence) {
+        Packet packet = ack(name, sequence);
+        packet.setSenderId(null);
+        return packet;
+    }
+
+    private static Packet ping(String name) {
+        Packet packet = new Packet();
+        packet.setType(PacketType.PING);
+        packet.setMessagePayload(name.getBytes());
+        return packet;
+    }
+}